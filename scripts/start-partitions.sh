@@ -0,0 +1,13 @@
+#!/bin/sh
+# Starts one mongod per partition on localhost:27018 and up for the integration tests of the partitioned DAO.
+# Usage: scripts/start-partitions.sh [number of partitions] [data directory]
+# Run the tests with -Dmongo.partition.hosts=localhost:27018,localhost:27019
+PARTITIONS=${1:-2}
+DATA_DIR=${2:-/tmp/flame-partitions}
+i=0
+while [ $i -lt "$PARTITIONS" ]; do
+	PORT=$((27018 + i))
+	mkdir -p "$DATA_DIR/$PORT"
+	mongod --port $PORT --dbpath "$DATA_DIR/$PORT" --fork --logpath "$DATA_DIR/$PORT/mongod.log" || exit 1
+	i=$((i + 1))
+done
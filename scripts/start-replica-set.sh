@@ -0,0 +1,11 @@
+#!/bin/sh
+# Starts a single-host replica set on localhost:27017 for the integration tests of the read preferences.
+# Usage: scripts/start-replica-set.sh [data directory]
+DATA_DIR=${1:-/tmp/flame-rs0}
+mkdir -p "$DATA_DIR"
+mongod --replSet rs0 --port 27017 --dbpath "$DATA_DIR" --fork --logpath "$DATA_DIR/mongod.log" || exit 1
+mongo --quiet --port 27017 --eval 'try { rs.status() } catch (e) { rs.initiate({_id: "rs0", members: [{_id: 0, host: "localhost:27017"}]}) }'
+# Wait until the member is the primary.
+until mongo --quiet --port 27017 --eval 'quit(db.isMaster().ismaster ? 0 : 1)'; do
+	sleep 1
+done
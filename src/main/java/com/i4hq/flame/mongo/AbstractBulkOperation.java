@@ -0,0 +1,454 @@
+package com.i4hq.flame.mongo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Base class of the bulk operations. It is safe to use from several threads at once.
+ * Producers append to one of several striped buffers, picked by the id of the calling thread,
+ * so that concurrent writers rarely contend on the same lock. When a stripe is full it is swapped out
+ * under its lock and sent to the server outside of the lock.
+ * @author rmoten
+ *
+ * @param <T> the type of the buffered items.
+ */
+abstract class AbstractBulkOperation<T> implements BulkOperation {
+
+	/**
+	 * A buffer and the lock that guards it.
+	 */
+	private static final class Stripe<T> {
+		private List<T> buffer = new ArrayList<>();
+		/**
+		 * The estimated size in bytes of the buffered items.
+		 */
+		private long bufferedBytes = 0;
+		/**
+		 * The time the oldest item in the buffer was added. Zero if the buffer is empty.
+		 */
+		private long oldestItemTime = 0;
+
+		/**
+		 * Must be called while holding the lock of this stripe.
+		 * @return Returns the buffered items or null if there are none.
+		 */
+		private List<T> drain() {
+			if (buffer.isEmpty()) {
+				return null;
+			}
+			List<T> items = buffer;
+			buffer = new ArrayList<>();
+			bufferedBytes = 0;
+			oldestItemTime = 0;
+			return items;
+		}
+	}
+
+	/**
+	 * The time, in milliseconds, since the last write after which a buffered document triggers a write if neither threshold is reached.
+	 */
+	private static final long DEFAULT_WAIT_TIME_BEFORE_FLUSH = 1100;
+
+	private volatile long lastWrite = System.currentTimeMillis();
+	/**
+	 * The time since the last write after which a buffered document triggers a write. While the threshold is adaptive, the target latency is used instead.
+	 */
+	private volatile long waitTimeBeforeFlush;
+	/**
+	 * The minimum number of documents to keep in memory, per stripe, before sending to the server.
+	 */
+	protected volatile int bufferWriteThreshold;
+	/**
+	 * The estimated size in bytes, per stripe, of the buffered documents that triggers a write.
+	 */
+	private volatile long maxBufferedBytes;
+	/**
+	 * The limits of a single round trip. Larger batches are split before they are written.
+	 */
+	private volatile long maxBatchBytes = Long.MAX_VALUE;
+	private volatile int maxBatchCount = Integer.MAX_VALUE;
+
+	private final Stripe<T>[] stripes;
+
+	/**
+	 * Executes the writes of full batches. If null then the batches are written by the thread that filled them.
+	 */
+	private Executor flushExecutor = null;
+	/**
+	 * The permits for batches that have been handed to the flush executor and not yet written.
+	 */
+	private Semaphore inFlightBatches = new Semaphore(0);
+	private int maxInFlightBatches = 0;
+
+	/**
+	 * If not null, the write threshold is adjusted after each batch to meet a target latency.
+	 */
+	private volatile AdaptiveBatchTuner tuner = null;
+	/**
+	 * Guards the tuner and the write threshold together, so a batch written by an old tuner cannot overwrite a threshold set since.
+	 * It is never held while waiting for batches in flight.
+	 */
+	private final Object tunerLock = new Object();
+	/**
+	 * The name of the collection, used for logging.
+	 */
+	private final String name;
+
+	AbstractBulkOperation(String name) {
+		this.name = name;
+		int numOfStripes = Integer.parseInt(System.getProperty("MONGO_FLAME_BULK_WRITE_STRIPES", Integer.toString(Runtime.getRuntime().availableProcessors())));
+		if (numOfStripes < 1) {
+			numOfStripes = 1;
+		}
+		stripes = createStripes(numOfStripes);
+		waitTimeBeforeFlush = Long.parseLong(System.getProperty("MONGO_FLAME_BULK_WRITE_WAITTIME", Long.toString(DEFAULT_WAIT_TIME_BEFORE_FLUSH)));
+		setBufferWriteThreshold(Integer.parseInt(System.getProperty("MONGO_FLAME_BULK_WRITE_MIN_THRESHOLD", "1000")));
+		setMaxBufferedBytes(Long.parseLong(System.getProperty("MONGO_FLAME_BULK_WRITE_MAX_BYTES", Long.toString(16 * 1024 * 1024))));
+		MongoFlameDAO.logger.info("MONGO_FLAME_BULK_WRITE_STRIPES = {}", numOfStripes);
+		MongoFlameDAO.logger.info("MONGO_FLAME_BULK_WRITE_MAX_BYTES = {}", maxBufferedBytes);
+		MongoFlameDAO.logger.info("MONGO_FLAME_BULK_WRITE_WAITTIME = {}", waitTimeBeforeFlush);
+		MongoFlameDAO.logger.info("MONGO_FLAME_BULK_WRITE_MIN_THRESHOLD = {}", bufferWriteThreshold);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> Stripe<T>[] createStripes(int numOfStripes) {
+		Stripe<T>[] stripes = (Stripe<T>[]) new Stripe<?>[numOfStripes];
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new Stripe<>();
+		}
+		return stripes;
+	}
+
+	/**
+	 * Send the items to the server.
+	 * @param items
+	 */
+	protected abstract void writeBatch(List<T> items);
+
+	/**
+	 * @param item
+	 * @return Returns the estimated size in bytes of the item once it is encoded.
+	 */
+	protected abstract long estimateSize(T item);
+
+	private Stripe<T> currentStripe() {
+		return stripes[(int) (Thread.currentThread().getId() % stripes.length)];
+	}
+
+	/**
+	 * @param item
+	 * @return Returns true if and only if it performed the write.
+	 */
+	protected boolean add(T item) {
+		Stripe<T> stripe = currentStripe();
+		List<T> items = null;
+		long size = estimateSize(item);
+		long bytes = 0;
+		synchronized (stripe) {
+			markFirstItem(stripe);
+			stripe.buffer.add(item);
+			stripe.bufferedBytes += size;
+			if (isFull(stripe)) {
+				bytes = stripe.bufferedBytes;
+				items = stripe.drain();
+			}
+		}
+		return writeOrFlush(items, bytes);
+	}
+
+	/**
+	 * @param newItems
+	 * @return Returns true if and only if it performed the write.
+	 */
+	protected boolean addAll(Collection<? extends T> newItems) {
+		Stripe<T> stripe = currentStripe();
+		List<T> items = null;
+		long size = 0;
+		for (T item : newItems) {
+			size += estimateSize(item);
+		}
+		long bytes = 0;
+		synchronized (stripe) {
+			markFirstItem(stripe);
+			stripe.buffer.addAll(newItems);
+			stripe.bufferedBytes += size;
+			if (isFull(stripe)) {
+				bytes = stripe.bufferedBytes;
+				items = stripe.drain();
+			}
+		}
+		return writeOrFlush(items, bytes);
+	}
+
+	/**
+	 * Must be called while holding the lock of the stripe and before adding to its buffer.
+	 */
+	private void markFirstItem(Stripe<T> stripe) {
+		if (stripe.buffer.isEmpty()) {
+			stripe.oldestItemTime = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Must be called while holding the lock of the stripe.
+	 */
+	private boolean isFull(Stripe<T> stripe) {
+		return stripe.buffer.size() > bufferWriteThreshold || stripe.bufferedBytes >= maxBufferedBytes;
+	}
+
+	private boolean writeOrFlush(List<T> items, long bytes) {
+		if (items != null) {
+			submitInBatches(items, bytes);
+			lastWrite = System.currentTimeMillis();
+			return true;
+		}
+		AdaptiveBatchTuner batchTuner = tuner;
+		long waitTime = batchTuner == null ? waitTimeBeforeFlush : batchTuner.getTargetLatency();
+		if (System.currentTimeMillis() - lastWrite > waitTime) {
+			drainAll();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Write the items in as few round trips as the batch limits allow.
+	 * @param items
+	 * @param bytes - the estimated size of the items.
+	 */
+	private void submitInBatches(List<T> items, long bytes) {
+		if (bytes <= maxBatchBytes && items.size() <= maxBatchCount) {
+			submit(items);
+			return;
+		}
+		List<T> batch = new ArrayList<>();
+		long batchBytes = 0;
+		for (T item : items) {
+			long size = estimateSize(item);
+			if (!batch.isEmpty() && (batchBytes + size > maxBatchBytes || batch.size() >= maxBatchCount)) {
+				submit(batch);
+				batch = new ArrayList<>();
+				batchBytes = 0;
+			}
+			batch.add(item);
+			batchBytes += size;
+		}
+		submit(batch);
+	}
+
+	/**
+	 * Write the batch. If asynchronous writes are enabled, the batch is handed to the flush executor 
+	 * and this blocks only while the maximum number of batches are already in flight.
+	 * @param items
+	 */
+	private void submit(final List<T> items) {
+		final Executor executor;
+		final Semaphore permits;
+		synchronized (this) {
+			executor = flushExecutor;
+			permits = inFlightBatches;
+			// The permit is taken under the lock, so the semaphore cannot be replaced by setAsyncWrites() between reading it and taking the permit.
+			// The batches in flight release their permits without the lock.
+			if (executor != null) {
+				permits.acquireUninterruptibly();
+			}
+		}
+		if (executor == null) {
+			timedWriteBatch(items);
+			return;
+		}
+		try {
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						timedWriteBatch(items);
+					} catch (Throwable ex) {
+						MongoFlameDAO.logger.error("Error writing batch", ex);
+					} finally {
+						permits.release();
+					}
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			// The executor has been shutdown, so write the batch here.
+			permits.release();
+			timedWriteBatch(items);
+		}
+	}
+
+	/**
+	 * Write the batch and, in adaptive mode, adjust the write threshold based on how long it took.
+	 * @param items
+	 */
+	private void timedWriteBatch(List<T> items) {
+		final AdaptiveBatchTuner batchTuner = tuner;
+		if (batchTuner == null) {
+			writeBatch(items);
+			return;
+		}
+		long start = System.nanoTime();
+		writeBatch(items);
+		int newThreshold = batchTuner.record(items.size(), System.nanoTime() - start);
+		synchronized (tunerLock) {
+			// The threshold may have been fixed, or another tuner set, while the batch was written.
+			if (tuner == batchTuner) {
+				bufferWriteThreshold = newThreshold;
+			}
+		}
+	}
+
+	/**
+	 * Turn off adaptive tuning and set the write threshold.
+	 * @param threshold
+	 */
+	protected void fixBufferWriteThreshold(int threshold) {
+		synchronized (tunerLock) {
+			tuner = null;
+			bufferWriteThreshold = threshold;
+		}
+	}
+
+	/**
+	 * Block until every batch handed to the flush executor has been written.
+	 */
+	private synchronized void awaitInFlightBatches() {
+		if (flushExecutor == null) {
+			return;
+		}
+		inFlightBatches.acquireUninterruptibly(maxInFlightBatches);
+		inFlightBatches.release(maxInFlightBatches);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.i4hq.flame.mongo.BulkOperation#setAsyncWrites(java.util.concurrent.Executor, int)
+	 */
+	@Override
+	public synchronized void setAsyncWrites(Executor flushExecutor, int maxInFlightBatches) {
+		// Wait for the batches of the old semaphore under the same lock that submit() takes its permits under, so no batch is left unawaited.
+		awaitInFlightBatches();
+		if (flushExecutor == null || maxInFlightBatches < 1) {
+			this.flushExecutor = null;
+			this.maxInFlightBatches = 0;
+			this.inFlightBatches = new Semaphore(0);
+		} else {
+			this.flushExecutor = flushExecutor;
+			this.maxInFlightBatches = maxInFlightBatches;
+			this.inFlightBatches = new Semaphore(maxInFlightBatches);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.i4hq.flame.mongo.BulkOperation#flush()
+	 */
+	@Override
+	public void flush() {
+		drainAll();
+		awaitInFlightBatches();
+	}
+
+	/**
+	 * Send the items of every stripe without waiting for batches in flight.
+	 */
+	private void drainAll() {
+		// Drain every stripe into one batch so that the round trip is as full as possible.
+		List<T> items = new ArrayList<>();
+		long bytes = 0;
+		for (Stripe<T> stripe : stripes) {
+			List<T> stripeItems;
+			synchronized (stripe) {
+				bytes += stripe.bufferedBytes;
+				stripeItems = stripe.drain();
+			}
+			if (stripeItems != null) {
+				items.addAll(stripeItems);
+			}
+		}
+		if (!items.isEmpty()) {
+			submitInBatches(items, bytes);
+		}
+		lastWrite = System.currentTimeMillis();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.i4hq.flame.mongo.BulkOperation#flushIfOlderThan(long)
+	 */
+	@Override
+	public boolean flushIfOlderThan(long maxAge) {
+		long now = System.currentTimeMillis();
+		for (Stripe<T> stripe : stripes) {
+			long oldestItemTime;
+			synchronized (stripe) {
+				oldestItemTime = stripe.oldestItemTime;
+			}
+			if (oldestItemTime > 0 && now - oldestItemTime >= maxAge) {
+				drainAll();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.i4hq.flame.mongo.BulkOperation#setMaxBufferedBytes(long)
+	 */
+	@Override
+	public void setMaxBufferedBytes(long maxBufferedBytes) {
+		this.maxBufferedBytes = maxBufferedBytes;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.i4hq.flame.mongo.BulkOperation#setMaxBatchSize(long, int)
+	 */
+	@Override
+	public void setMaxBatchSize(long maxBatchBytes, int maxBatchCount) {
+		this.maxBatchBytes = maxBatchBytes > 0 ? maxBatchBytes : Long.MAX_VALUE;
+		this.maxBatchCount = maxBatchCount > 0 ? maxBatchCount : Integer.MAX_VALUE;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.i4hq.flame.mongo.BulkOperation#setTargetLatency(long)
+	 */
+	@Override
+	public synchronized void setTargetLatency(long targetLatency) {
+		if (targetLatency <= 0) {
+			synchronized (tunerLock) {
+				tuner = null;
+			}
+			return;
+		}
+		synchronized (tunerLock) {
+			int maxThreshold = maxBatchCount == Integer.MAX_VALUE ? bufferWriteThreshold : maxBatchCount;
+			AdaptiveBatchTuner newTuner = new AdaptiveBatchTuner(name, targetLatency, bufferWriteThreshold, maxThreshold);
+			bufferWriteThreshold = newTuner.getThreshold();
+			tuner = newTuner;
+		}
+		MongoFlameDAO.logger.info("{}: adaptive write threshold with a target latency of {} ms", name, targetLatency);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.i4hq.flame.mongo.BulkOperation#setWaitTimeBeforeFlush(long)
+	 */
+	@Override
+	public void setWaitTimeBeforeFlush(long waitTimeBeforeFlush) {
+		this.waitTimeBeforeFlush = waitTimeBeforeFlush;
+	}
+
+	@Override
+	protected void finalize() throws Throwable {
+		close();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.i4hq.flame.mongo.BulkOperation#close()
+	 */
+	@Override
+	public void close() {
+		flush();
+	}
+}
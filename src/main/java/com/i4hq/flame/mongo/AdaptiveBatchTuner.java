@@ -0,0 +1,96 @@
+package com.i4hq.flame.mongo;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adjusts the write threshold of a bulk writer so that its batches are written within a target latency.
+ * It uses additive increase, multiplicative decrease: the threshold grows by a fixed step after each full batch written within the target latency
+ * and is halved after each batch that took longer.
+ * @author rmoten
+ *
+ */
+final class AdaptiveBatchTuner {
+
+	static final int MIN_THRESHOLD = 16;
+	/**
+	 * The weight of the newest measurement in the moving averages.
+	 */
+	private static final double SMOOTHING = 0.2;
+
+	private final String name;
+	private final long targetLatencyNanos;
+	private final int maxThreshold;
+	private final int additiveIncrease;
+	private int threshold;
+	private double averageLatencyNanos = -1;
+	private double averageThroughput = -1;
+
+	/**
+	 * @param name - the name of the collection, used for logging.
+	 * @param targetLatency - in milliseconds.
+	 * @param initialThreshold
+	 * @param maxThreshold
+	 */
+	AdaptiveBatchTuner(String name, long targetLatency, int initialThreshold, int maxThreshold) {
+		this.name = name;
+		this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatency);
+		this.maxThreshold = Math.max(MIN_THRESHOLD, maxThreshold);
+		this.additiveIncrease = Math.max(MIN_THRESHOLD, this.maxThreshold / 64);
+		this.threshold = Math.min(this.maxThreshold, Math.max(MIN_THRESHOLD, initialThreshold));
+	}
+
+	/**
+	 * @return Returns the target latency, in milliseconds.
+	 */
+	long getTargetLatency() {
+		return TimeUnit.NANOSECONDS.toMillis(targetLatencyNanos);
+	}
+
+	/**
+	 * Record the write of a batch.
+	 * @param numOfDocs - the number of documents in the batch.
+	 * @param elapsedNanos - the time it took to write the batch.
+	 * @return Returns the new threshold.
+	 */
+	synchronized int record(int numOfDocs, long elapsedNanos) {
+		double throughput = elapsedNanos > 0 ? numOfDocs * 1e9 / elapsedNanos : 0;
+		if (averageLatencyNanos < 0) {
+			averageLatencyNanos = elapsedNanos;
+			averageThroughput = throughput;
+		} else {
+			averageLatencyNanos += SMOOTHING * (elapsedNanos - averageLatencyNanos);
+			averageThroughput += SMOOTHING * (throughput - averageThroughput);
+		}
+
+		int oldThreshold = threshold;
+		if (elapsedNanos > targetLatencyNanos) {
+			threshold = Math.max(MIN_THRESHOLD, threshold / 2);
+		} else if (numOfDocs >= threshold) {
+			// Only a full batch says anything about whether a larger one would fit in the target latency.
+			threshold = Math.min(maxThreshold, threshold + additiveIncrease);
+		}
+		if (threshold != oldThreshold) {
+			MongoFlameDAO.logger.debug("{}: threshold {} -> {}. Average latency = {} ms, average throughput = {} docs/s", name, oldThreshold, threshold,
+					TimeUnit.NANOSECONDS.toMillis((long) averageLatencyNanos), (long) averageThroughput);
+		}
+		return threshold;
+	}
+
+	synchronized int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * @return Returns the moving average of the write latency in milliseconds.
+	 */
+	synchronized long getAverageLatency() {
+		return averageLatencyNanos < 0 ? 0 : TimeUnit.NANOSECONDS.toMillis((long) averageLatencyNanos);
+	}
+
+	/**
+	 * @return Returns the moving average of the number of documents written per second.
+	 */
+	synchronized long getAverageThroughput() {
+		return averageThroughput < 0 ? 0 : (long) averageThroughput;
+	}
+}
@@ -0,0 +1,108 @@
+package com.i4hq.flame.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.conversions.Bson;
+
+import com.i4hq.flame.core.AttributeType;
+import com.i4hq.flame.core.EntityType;
+import com.mongodb.client.model.Filters;
+
+/**
+ * Creates the conditions that select which attributes of the matching entities a query returns, so that attributes that would be dropped are not sent by the server.
+ * The same selection is available as a query filter, for finds on the attributes collection, and as an aggregation expression, for attributes joined by $lookup.
+ * @author rmoten
+ *
+ */
+final class AttributeFilters {
+
+	private AttributeFilters() {
+	}
+
+	/**
+	 * @param attributeNames - the names of the attributes requested. If null, all names are requested.
+	 * @param entityType - if not null, attributes declared in the entity type must have the declared type.
+	 * @return Returns the filter on attribute documents, or null if all attributes are selected.
+	 */
+	static Bson createFilter(Collection<String> attributeNames, EntityType entityType) {
+		List<Bson> filters = new ArrayList<>();
+		if (attributeNames != null) {
+			filters.add(Filters.in(MongoFlameDAO.ATTRIBUTE_NAME_FIELD, attributeNames));
+		}
+		if (hasDeclaredAttributes(entityType)) {
+			Set<String> declaredNames = entityType.getAttributeNames();
+			List<Bson> allowed = new ArrayList<>();
+			allowed.add(Filters.nin(MongoFlameDAO.ATTRIBUTE_NAME_FIELD, declaredNames));
+			for (String name : declaredNames) {
+				allowed.add(Filters.and(Filters.eq(MongoFlameDAO.ATTRIBUTE_NAME_FIELD, name), Filters.eq(MongoFlameDAO.TYPE_FIELD, typeName(entityType, name))));
+			}
+			filters.add(Filters.or(allowed));
+		}
+		if (filters.isEmpty()) {
+			return null;
+		}
+		return filters.size() == 1 ? filters.get(0) : Filters.and(filters);
+	}
+
+	/**
+	 * @param variable - the name of the variable holding the attribute document, such as the "as" variable of a $filter.
+	 * @param attributeNames - the names of the attributes requested. If null, all names are requested.
+	 * @param entityType - if not null, attributes declared in the entity type must have the declared type.
+	 * @return Returns the boolean aggregation expression, or null if all attributes are selected.
+	 */
+	static BsonDocument createCondition(String variable, Collection<String> attributeNames, EntityType entityType) {
+		BsonString name = new BsonString("$$" + variable + "." + MongoFlameDAO.ATTRIBUTE_NAME_FIELD);
+		BsonArray conditions = new BsonArray();
+		if (attributeNames != null) {
+			conditions.add(in(name, toBsonArray(attributeNames)));
+		}
+		if (hasDeclaredAttributes(entityType)) {
+			Set<String> declaredNames = entityType.getAttributeNames();
+			// Either the attribute is not declared, or its name and type pair is one of the declared pairs.
+			BsonArray declaredPairs = new BsonArray();
+			for (String declaredName : declaredNames) {
+				declaredPairs.add(new BsonArray(Arrays.asList(new BsonString(declaredName), new BsonString(typeName(entityType, declaredName)))));
+			}
+			BsonArray pair = new BsonArray(Arrays.asList(name, new BsonString("$$" + variable + "." + MongoFlameDAO.TYPE_FIELD)));
+			conditions.add(new BsonDocument("$or", new BsonArray(Arrays.asList(
+					new BsonDocument("$not", new BsonArray(Arrays.asList(in(name, toBsonArray(declaredNames))))),
+					in(pair, declaredPairs)))));
+		}
+		if (conditions.isEmpty()) {
+			return null;
+		}
+		return conditions.size() == 1 ? conditions.get(0).asDocument() : new BsonDocument("$and", conditions);
+	}
+
+	private static boolean hasDeclaredAttributes(EntityType entityType) {
+		return entityType != null && !entityType.getAttributeNames().isEmpty();
+	}
+
+	private static String typeName(EntityType entityType, String attributeName) {
+		AttributeType declaredType = entityType.getAttributeType(attributeName);
+		return declaredType.toString();
+	}
+
+	/**
+	 * @return Returns the $in expression. The values are literals, so names starting with $ are not taken as field paths.
+	 */
+	private static BsonDocument in(BsonValue expression, BsonArray values) {
+		return new BsonDocument("$in", new BsonArray(Arrays.asList(expression, new BsonDocument("$literal", values))));
+	}
+
+	private static BsonArray toBsonArray(Collection<String> values) {
+		BsonArray array = new BsonArray();
+		for (String value : values) {
+			array.add(new BsonString(value));
+		}
+		return array;
+	}
+}
@@ -0,0 +1,374 @@
+package com.i4hq.flame.mongo;
+
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.types.Binary;
+
+/**
+ * Generates the IDs of attribute documents and the hashes of entity types.
+ * It is thread safe. Each thread reuses its own digest and buffers, so generating an ID allocates little more than the resulting string.
+ * Strings are always hashed as UTF-8.
+ * @author rmoten
+ *
+ */
+final class AttributeIdGenerator {
+
+	/**
+	 * The hash functions that can be used to generate IDs.
+	 */
+	enum HashAlgorithm {
+		/**
+		 * The hash used by all earlier versions.
+		 */
+		MD5,
+		/**
+		 * The 128-bit x64 variant of MurmurHash3. Much faster than MD5 but not cryptographic.
+		 */
+		MURMUR3_128;
+	}
+
+	/**
+	 * The formats of the generated IDs.
+	 */
+	enum IdFormat {
+		/**
+		 * Hexadecimal without leading zeros, as generated by earlier versions. 
+		 */
+		LEGACY_HEX,
+		/**
+		 * Hexadecimal of fixed length: 32 characters.
+		 */
+		HEX,
+		/**
+		 * The 16 bytes of the hash stored as BSON binary. This halves the size of the _id index. 
+		 * Type hashes remain strings, in the HEX format.
+		 */
+		BINARY;
+	}
+
+	static final int HASH_LENGTH = 16;
+	private static final int INITIAL_BUFFER_SIZE = 256;
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	/**
+	 * The reusable state of a thread.
+	 */
+	private static final class State {
+		private final MessageDigest md5;
+		private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+		private final byte[] hash = new byte[HASH_LENGTH];
+		private final char[] hex = new char[HASH_LENGTH * 2];
+
+		private State() {
+			try {
+				md5 = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				MongoFlameDAO.logger.error("MD5", e);
+				throw new RuntimeException(e);
+			}
+		}
+
+		private void ensureCapacity(int capacity) {
+			if (buffer.length < capacity) {
+				byte[] newBuffer = new byte[Math.max(capacity, buffer.length * 2)];
+				System.arraycopy(buffer, 0, newBuffer, 0, buffer.length);
+				buffer = newBuffer;
+			}
+		}
+	}
+
+	private static final ThreadLocal<State> state = new ThreadLocal<State>() {
+		@Override
+		protected State initialValue() {
+			return new State();
+		}
+	};
+
+	private final HashAlgorithm hashAlgorithm;
+	private final IdFormat idFormat;
+
+	AttributeIdGenerator(HashAlgorithm hashAlgorithm, IdFormat idFormat) {
+		this.hashAlgorithm = hashAlgorithm;
+		this.idFormat = idFormat;
+	}
+
+	/**
+	 * @return Returns a generator configured by the MONGO_FLAME_ID_HASH and MONGO_FLAME_ID_FORMAT system properties.
+	 */
+	static AttributeIdGenerator fromSystemProperties() {
+		HashAlgorithm hashAlgorithm = HashAlgorithm.valueOf(System.getProperty("MONGO_FLAME_ID_HASH", HashAlgorithm.MD5.name()));
+		IdFormat idFormat = IdFormat.valueOf(System.getProperty("MONGO_FLAME_ID_FORMAT", IdFormat.LEGACY_HEX.name()));
+		MongoFlameDAO.logger.info("MONGO_FLAME_ID_HASH = {}", hashAlgorithm);
+		MongoFlameDAO.logger.info("MONGO_FLAME_ID_FORMAT = {}", idFormat);
+		return new AttributeIdGenerator(hashAlgorithm, idFormat);
+	}
+
+	/**
+	 * @param type - the type expression of an entity.
+	 * @return Returns the hash of the type.
+	 */
+	String createTypeHash(String type) {
+		State s = state.get();
+		int len = encode(type, s, 0);
+		hash(s, len);
+		return toHex(s);
+	}
+
+	/**
+	 * @param attributeValue
+	 * @param attributeName
+	 * @param entityId
+	 * @return Returns the ID of the attribute document: a String, or a {@link Binary} if the format is BINARY. 
+	 */
+	Object createAttributeId(Object attributeValue, String attributeName, String entityId) {
+		State s = state.get();
+		int len = encode(attributeValue == null ? "" : attributeValue.toString(), s, 0);
+		len = encode(attributeName, s, len);
+		len = encode(entityId, s, len);
+		hash(s, len);
+		if (idFormat == IdFormat.BINARY) {
+			return new Binary(s.hash.clone());
+		}
+		return toHex(s);
+	}
+
+	IdFormat getIdFormat() {
+		return idFormat;
+	}
+
+	/**
+	 * @param id - an attribute ID in any format.
+	 * @return Returns the 16 bytes of the hash or null if the ID is not an attribute ID in any of the formats.
+	 */
+	static byte[] toHash(Object id) {
+		if (id instanceof Binary) {
+			byte[] data = ((Binary) id).getData();
+			return data.length == HASH_LENGTH ? data : null;
+		}
+		if (!(id instanceof String)) {
+			return null;
+		}
+		String hex = (String) id;
+		if (hex.isEmpty() || hex.length() > HASH_LENGTH * 2) {
+			return null;
+		}
+		byte[] hash = new byte[HASH_LENGTH];
+		// Legacy IDs lack leading zeros, so fill the hash from the end.
+		int nibble = 0;
+		for (int i = hex.length() - 1; i >= 0; i--, nibble++) {
+			int digit = Character.digit(hex.charAt(i), 16);
+			if (digit < 0) {
+				return null;
+			}
+			hash[HASH_LENGTH - 1 - nibble / 2] |= nibble % 2 == 0 ? digit : digit << 4;
+		}
+		return hash;
+	}
+
+	/**
+	 * @param id - an attribute ID in any format.
+	 * @param format
+	 * @return Returns the ID in the given format or null if the ID is not an attribute ID.
+	 */
+	static Object convert(Object id, IdFormat format) {
+		byte[] hash = toHash(id);
+		if (hash == null) {
+			return null;
+		}
+		if (format == IdFormat.BINARY) {
+			return new Binary(hash);
+		}
+		char[] hex = new char[HASH_LENGTH * 2];
+		return toHex(hash, hex, format);
+	}
+
+	/**
+	 * Use this to look up an attribute by ID when the collection may hold IDs of several formats, such as during a migration.
+	 * @param id - an attribute ID in any format.
+	 * @return Returns the ID in every format. If the ID is not an attribute ID then the list contains only the ID.
+	 */
+	static List<Object> allFormats(Object id) {
+		List<Object> ids = new ArrayList<>(IdFormat.values().length);
+		for (IdFormat format : IdFormat.values()) {
+			Object formattedId = convert(id, format);
+			if (formattedId != null && !ids.contains(formattedId)) {
+				ids.add(formattedId);
+			}
+		}
+		if (ids.isEmpty()) {
+			ids.add(id);
+		}
+		return ids;
+	}
+
+	/**
+	 * Write the UTF-8 encoding of the string into the buffer of the state.
+	 * @param str
+	 * @param s
+	 * @param offset - where to start writing in the buffer.
+	 * @return Returns the offset after the last byte written.
+	 */
+	private static int encode(String str, State s, int offset) {
+		int len = str.length();
+		s.ensureCapacity(offset + len);
+		byte[] buffer = s.buffer;
+		for (int i = 0; i < len; i++) {
+			char c = str.charAt(i);
+			if (c >= 0x80) {
+				// Not ASCII, so let the JDK encode the rest of the string.
+				byte[] rest = str.substring(i).getBytes(StandardCharsets.UTF_8);
+				s.ensureCapacity(offset + i + rest.length);
+				System.arraycopy(rest, 0, s.buffer, offset + i, rest.length);
+				return offset + i + rest.length;
+			}
+			buffer[offset + i] = (byte) c;
+		}
+		return offset + len;
+	}
+
+	/**
+	 * Hash the first len bytes of the buffer into the hash of the state.
+	 */
+	private void hash(State s, int len) {
+		switch (hashAlgorithm) {
+		case MURMUR3_128:
+			murmur3x64128(s.buffer, len, s.hash);
+			break;
+		default:
+			s.md5.update(s.buffer, 0, len);
+			try {
+				s.md5.digest(s.hash, 0, HASH_LENGTH);
+			} catch (DigestException e) {
+				MongoFlameDAO.logger.error("MD5", e);
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	private String toHex(State s) {
+		return toHex(s.hash, s.hex, idFormat);
+	}
+
+	private static String toHex(byte[] hash, char[] hex, IdFormat idFormat) {
+		for (int i = 0; i < HASH_LENGTH; i++) {
+			hex[2 * i] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+			hex[2 * i + 1] = HEX_DIGITS[hash[i] & 0xf];
+		}
+		int start = 0;
+		if (idFormat == IdFormat.LEGACY_HEX) {
+			// Same as new BigInteger(1, hash).toString(16), which drops the leading zeros.
+			while (start < hex.length - 1 && hex[start] == '0') {
+				start++;
+			}
+		}
+		return new String(hex, start, hex.length - start);
+	}
+
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	/**
+	 * MurmurHash3, x64 128-bit variant, with a seed of 0.
+	 * @param data
+	 * @param len - the number of bytes of data to hash.
+	 * @param out - receives the 16 bytes of the hash.
+	 */
+	@SuppressWarnings("fallthrough")
+	static void murmur3x64128(byte[] data, int len, byte[] out) {
+		long h1 = 0;
+		long h2 = 0;
+		int numOfBlocks = len / 16;
+		for (int i = 0; i < numOfBlocks; i++) {
+			long k1 = getLongLittleEndian(data, i * 16);
+			long k2 = getLongLittleEndian(data, i * 16 + 8);
+
+			k1 *= C1;
+			k1 = Long.rotateLeft(k1, 31);
+			k1 *= C2;
+			h1 ^= k1;
+			h1 = Long.rotateLeft(h1, 27);
+			h1 += h2;
+			h1 = h1 * 5 + 0x52dce729;
+
+			k2 *= C2;
+			k2 = Long.rotateLeft(k2, 33);
+			k2 *= C1;
+			h2 ^= k2;
+			h2 = Long.rotateLeft(h2, 31);
+			h2 += h1;
+			h2 = h2 * 5 + 0x38495ab5;
+		}
+
+		int tail = numOfBlocks * 16;
+		long k1 = 0;
+		long k2 = 0;
+		switch (len & 15) {
+		case 15: k2 ^= (long) (data[tail + 14] & 0xff) << 48;
+		case 14: k2 ^= (long) (data[tail + 13] & 0xff) << 40;
+		case 13: k2 ^= (long) (data[tail + 12] & 0xff) << 32;
+		case 12: k2 ^= (long) (data[tail + 11] & 0xff) << 24;
+		case 11: k2 ^= (long) (data[tail + 10] & 0xff) << 16;
+		case 10: k2 ^= (long) (data[tail + 9] & 0xff) << 8;
+		case 9:
+			k2 ^= (long) (data[tail + 8] & 0xff);
+			k2 *= C2;
+			k2 = Long.rotateLeft(k2, 33);
+			k2 *= C1;
+			h2 ^= k2;
+		case 8: k1 ^= (long) (data[tail + 7] & 0xff) << 56;
+		case 7: k1 ^= (long) (data[tail + 6] & 0xff) << 48;
+		case 6: k1 ^= (long) (data[tail + 5] & 0xff) << 40;
+		case 5: k1 ^= (long) (data[tail + 4] & 0xff) << 32;
+		case 4: k1 ^= (long) (data[tail + 3] & 0xff) << 24;
+		case 3: k1 ^= (long) (data[tail + 2] & 0xff) << 16;
+		case 2: k1 ^= (long) (data[tail + 1] & 0xff) << 8;
+		case 1:
+			k1 ^= (long) (data[tail] & 0xff);
+			k1 *= C1;
+			k1 = Long.rotateLeft(k1, 31);
+			k1 *= C2;
+			h1 ^= k1;
+		default:
+		}
+
+		h1 ^= len;
+		h2 ^= len;
+		h1 += h2;
+		h2 += h1;
+		h1 = fmix64(h1);
+		h2 = fmix64(h2);
+		h1 += h2;
+		h2 += h1;
+
+		putLongLittleEndian(out, 0, h1);
+		putLongLittleEndian(out, 8, h2);
+	}
+
+	private static long fmix64(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+
+	private static long getLongLittleEndian(byte[] b, int offset) {
+		long value = 0;
+		for (int i = 7; i >= 0; i--) {
+			value = (value << 8) | (b[offset + i] & 0xff);
+		}
+		return value;
+	}
+
+	private static void putLongLittleEndian(byte[] b, int offset, long value) {
+		for (int i = 0; i < 8; i++) {
+			b[offset + i] = (byte) (value >>> (8 * i));
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package com.i4hq.flame.mongo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.bson.Document;
+
+import com.i4hq.flame.mongo.AttributeIdGenerator.IdFormat;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoClient;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertManyOptions;
+
+/**
+ * Rewrites the _id of attribute documents into another ID format. 
+ * Since an _id cannot be updated, each document is copied with the new _id and then the original is deleted.
+ * An original is only deleted if its copy was inserted or already exists, so the migration can be interrupted and run again.
+ * @author rmoten
+ *
+ */
+class AttributeIdMigration {
+
+	/**
+	 * The error code of a duplicate key.
+	 */
+	private static final int DUPLICATE_KEY = 11000;
+
+	private final IdFormat targetFormat;
+	private final int batchSize;
+
+	AttributeIdMigration(IdFormat targetFormat) {
+		this.targetFormat = targetFormat;
+		this.batchSize = Integer.parseInt(System.getProperty("MONGO_FLAME_ID_MIGRATION_BATCH_SIZE", "1000"));
+	}
+
+	/**
+	 * @param collection
+	 * @return Returns the number of documents whose ID was rewritten.
+	 */
+	long migrate(MongoCollection<Document> collection) {
+		long count = 0;
+		List<Document> copies = new ArrayList<>(batchSize);
+		List<Object> originalIds = new ArrayList<>(batchSize);
+		try (MongoCursor<Document> cursor = collection.find().iterator()) {
+			while (cursor.hasNext()) {
+				Document doc = cursor.next();
+				Object id = doc.get(MongoFlameDAO.ID_FIELD);
+				Object newId = AttributeIdGenerator.convert(id, targetFormat);
+				if (newId == null || newId.equals(id)) {
+					// Either not an attribute ID, such as the entity ID of a geo document, or already in the target format.
+					continue;
+				}
+				Document copy = new Document(doc);
+				copy.put(MongoFlameDAO.ID_FIELD, newId);
+				copies.add(copy);
+				originalIds.add(id);
+				if (copies.size() >= batchSize) {
+					count += replace(collection, copies, originalIds);
+					copies.clear();
+					originalIds.clear();
+				}
+			}
+		}
+		if (!copies.isEmpty()) {
+			count += replace(collection, copies, originalIds);
+		}
+		MongoFlameDAO.logger.info("Migrated {} IDs of {} to {}", count, collection.getNamespace(), targetFormat);
+		return count;
+	}
+
+	private long replace(MongoCollection<Document> collection, List<Document> copies, List<Object> originalIds) {
+		Set<Integer> failed = new HashSet<>();
+		try {
+			collection.insertMany(copies, new InsertManyOptions().ordered(false));
+		} catch (MongoBulkWriteException ex) {
+			for (BulkWriteError error : ex.getWriteErrors()) {
+				if (error.getCode() != DUPLICATE_KEY) {
+					failed.add(error.getIndex());
+					MongoFlameDAO.logger.warn("Unable to migrate {}: {}", originalIds.get(error.getIndex()), error.getMessage());
+				}
+			}
+		}
+		List<Object> idsToDelete = new ArrayList<>(originalIds.size());
+		for (int i = 0; i < originalIds.size(); i++) {
+			if (!failed.contains(i)) {
+				idsToDelete.add(originalIds.get(i));
+			}
+		}
+		if (!idsToDelete.isEmpty()) {
+			collection.bulkWrite(Collections.singletonList(new DeleteManyModel<Document>(Filters.in(MongoFlameDAO.ID_FIELD, idsToDelete))));
+		}
+		return idsToDelete.size();
+	}
+
+	/**
+	 * Migrate the attribute IDs of the database given by the mongo.host and mongo.db system properties.
+	 * @param args - the target format: LEGACY_HEX, HEX or BINARY.
+	 */
+	public static void main(String[] args) {
+		if (args.length != 1) {
+			System.err.println("usage: AttributeIdMigration LEGACY_HEX|HEX|BINARY");
+			System.exit(1);
+		}
+		AttributeIdMigration migration = new AttributeIdMigration(IdFormat.valueOf(args[0]));
+		MongoClient mongoClient = new MongoClient(System.getProperty("mongo.host", "localhost"));
+		try {
+			String dbName = System.getProperty("mongo.db", "flame");
+			migration.migrate(mongoClient.getDatabase(dbName).getCollection("attributes"));
+			migration.migrate(mongoClient.getDatabase(dbName).getCollection("references"));
+		} finally {
+			mongoClient.close();
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package com.i4hq.flame.mongo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.Document;
+
+import com.i4hq.flame.core.MetadataItem;
+
+/**
+ * An attribute of an entity as it is written to the attributes, references or geos collection.
+ * Unlike a {@link Document}, it has a fixed set of fields and is encoded straight to BSON by {@link AttributeRecordCodec}.
+ * @author rmoten
+ *
+ */
+final class AttributeRecord {
+
+	/**
+	 * The collection the attribute is written to.
+	 */
+	enum RecordType {
+		REFERENCE,
+		GEO,
+		DEFAULT;
+	}
+
+	private final RecordType recordType;
+	private final String attributeName;
+	private final String type;
+	private Object id;
+	private String entityId;
+	private long timestamp;
+	/**
+	 * The name of the field holding the value: value, latitude or longitude.
+	 */
+	private String valueFieldName = MongoFlameDAO.VALUE_FIELD;
+	private Object value;
+	/**
+	 * The complete value of a string containing a space. Null otherwise.
+	 */
+	private String text;
+	/**
+	 * The complete value of a string that is too long to index. Null otherwise.
+	 */
+	private String longValue;
+	private final List<MetadataItem> metadata = new ArrayList<>();
+
+	AttributeRecord(RecordType recordType, String attributeName, String type) {
+		this.recordType = recordType;
+		this.attributeName = attributeName;
+		this.type = type;
+	}
+
+	RecordType getRecordType() {
+		return recordType;
+	}
+
+	String getAttributeName() {
+		return attributeName;
+	}
+
+	String getType() {
+		return type;
+	}
+
+	Object getId() {
+		return id;
+	}
+
+	void setId(Object id) {
+		this.id = id;
+	}
+
+	String getEntityId() {
+		return entityId;
+	}
+
+	void setEntityId(String entityId) {
+		this.entityId = entityId;
+	}
+
+	long getTimestamp() {
+		return timestamp;
+	}
+
+	void setTimestamp(long timestamp) {
+		this.timestamp = timestamp;
+	}
+
+	String getValueFieldName() {
+		return valueFieldName;
+	}
+
+	Object getValue() {
+		return value;
+	}
+
+	void setValue(String valueFieldName, Object value) {
+		this.valueFieldName = valueFieldName;
+		this.value = value;
+	}
+
+	String getText() {
+		return text;
+	}
+
+	void setText(String text) {
+		this.text = text;
+	}
+
+	String getLongValue() {
+		return longValue;
+	}
+
+	void setLongValue(String longValue) {
+		this.longValue = longValue;
+	}
+
+	List<MetadataItem> getMetadata() {
+		return metadata;
+	}
+
+	void addMetadata(MetadataItem item) {
+		metadata.add(item);
+	}
+
+	/**
+	 * @return Returns the estimated size in bytes of the encoded record.
+	 */
+	long estimateSize() {
+		long size = 4 + 1;
+		size += BsonSizeEstimator.estimateElement(MongoFlameDAO.ID_FIELD, id);
+		if (text != null) {
+			size += BsonSizeEstimator.estimateElement(MongoFlameDAO.TEXT_FIELD, text);
+		}
+		size += BsonSizeEstimator.estimateElement(valueFieldName, value);
+		if (longValue != null) {
+			size += BsonSizeEstimator.estimateElement(MongoFlameDAO.LONG_STRING_FIELD, longValue);
+		}
+		for (MetadataItem item : metadata) {
+			size += BsonSizeEstimator.estimateElement(item.getName(), item.getValue());
+		}
+		size += BsonSizeEstimator.estimateElement(MongoFlameDAO.ATTRIBUTE_NAME_FIELD, attributeName);
+		size += BsonSizeEstimator.estimateElement(MongoFlameDAO.TYPE_FIELD, type);
+		size += BsonSizeEstimator.estimateElement(MongoFlameDAO.ENTITY_ID_FIELD, entityId);
+		size += BsonSizeEstimator.estimateElement(MongoFlameDAO.TS_FIELD, timestamp);
+		return size;
+	}
+
+	/**
+	 * Geo attributes are upserted rather than inserted, so they are written as documents.
+	 * @return Returns the record as a document with the fields in the same order as the codec writes them.
+	 */
+	Document toDocument() {
+		Document doc = new Document(MongoFlameDAO.ID_FIELD, id);
+		if (text != null) {
+			doc.append(MongoFlameDAO.TEXT_FIELD, text);
+		}
+		doc.append(valueFieldName, value);
+		if (longValue != null) {
+			doc.append(MongoFlameDAO.LONG_STRING_FIELD, longValue);
+		}
+		for (MetadataItem item : metadata) {
+			doc.append(item.getName(), item.getValue());
+		}
+		doc.append(MongoFlameDAO.ATTRIBUTE_NAME_FIELD, attributeName);
+		doc.append(MongoFlameDAO.TYPE_FIELD, type);
+		doc.append(MongoFlameDAO.ENTITY_ID_FIELD, entityId);
+		doc.append(MongoFlameDAO.TS_FIELD, timestamp);
+		return doc;
+	}
+}
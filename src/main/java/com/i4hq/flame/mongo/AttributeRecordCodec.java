@@ -0,0 +1,170 @@
+package com.i4hq.flame.mongo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.BsonBinary;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.BsonTypeClassMap;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.types.Binary;
+
+import com.i4hq.flame.core.MetadataItem;
+
+/**
+ * Encodes an {@link AttributeRecord} straight into the BSON output buffer of the driver, without building an intermediate document.
+ * Decoding reads the document back into a record. The collection is not stored, so a record with a latitude or longitude is decoded as a geo record
+ * and any other as a default record.
+ * @author rmoten
+ *
+ */
+final class AttributeRecordCodec implements Codec<AttributeRecord> {
+
+	private static final BsonTypeClassMap bsonTypeClassMap = new BsonTypeClassMap();
+
+	/**
+	 * Used to encode values of types that are not written directly.
+	 */
+	private final CodecRegistry registry;
+
+	AttributeRecordCodec(CodecRegistry registry) {
+		this.registry = registry;
+	}
+
+	@Override
+	public void encode(BsonWriter writer, AttributeRecord record, EncoderContext encoderContext) {
+		writer.writeStartDocument();
+		writer.writeName(MongoFlameDAO.ID_FIELD);
+		writeValue(writer, record.getId(), encoderContext);
+		if (record.getText() != null) {
+			writer.writeString(MongoFlameDAO.TEXT_FIELD, record.getText());
+		}
+		writer.writeName(record.getValueFieldName());
+		writeValue(writer, record.getValue(), encoderContext);
+		if (record.getLongValue() != null) {
+			writer.writeString(MongoFlameDAO.LONG_STRING_FIELD, record.getLongValue());
+		}
+		for (MetadataItem item : record.getMetadata()) {
+			writer.writeName(item.getName());
+			writeValue(writer, item.getValue(), encoderContext);
+		}
+		writer.writeString(MongoFlameDAO.ATTRIBUTE_NAME_FIELD, record.getAttributeName());
+		writer.writeString(MongoFlameDAO.TYPE_FIELD, record.getType());
+		writer.writeString(MongoFlameDAO.ENTITY_ID_FIELD, record.getEntityId());
+		writer.writeInt64(MongoFlameDAO.TS_FIELD, record.getTimestamp());
+		writer.writeEndDocument();
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private void writeValue(BsonWriter writer, Object value, EncoderContext encoderContext) {
+		if (value == null) {
+			writer.writeNull();
+		} else if (value instanceof String) {
+			writer.writeString((String) value);
+		} else if (value instanceof Double) {
+			writer.writeDouble((Double) value);
+		} else if (value instanceof Boolean) {
+			writer.writeBoolean((Boolean) value);
+		} else if (value instanceof Integer) {
+			writer.writeInt32((Integer) value);
+		} else if (value instanceof Long) {
+			writer.writeInt64((Long) value);
+		} else if (value instanceof Binary) {
+			Binary binary = (Binary) value;
+			writer.writeBinaryData(new BsonBinary(binary.getType(), binary.getData()));
+		} else {
+			Codec codec = registry.get(value.getClass());
+			encoderContext.encodeWithChildContext(codec, writer, value);
+		}
+	}
+
+	@Override
+	public Class<AttributeRecord> getEncoderClass() {
+		return AttributeRecord.class;
+	}
+
+	@Override
+	public AttributeRecord decode(BsonReader reader, DecoderContext decoderContext) {
+		Object id = null;
+		String text = null;
+		String valueFieldName = MongoFlameDAO.VALUE_FIELD;
+		Object value = null;
+		String longValue = null;
+		String attributeName = null;
+		String type = null;
+		String entityId = null;
+		long timestamp = 0;
+		List<MetadataItem> metadata = new ArrayList<>();
+
+		reader.readStartDocument();
+		while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+			String fieldName = reader.readName();
+			Object fieldValue = readValue(reader, decoderContext);
+			if (fieldName.equals(MongoFlameDAO.ID_FIELD)) {
+				id = fieldValue;
+			} else if (fieldName.equals(MongoFlameDAO.VALUE_FIELD) || fieldName.equals(MongoFlameDAO.LATITUDE_FIELD)
+					|| fieldName.equals(MongoFlameDAO.LONGITUDE_FIELD)) {
+				valueFieldName = fieldName;
+				value = fieldValue;
+			} else if (fieldName.equals(MongoFlameDAO.TEXT_FIELD)) {
+				text = toString(fieldValue);
+			} else if (fieldName.equals(MongoFlameDAO.LONG_STRING_FIELD)) {
+				longValue = toString(fieldValue);
+			} else if (fieldName.equals(MongoFlameDAO.ATTRIBUTE_NAME_FIELD)) {
+				attributeName = toString(fieldValue);
+			} else if (fieldName.equals(MongoFlameDAO.TYPE_FIELD)) {
+				type = toString(fieldValue);
+			} else if (fieldName.equals(MongoFlameDAO.ENTITY_ID_FIELD)) {
+				entityId = toString(fieldValue);
+			} else if (fieldName.equals(MongoFlameDAO.TS_FIELD) && fieldValue instanceof Number) {
+				timestamp = ((Number) fieldValue).longValue();
+			} else {
+				metadata.add(new MetadataItem(fieldName, toString(fieldValue)));
+			}
+		}
+		reader.readEndDocument();
+
+		boolean geo = valueFieldName.equals(MongoFlameDAO.LATITUDE_FIELD) || valueFieldName.equals(MongoFlameDAO.LONGITUDE_FIELD);
+		AttributeRecord record = new AttributeRecord(geo ? AttributeRecord.RecordType.GEO : AttributeRecord.RecordType.DEFAULT, attributeName, type);
+		record.setId(id);
+		record.setText(text);
+		record.setValue(valueFieldName, value);
+		record.setLongValue(longValue);
+		record.setEntityId(entityId);
+		record.setTimestamp(timestamp);
+		for (MetadataItem item : metadata) {
+			record.addMetadata(item);
+		}
+		return record;
+	}
+
+	private Object readValue(BsonReader reader, DecoderContext decoderContext) {
+		BsonType bsonType = reader.getCurrentBsonType();
+		switch (bsonType) {
+		case STRING:
+			return reader.readString();
+		case DOUBLE:
+			return reader.readDouble();
+		case INT32:
+			return reader.readInt32();
+		case INT64:
+			return reader.readInt64();
+		case BOOLEAN:
+			return reader.readBoolean();
+		case NULL:
+			reader.readNull();
+			return null;
+		default:
+			return registry.get(bsonTypeClassMap.get(bsonType)).decode(reader, decoderContext);
+		}
+	}
+
+	private static String toString(Object value) {
+		return value == null ? null : value.toString();
+	}
+}
@@ -0,0 +1,394 @@
+package com.i4hq.flame.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+
+/**
+ * Counts of the saved documents: the attributes per attribute name and, optionally, per value, and the entities per type.
+ * The counts are incremented from the bulk writers as documents are inserted, and the increments are added to the statistics collection when persisted,
+ * so several DAOs writing the same database add up their counts. They are loaded from the collection at startup.
+ * The counts are estimates for planning queries. They are not decremented and do not include documents saved before the statistics were kept,
+ * unless they are rebuilt.
+ * <p>
+ * The counts per value are kept for at most a maximum number of values of each attribute, keyed by the string form of the value.
+ * Once an attribute has more values, the counts of its values are incomplete and the estimate of a value not counted is the count of the attribute.
+ * @author rmoten
+ *
+ */
+public final class AttributeStatistics {
+
+	static final String COUNT_FIELD = "count";
+	static final String COMPLETE_FIELD = "complete";
+
+	/**
+	 * Longer values are not counted, since they are rarely queried for equality.
+	 */
+	private static final int MAX_VALUE_LENGTH = 64;
+
+	/**
+	 * A count and the part of it not yet persisted.
+	 */
+	private static final class Counter {
+		private final AtomicLong total = new AtomicLong();
+		private final AtomicLong pending = new AtomicLong();
+
+		private void increment() {
+			total.incrementAndGet();
+			pending.incrementAndGet();
+		}
+	}
+
+	/**
+	 * The counts of the values of an attribute.
+	 */
+	private static final class ValueCounts {
+		private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
+		/**
+		 * False once a value was not counted.
+		 */
+		private volatile boolean complete = true;
+		private volatile boolean completePersisted = true;
+	}
+
+	private final MongoCollection<Document> collection;
+	private final int maxValuesPerAttribute;
+	private final ConcurrentHashMap<String, Counter> attributeCounts = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, ValueCounts> valueCounts = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Counter> typeCounts = new ConcurrentHashMap<>();
+
+	/**
+	 * @param collection - the statistics collection. May be null to keep the counts in memory only.
+	 * @param maxValuesPerAttribute - the maximum number of values counted per attribute. If 0, values are not counted.
+	 */
+	AttributeStatistics(MongoCollection<Document> collection, int maxValuesPerAttribute) {
+		this.collection = collection;
+		this.maxValuesPerAttribute = maxValuesPerAttribute;
+	}
+
+	/**
+	 * Count an attribute document that was inserted.
+	 * @param attributeName
+	 * @param value
+	 */
+	void recordAttribute(String attributeName, Object value) {
+		getCounter(attributeCounts, attributeName).increment();
+		if (maxValuesPerAttribute <= 0) {
+			return;
+		}
+		ValueCounts values = getValueCounts(attributeName);
+		String key = value == null ? null : value.toString();
+		Counter counter = key == null ? null : values.counters.get(key);
+		if (counter == null) {
+			if (key == null || key.length() > MAX_VALUE_LENGTH || values.counters.size() >= maxValuesPerAttribute) {
+				markIncomplete(values);
+				return;
+			}
+			counter = getCounter(values.counters, key);
+		}
+		counter.increment();
+	}
+
+	/**
+	 * Count an entity document that was inserted.
+	 * @param typeHash
+	 */
+	void recordEntity(String typeHash) {
+		if (typeHash != null) {
+			getCounter(typeCounts, typeHash).increment();
+		}
+	}
+
+	private static Counter getCounter(ConcurrentHashMap<String, Counter> counters, String key) {
+		Counter counter = counters.get(key);
+		if (counter == null) {
+			counter = new Counter();
+			Counter existing = counters.putIfAbsent(key, counter);
+			if (existing != null) {
+				counter = existing;
+			}
+		}
+		return counter;
+	}
+
+	private static void markIncomplete(ValueCounts values) {
+		if (values.complete) {
+			values.complete = false;
+			values.completePersisted = false;
+		}
+	}
+
+	/**
+	 * @param attributeName
+	 * @return Returns the number of attribute documents with the name.
+	 */
+	public long getAttributeCount(String attributeName) {
+		Counter counter = attributeCounts.get(attributeName);
+		return counter == null ? 0 : counter.total.get();
+	}
+
+	/**
+	 * @param attributeName
+	 * @param value - the string form of the value.
+	 * @return Returns the estimated number of attribute documents with the name and value.
+	 * If the value is not counted, and the values of the attribute are incomplete, it is the number of documents with the name.
+	 */
+	public long estimateValueCount(String attributeName, String value) {
+		ValueCounts values = valueCounts.get(attributeName);
+		if (values != null) {
+			Counter counter = values.counters.get(value);
+			if (counter != null) {
+				return counter.total.get();
+			}
+			if (values.complete) {
+				return 0;
+			}
+		}
+		return getAttributeCount(attributeName);
+	}
+
+	/**
+	 * @param typeHash
+	 * @return Returns the number of entity documents of the type.
+	 */
+	public long getTypeCount(String typeHash) {
+		Counter counter = typeCounts.get(typeHash);
+		return counter == null ? 0 : counter.total.get();
+	}
+
+	/**
+	 * @return Returns true if and only if nothing is counted.
+	 */
+	public boolean isEmpty() {
+		return attributeCounts.isEmpty() && typeCounts.isEmpty();
+	}
+
+	/**
+	 * Load the counts from the statistics collection, adding them to the counts in memory.
+	 * @return Returns the number of counts loaded.
+	 */
+	int warm() {
+		int count = 0;
+		try (MongoCursor<Document> cursor = collection.find().iterator()) {
+			while (cursor.hasNext()) {
+				Document doc = cursor.next();
+				Object key = doc.get(MongoFlameDAO.ID_FIELD);
+				if (!(key instanceof Document)) {
+					continue;
+				}
+				Document id = (Document) key;
+				// The document that marks the values of an attribute incomplete may have been written before its count.
+				Object countValue = doc.get(COUNT_FIELD);
+				long total = countValue instanceof Number ? ((Number) countValue).longValue() : 0;
+				String attributeName = id.getString(MongoFlameDAO.ATTRIBUTE_NAME_FIELD);
+				String typeHash = id.getString(MongoFlameDAO.TYPE_FIELD);
+				if (typeHash != null) {
+					getCounter(typeCounts, typeHash).total.addAndGet(total);
+				} else if (attributeName != null && id.containsKey(MongoFlameDAO.VALUE_FIELD)) {
+					ValueCounts values = getValueCounts(attributeName);
+					getCounter(values.counters, id.getString(MongoFlameDAO.VALUE_FIELD)).total.addAndGet(total);
+				} else if (attributeName != null) {
+					getCounter(attributeCounts, attributeName).total.addAndGet(total);
+					if (Boolean.FALSE.equals(doc.getBoolean(COMPLETE_FIELD))) {
+						getValueCounts(attributeName).complete = false;
+					}
+				} else {
+					continue;
+				}
+				count++;
+			}
+		}
+		// Attributes whose values are not in the collection had no values counted, so their value counts are not known to be complete.
+		for (String attributeName : attributeCounts.keySet()) {
+			if (!valueCounts.containsKey(attributeName)) {
+				getValueCounts(attributeName).complete = false;
+			}
+		}
+		MongoFlameDAO.logger.info("Loaded {} statistics", count);
+		return count;
+	}
+
+	private ValueCounts getValueCounts(String attributeName) {
+		ValueCounts values = valueCounts.get(attributeName);
+		if (values == null) {
+			values = new ValueCounts();
+			ValueCounts existing = valueCounts.putIfAbsent(attributeName, values);
+			if (existing != null) {
+				values = existing;
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Add the counts not yet persisted to the statistics collection.
+	 * @return Returns the number of statistics documents updated.
+	 */
+	int persist() {
+		if (collection == null) {
+			return 0;
+		}
+		List<WriteModel<Document>> updates = new ArrayList<>();
+		for (Entry<String, Counter> entry : attributeCounts.entrySet()) {
+			addIncrement(updates, new Document(MongoFlameDAO.ATTRIBUTE_NAME_FIELD, entry.getKey()), entry.getValue());
+		}
+		for (Entry<String, ValueCounts> entry : valueCounts.entrySet()) {
+			ValueCounts values = entry.getValue();
+			for (Entry<String, Counter> valueEntry : values.counters.entrySet()) {
+				addIncrement(updates, new Document(MongoFlameDAO.ATTRIBUTE_NAME_FIELD, entry.getKey()).append(MongoFlameDAO.VALUE_FIELD, valueEntry.getKey()),
+						valueEntry.getValue());
+			}
+			if (!values.completePersisted) {
+				values.completePersisted = true;
+				updates.add(new UpdateOneModel<Document>(Filters.eq(MongoFlameDAO.ID_FIELD, new Document(MongoFlameDAO.ATTRIBUTE_NAME_FIELD, entry.getKey())),
+						Updates.set(COMPLETE_FIELD, false), new UpdateOptions().upsert(true)));
+			}
+		}
+		for (Entry<String, Counter> entry : typeCounts.entrySet()) {
+			addIncrement(updates, new Document(MongoFlameDAO.TYPE_FIELD, entry.getKey()), entry.getValue());
+		}
+		if (updates.isEmpty()) {
+			return 0;
+		}
+		collection.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+		MongoFlameDAO.logger.debug("Persisted {} statistics", updates.size());
+		return updates.size();
+	}
+
+	private void addIncrement(List<WriteModel<Document>> updates, Document id, Counter counter) {
+		long delta = counter.pending.getAndSet(0);
+		if (delta != 0) {
+			updates.add(new UpdateOneModel<Document>(Filters.eq(MongoFlameDAO.ID_FIELD, id), Updates.inc(COUNT_FIELD, delta), new UpdateOptions().upsert(true)));
+		}
+	}
+
+	/**
+	 * Recount the attributes per name and value and the entities per type from the collections and replace the statistics with the new counts.
+	 * The values are recounted up to the maximum number of values of each attribute. Documents inserted while the counts are rebuilt may be missed.
+	 * <p>
+	 * The new counts are set in the statistics collection, one document at a time, so increments that other DAOs persist afterwards are kept.
+	 * An increment persisted to a count while it is recounted is overwritten. The counts of names, values and types that have no documents left are not removed.
+	 * @param attributesCollection
+	 * @param entitiesCollection
+	 */
+	void rebuild(MongoCollection<Document> attributesCollection, MongoCollection<Document> entitiesCollection) {
+		Map<String, Long> newAttributeCounts = new HashMap<>();
+		Map<String, ValueCounts> newValueCounts = new HashMap<>();
+		if (maxValuesPerAttribute <= 0) {
+			newAttributeCounts = countGroups(attributesCollection, MongoFlameDAO.ATTRIBUTE_NAME_FIELD);
+		} else {
+			countValues(attributesCollection, newAttributeCounts, newValueCounts);
+		}
+		Map<String, Long> newTypeCounts = countGroups(entitiesCollection, MongoFlameDAO.TYPE_FIELD);
+		attributeCounts.clear();
+		valueCounts.clear();
+		typeCounts.clear();
+		List<WriteModel<Document>> updates = new ArrayList<>();
+		for (Entry<String, Long> entry : newAttributeCounts.entrySet()) {
+			getCounter(attributeCounts, entry.getKey()).total.set(entry.getValue());
+			ValueCounts values = newValueCounts.get(entry.getKey());
+			// Without values, the value counts are not known to be complete.
+			boolean complete = values != null && values.complete;
+			updates.add(new UpdateOneModel<Document>(Filters.eq(MongoFlameDAO.ID_FIELD, new Document(MongoFlameDAO.ATTRIBUTE_NAME_FIELD, entry.getKey())),
+					Updates.combine(Updates.set(COUNT_FIELD, entry.getValue()), Updates.set(COMPLETE_FIELD, complete)), new UpdateOptions().upsert(true)));
+			if (values == null) {
+				getValueCounts(entry.getKey()).complete = false;
+				continue;
+			}
+			values.completePersisted = true;
+			valueCounts.put(entry.getKey(), values);
+			for (Entry<String, Counter> valueEntry : values.counters.entrySet()) {
+				addSet(updates, new Document(MongoFlameDAO.ATTRIBUTE_NAME_FIELD, entry.getKey()).append(MongoFlameDAO.VALUE_FIELD, valueEntry.getKey()),
+						valueEntry.getValue().total.get());
+			}
+		}
+		for (Entry<String, Long> entry : newTypeCounts.entrySet()) {
+			getCounter(typeCounts, entry.getKey()).total.set(entry.getValue());
+			addSet(updates, new Document(MongoFlameDAO.TYPE_FIELD, entry.getKey()), entry.getValue());
+		}
+		if (collection != null && !updates.isEmpty()) {
+			collection.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+		}
+		MongoFlameDAO.logger.info("Rebuilt the statistics of {} attribute names and {} types", newAttributeCounts.size(), newTypeCounts.size());
+	}
+
+	private static void addSet(List<WriteModel<Document>> updates, Document id, long count) {
+		updates.add(new UpdateOneModel<Document>(Filters.eq(MongoFlameDAO.ID_FIELD, id), Updates.set(COUNT_FIELD, count), new UpdateOptions().upsert(true)));
+	}
+
+	/**
+	 * Count the attribute documents per name and value, keeping the counts of at most the maximum number of values of each attribute.
+	 * Values are keyed by their string form, as they are when recorded, so values of different types with the same string form are counted together.
+	 * @param attributesCollection
+	 * @param newAttributeCounts - receives the counts per name.
+	 * @param newValueCounts - receives the counts per value.
+	 */
+	private void countValues(MongoCollection<Document> attributesCollection, Map<String, Long> newAttributeCounts, Map<String, ValueCounts> newValueCounts) {
+		Document groupId = new Document("name", "$" + MongoFlameDAO.ATTRIBUTE_NAME_FIELD).append("value", "$" + MongoFlameDAO.VALUE_FIELD);
+		List<Bson> pipeline = Arrays.asList(Aggregates.group(groupId, Accumulators.sum(COUNT_FIELD, 1)));
+		try (MongoCursor<Document> cursor = attributesCollection.aggregate(pipeline).allowDiskUse(true).iterator()) {
+			while (cursor.hasNext()) {
+				Document doc = cursor.next();
+				Object key = doc.get(MongoFlameDAO.ID_FIELD);
+				if (!(key instanceof Document) || !(((Document) key).get("name") instanceof String)) {
+					continue;
+				}
+				String attributeName = ((Document) key).getString("name");
+				Object value = ((Document) key).get("value");
+				long total = ((Number) doc.get(COUNT_FIELD)).longValue();
+				Long attributeCount = newAttributeCounts.get(attributeName);
+				newAttributeCounts.put(attributeName, attributeCount == null ? total : attributeCount + total);
+
+				ValueCounts values = newValueCounts.get(attributeName);
+				if (values == null) {
+					values = new ValueCounts();
+					newValueCounts.put(attributeName, values);
+				}
+				String valueKey = value == null ? null : value.toString();
+				Counter counter = valueKey == null ? null : values.counters.get(valueKey);
+				if (counter == null) {
+					if (valueKey == null || valueKey.length() > MAX_VALUE_LENGTH || values.counters.size() >= maxValuesPerAttribute) {
+						markIncomplete(values);
+						continue;
+					}
+					counter = getCounter(values.counters, valueKey);
+				}
+				counter.total.addAndGet(total);
+			}
+		}
+	}
+
+	private static Map<String, Long> countGroups(MongoCollection<Document> collection, String fieldName) {
+		Map<String, Long> counts = new HashMap<>();
+		List<Bson> pipeline = Arrays.asList(Aggregates.group("$" + fieldName, Accumulators.sum(COUNT_FIELD, 1)));
+		try (MongoCursor<Document> cursor = collection.aggregate(pipeline).allowDiskUse(true).iterator()) {
+			while (cursor.hasNext()) {
+				Document doc = cursor.next();
+				Object key = doc.get(MongoFlameDAO.ID_FIELD);
+				if (key instanceof String) {
+					counts.put((String) key, ((Number) doc.get(COUNT_FIELD)).longValue());
+				}
+			}
+		}
+		return counts;
+	}
+}
@@ -0,0 +1,118 @@
+package com.i4hq.flame.mongo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.conversions.Bson;
+
+import com.i4hq.flame.core.AttributeType;
+import com.mongodb.client.model.Filters;
+
+/**
+ * A condition on the values, or the timestamps, of an attribute, such as a range or a set of values.
+ * Values are given as strings and converted to the Java type of the attribute type, as they are when saved, so numbers are compared as numbers.
+ * The conditions can be combined, for example a value range of the attributes saved within a time range. 
+ * Each resulting query is a range scan of the attribute_name and value, or attribute_name and ts, index.
+ * @author rmoten
+ *
+ */
+public final class AttributeValueRange {
+
+	private final String attributeName;
+	private final AttributeType attributeType;
+	private final List<Bson> valueConditions = new ArrayList<>();
+	private final List<Bson> timestampConditions = new ArrayList<>();
+
+	/**
+	 * @param attributeName
+	 * @param attributeType - the type of the attribute, which determines how the values are converted.
+	 */
+	public AttributeValueRange(String attributeName, AttributeType attributeType) {
+		this.attributeName = attributeName;
+		this.attributeType = attributeType;
+	}
+
+	public AttributeValueRange gt(String value) {
+		valueConditions.add(Filters.gt(MongoFlameDAO.VALUE_FIELD, convert(value)));
+		return this;
+	}
+
+	public AttributeValueRange gte(String value) {
+		valueConditions.add(Filters.gte(MongoFlameDAO.VALUE_FIELD, convert(value)));
+		return this;
+	}
+
+	public AttributeValueRange lt(String value) {
+		valueConditions.add(Filters.lt(MongoFlameDAO.VALUE_FIELD, convert(value)));
+		return this;
+	}
+
+	public AttributeValueRange lte(String value) {
+		valueConditions.add(Filters.lte(MongoFlameDAO.VALUE_FIELD, convert(value)));
+		return this;
+	}
+
+	/**
+	 * @param lowerBound - inclusive.
+	 * @param upperBound - inclusive.
+	 * @return
+	 */
+	public AttributeValueRange between(String lowerBound, String upperBound) {
+		return gte(lowerBound).lte(upperBound);
+	}
+
+	/**
+	 * @param values - the value must be one of these.
+	 * @return
+	 */
+	public AttributeValueRange in(String... values) {
+		List<Object> convertedValues = new ArrayList<>();
+		for (String value : values) {
+			convertedValues.add(convert(value));
+		}
+		valueConditions.add(Filters.in(MongoFlameDAO.VALUE_FIELD, convertedValues));
+		return this;
+	}
+
+	/**
+	 * @param timestamp - the earliest time, in milliseconds, the attribute was saved. Inclusive.
+	 * @return
+	 */
+	public AttributeValueRange savedSince(long timestamp) {
+		timestampConditions.add(Filters.gte(MongoFlameDAO.TS_FIELD, timestamp));
+		return this;
+	}
+
+	/**
+	 * @param timestamp - the time, in milliseconds, before which the attribute was saved. Exclusive.
+	 * @return
+	 */
+	public AttributeValueRange savedBefore(long timestamp) {
+		timestampConditions.add(Filters.lt(MongoFlameDAO.TS_FIELD, timestamp));
+		return this;
+	}
+
+	public String getAttributeName() {
+		return attributeName;
+	}
+
+	/**
+	 * @return Returns the filter on the attributes collection for the attributes that meet all conditions.
+	 */
+	Bson toFilter() {
+		List<Bson> filters = new ArrayList<>();
+		filters.add(Filters.eq(MongoFlameDAO.ATTRIBUTE_NAME_FIELD, attributeName));
+		filters.addAll(valueConditions);
+		filters.addAll(timestampConditions);
+		return Filters.and(filters);
+	}
+
+	private Object convert(String value) {
+		return attributeType.convertToJava(value);
+	}
+
+	@Override
+	public String toString() {
+		return attributeName + " " + valueConditions + " " + timestampConditions;
+	}
+}
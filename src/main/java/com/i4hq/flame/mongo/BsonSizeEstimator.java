@@ -0,0 +1,124 @@
+package com.i4hq.flame.mongo;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+
+/**
+ * Estimates the size of the BSON encoding of a document without encoding it.
+ * Strings are measured by the length of their UTF-8 encoding. Values of types not handled explicitly are given a fixed size.
+ * @author rmoten
+ *
+ */
+final class BsonSizeEstimator {
+
+	/**
+	 * The size used for values of types that are not explicitly handled.
+	 */
+	private static final int DEFAULT_VALUE_SIZE = 16;
+
+	private BsonSizeEstimator() {
+	}
+
+	/**
+	 * @param doc
+	 * @return Returns the estimated size in bytes of the encoded document.
+	 */
+	static long estimate(Map<String, ?> doc) {
+		// int32 length + fields + terminating null byte
+		long size = 4 + 1;
+		for (Entry<String, ?> field : doc.entrySet()) {
+			size += estimateElement(field.getKey(), field.getValue());
+		}
+		return size;
+	}
+
+	/**
+	 * @param name
+	 * @param value
+	 * @return Returns the estimated size of a field: type byte + cstring name + value.
+	 */
+	static long estimateElement(String name, Object value) {
+		return 1 + utf8Length(name) + 1 + estimateValue(value);
+	}
+
+	@SuppressWarnings("unchecked")
+	static long estimateValue(Object value) {
+		if (value == null) {
+			return 0;
+		}
+		if (value instanceof Boolean) {
+			return 1;
+		}
+		if (value instanceof String) {
+			return 4 + utf8Length((String) value) + 1;
+		}
+		if (value instanceof Integer) {
+			return 4;
+		}
+		if (value instanceof Long || value instanceof Double || value instanceof Date) {
+			return 8;
+		}
+		if (value instanceof ObjectId) {
+			return 12;
+		}
+		if (value instanceof byte[]) {
+			return 4 + 1 + ((byte[]) value).length;
+		}
+		if (value instanceof Binary) {
+			return 4 + 1 + ((Binary) value).length();
+		}
+		if (value instanceof Map) {
+			return estimate((Map<String, ?>) value);
+		}
+		if (value instanceof Iterable) {
+			long size = 4 + 1;
+			int i = 0;
+			for (Object item : (Iterable<?>) value) {
+				size += 1 + stringSize(i++) + 1 + estimateValue(item);
+			}
+			return size;
+		}
+		return DEFAULT_VALUE_SIZE;
+	}
+
+	/**
+	 * @param s
+	 * @return Returns the number of bytes of the UTF-8 encoding of the string.
+	 */
+	static int utf8Length(String s) {
+		int len = s.length();
+		int bytes = len;
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			if (c >= 0x80) {
+				if (c < 0x800) {
+					bytes += 1;
+				} else if (Character.isHighSurrogate(c)) {
+					// A surrogate pair is encoded in 4 bytes.
+					bytes += 2;
+					i++;
+				} else {
+					bytes += 2;
+				}
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * @param i
+	 * @return Returns the number of digits of the array index, which is used as the field name of array elements.
+	 */
+	private static int stringSize(int i) {
+		int digits = 1;
+		while (i >= 10) {
+			i /= 10;
+			digits++;
+		}
+		return digits;
+	}
+}
@@ -1,85 +1,127 @@
 package com.i4hq.flame.mongo;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-
-import org.bson.Document;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
 
 import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.model.InsertManyOptions;
 
-public class BulkInsert implements BulkOperation{
+public class BulkInsert<TDocument> extends AbstractBulkOperation<TDocument> {
 
-	private long lastWrite = System.currentTimeMillis();
-	private long waitTimeBeforeFlush;
-	/**
-	 * The minimum number of documents to keep in memory before sending to the server.
-	 */
-	private int bufferWriteThreshold;
+	private static final int DUPLICATE_KEY_ERROR = 11000;
 
 	private final InsertManyOptions insertManyOptions = new InsertManyOptions().ordered(false);
-	private List<Document> buffer = new LinkedList<>();
-	private final MongoCollection<Document> collection;
+	private final MongoCollection<TDocument> collection;
+	private final ToLongFunction<? super TDocument> sizeEstimator;
+	/**
+	 * Receives the documents of each batch that were inserted. May be null.
+	 */
+	private volatile Consumer<List<TDocument>> insertListener;
+	/**
+	 * If true, the insert listener also receives the documents that failed because they already exist.
+	 */
+	private volatile boolean notifyDuplicates;
 
-	public BulkInsert(MongoCollection<Document> collection) {
+	/**
+	 * @param collection
+	 * @param sizeEstimator - estimates the size in bytes of an encoded document.
+	 */
+	public BulkInsert(MongoCollection<TDocument> collection, ToLongFunction<? super TDocument> sizeEstimator) {
+		super(collection.getNamespace().getCollectionName());
 		this.collection = collection;
-		setBufferWriteThreshold(Integer.parseInt(System.getProperty("MONGO_FLAME_BULK_WRITE_MIN_THRESHOLD", "1000")));
-		MongoFlameDAO.logger.info("MONGO_FLAME_BULK_WRITE_WAITTIME = {}", waitTimeBeforeFlush);
-		MongoFlameDAO.logger.info("MONGO_FLAME_BULK_WRITE_MIN_THRESHOLD = {}", bufferWriteThreshold);
+		this.sizeEstimator = sizeEstimator;
 	}
 
 	/**
-	 * @param collection
 	 * @param docs
 	 * @return Returns true if and only if it performed the write.
 	 */
-	public boolean write(List<Document> docs) {
-		buffer.addAll(docs);
-		return insertMany();
+	public boolean write(List<TDocument> docs) {
+		return addAll(docs);
+	}
 
+	/**
+	 * @param doc
+	 * @return Returns true if and only if it performed the write.
+	 */
+	public boolean write(TDocument doc) {
+		return add(doc);
 	}
 
-	private boolean insertMany() {
-		if (buffer.size() > bufferWriteThreshold || System.currentTimeMillis() - lastWrite > waitTimeBeforeFlush){
-			flush(); 
-			buffer = new LinkedList<>();
-			lastWrite = System.currentTimeMillis();
-			return true;
-		}
-		return false;
+	/**
+	 * @param insertListener - called after each batch with the documents that were inserted, leaving out those that failed, such as duplicates. 
+	 * It is called on the thread that wrote the batch. If null, no one is notified.
+	 */
+	public void setInsertListener(Consumer<List<TDocument>> insertListener) {
+		setInsertListener(insertListener, false);
 	}
 
+	/**
+	 * @param insertListener - called after each batch with the documents that were inserted, see {@link #setInsertListener(Consumer)}.
+	 * @param notifyDuplicates - if true, the documents that failed because a document with the same key exists are passed as well, 
+	 * for listeners that only care that the documents are in the collection.
+	 */
+	public void setInsertListener(Consumer<List<TDocument>> insertListener, boolean notifyDuplicates) {
+		this.notifyDuplicates = notifyDuplicates;
+		this.insertListener = insertListener;
+	}
 
-	public void flush() {
+	@Override
+	protected void writeBatch(List<TDocument> docs) {
+		final Consumer<List<TDocument>> listener = insertListener;
 		try {
-			if (buffer.size() > 0) {
-				collection.insertMany(buffer, insertManyOptions);
-			}
+			collection.insertMany(docs, insertManyOptions);
 		} catch (MongoBulkWriteException ex) {
 			MongoFlameDAO.logger.debug(ex.getMessage()); 
+			if (listener != null) {
+				listener.accept(removeFailed(docs, ex.getWriteErrors()));
+			}
+			return;
+		}
+		if (listener != null) {
+			listener.accept(docs);
 		}
 	}
 
-	@Override
-	protected void finalize() throws Throwable {
-		close();
-	}
-
-	public void setBufferWriteThreshold(int bufferWriteThreshold) {
-		this.bufferWriteThreshold = bufferWriteThreshold;
-		waitTimeBeforeFlush = this.bufferWriteThreshold + (long) (this.bufferWriteThreshold * 0.10);
+	/**
+	 * @param docs
+	 * @param writeErrors
+	 * @return Returns the documents of the batch that were written despite the errors, and the duplicates if they are to be notified. 
+	 * The insert is unordered, so only the documents in error failed.
+	 */
+	private List<TDocument> removeFailed(List<TDocument> docs, List<BulkWriteError> writeErrors) {
+		Set<Integer> failed = new HashSet<>();
+		for (BulkWriteError error : writeErrors) {
+			if (!(notifyDuplicates && error.getCode() == DUPLICATE_KEY_ERROR)) {
+				failed.add(error.getIndex());
+			}
+		}
+		List<TDocument> inserted = new ArrayList<>(docs.size());
+		for (int i = 0; i < docs.size(); i++) {
+			if (!failed.contains(i)) {
+				inserted.add(docs.get(i));
+			}
+		}
+		return inserted;
 	}
 
-	public boolean write(Document doc) {
-		buffer.add(doc);
-		return insertMany();
-
+	@Override
+	protected long estimateSize(TDocument doc) {
+		return sizeEstimator.applyAsLong(doc);
 	}
 
-	public void close() {
-		flush();
-
+	/**
+	 * Fixes the write threshold, which turns off adaptive tuning.
+	 * @see com.i4hq.flame.mongo.BulkOperation#setBufferWriteThreshold(int)
+	 */
+	public void setBufferWriteThreshold(int bufferWriteThreshold) {
+		fixBufferWriteThreshold(bufferWriteThreshold);
 	}
 
-}
\ No newline at end of file
+}
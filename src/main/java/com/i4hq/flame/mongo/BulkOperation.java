@@ -1,5 +1,7 @@
 package com.i4hq.flame.mongo;
 
+import java.util.concurrent.Executor;
+
 public interface BulkOperation {
 
 	/**
@@ -13,8 +15,49 @@ public interface BulkOperation {
 	void close();
 
 	/**
-	 * @param i
+	 * The threshold applies to each stripe of the buffer, so up to MONGO_FLAME_BULK_WRITE_STRIPES times as many documents may be buffered.
+	 * @param i - the number of documents in a stripe above which the stripe is written.
 	 */
 	void setBufferWriteThreshold(int i);
 
-}
\ No newline at end of file
+	/**
+	 * Defaults to MONGO_FLAME_BULK_WRITE_WAITTIME. While the threshold is adaptive, the target latency is the wait time instead.
+	 * @param waitTimeBeforeFlush - the time, in milliseconds, since the last write after which the next buffered document triggers a write.
+	 */
+	void setWaitTimeBeforeFlush(long waitTimeBeforeFlush);
+
+	/**
+	 * Turn on adaptive tuning of the write threshold. The threshold grows while batches are written within the target latency and shrinks when they are not.
+	 * @param targetLatency - the target time, in milliseconds, to write a batch. Non-positive values turn off adaptive tuning and keep the current threshold.
+	 */
+	void setTargetLatency(long targetLatency);
+
+	/**
+	 * The limit applies to each stripe of the buffer, so the memory used by the buffer may reach MONGO_FLAME_BULK_WRITE_STRIPES times this size.
+	 * @param maxBufferedBytes - the estimated size, in bytes, of the buffered documents of a stripe that triggers a write.
+	 */
+	void setMaxBufferedBytes(long maxBufferedBytes);
+
+	/**
+	 * Sets the limits of a single round trip to the server. Larger batches are split before they are written.
+	 * @param maxBatchBytes - the maximum estimated size in bytes of a batch. Non-positive values remove the limit.
+	 * @param maxBatchCount - the maximum number of documents in a batch. Non-positive values remove the limit.
+	 */
+	void setMaxBatchSize(long maxBatchBytes, int maxBatchCount);
+
+	/**
+	 * Flush the buffered documents if the oldest of them has been in memory for at least the given time.
+	 * @param maxAge - in milliseconds.
+	 * @return Returns true if and only if it performed the write.
+	 */
+	boolean flushIfOlderThan(long maxAge);
+
+	/**
+	 * Hand full batches to the given executor instead of writing them on the thread that filled them.
+	 * Writers block once the maximum number of batches are in flight. {@link #flush()} waits for every batch in flight.
+	 * @param flushExecutor - if null, writes are synchronous.
+	 * @param maxInFlightBatches - if less than 1, writes are synchronous.
+	 */
+	void setAsyncWrites(Executor flushExecutor, int maxInFlightBatches);
+
+}
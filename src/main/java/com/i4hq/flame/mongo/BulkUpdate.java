@@ -1,6 +1,5 @@
 package com.i4hq.flame.mongo;
 
-import java.util.LinkedList;
 import java.util.List;
 
 import org.bson.Document;
@@ -11,77 +10,57 @@ import com.mongodb.client.MongoCollection;
 import com.mongodb.client.model.UpdateOneModel;
 import com.mongodb.client.model.UpdateOptions;
 
-public class BulkUpdate implements BulkOperation {
+public class BulkUpdate extends AbstractBulkOperation<UpdateOneModel<Document>> {
 
-	private long lastWrite = System.currentTimeMillis();
-	private long waitTimeBeforeFlush;
 	/**
-	 * The minimum number of documents to keep in memory before sending to the server.
+	 * The size assumed for filters and updates that are not documents, such as those built with {@link com.mongodb.client.model.Filters}.
 	 */
-	private int bufferWriteThreshold;
+	private static final long UNKNOWN_BSON_SIZE = 64;
 
-	private List<UpdateOneModel<Document>> buffer = new LinkedList<>();
+	private final UpdateOptions upsertOption = new UpdateOptions().upsert(true);
 	private final MongoCollection<Document> collection;
 
 	public BulkUpdate(MongoCollection<Document> collection) {
+		super(collection.getNamespace().getCollectionName());
 		this.collection = collection;
-		setBufferWriteThreshold(Integer.parseInt(System.getProperty("MONGO_FLAME_BULK_WRITE_MIN_THRESHOLD", "1000")));
-		MongoFlameDAO.logger.info("MONGO_FLAME_BULK_WRITE_WAITTIME = {}", waitTimeBeforeFlush);
-		MongoFlameDAO.logger.info("MONGO_FLAME_BULK_WRITE_MIN_THRESHOLD = {}", bufferWriteThreshold);
 	}
 
 	/**
-	 * @param collection
-	 * @param docs
+	 * @param filter
+	 * @param update
 	 * @return Returns true if and only if it performed the write.
 	 */
 	public boolean update(final Bson filter, final Bson update) {
-		buffer.add(new UpdateOneModel<Document>(filter, update, new UpdateOptions().upsert(true)));
-		return updateMany();
+		return add(new UpdateOneModel<Document>(filter, update, upsertOption));
 	}
 
-	private boolean updateMany() {
-		if (buffer.size() > bufferWriteThreshold || System.currentTimeMillis() - lastWrite > waitTimeBeforeFlush){
-			flush(); 
-			buffer = new LinkedList<>();
-			lastWrite = System.currentTimeMillis();
-			return true;
-		}
-		return false;
-	}
-
-
-	/* (non-Javadoc)
-	 * @see com.i4hq.flame.mongo.BulkOperation#flush()
-	 */
 	@Override
-	public void flush() {
-		try {		
-			if (buffer.size() > 0) {
-				collection.bulkWrite(buffer);
-			}
+	protected void writeBatch(List<UpdateOneModel<Document>> models) {
+		try {
+			collection.bulkWrite(models);
 		} catch (MongoBulkWriteException ex) {
 			MongoFlameDAO.logger.debug(ex.getMessage()); 
 		}
 	}
 
 	@Override
-	protected void finalize() throws Throwable {
-		close();
+	protected long estimateSize(UpdateOneModel<Document> model) {
+		return estimateSize(model.getFilter()) + estimateSize(model.getUpdate());
 	}
 
-	public void setBufferWriteThreshold(int bufferWriteThreshold) {
-		this.bufferWriteThreshold = bufferWriteThreshold;
-		waitTimeBeforeFlush = this.bufferWriteThreshold + (long) (this.bufferWriteThreshold * 1);
+	private long estimateSize(Bson bson) {
+		if (bson instanceof Document) {
+			return BsonSizeEstimator.estimate((Document) bson);
+		}
+		return UNKNOWN_BSON_SIZE;
 	}
 
-	/* (non-Javadoc)
-	 * @see com.i4hq.flame.mongo.BulkOperation#close()
+	/**
+	 * Fixes the write threshold, which turns off adaptive tuning.
+	 * @see com.i4hq.flame.mongo.BulkOperation#setBufferWriteThreshold(int)
 	 */
-	@Override
-	public void close() {
-		flush();
-
+	public void setBufferWriteThreshold(int bufferWriteThreshold) {
+		fixBufferWriteThreshold(bufferWriteThreshold);
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,164 @@
+package com.i4hq.flame.mongo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.bson.conversions.Bson;
+
+import com.i4hq.flame.core.AttributeExpression;
+import com.mongodb.client.model.Filters;
+
+/**
+ * Combines several conditions on entities with AND or OR, for example the entities within a polygon that are of a type and have an attribute value.
+ * The operands are attribute expressions, such as WITHIN and FROM, attribute values and ranges, and other composite expressions.
+ * Each operand is resolved to the IDs of the matching entities only, then the IDs are intersected or unioned and the resulting entities are loaded once.
+ * The limits of the attribute expressions are ignored, since an intersection would be wrong if an operand was cut short. Only the limit of the whole expression applies.
+ * @author rmoten
+ *
+ */
+public final class CompositeExpression {
+
+	public enum Combinator {
+		AND, OR
+	}
+
+	/**
+	 * An operand of a composite expression. Exactly one of the attribute expression, the attribute filter, and the composite expression is set.
+	 */
+	static final class Operand {
+		private final AttributeExpression expression;
+		private final Bson attributeFilter;
+		private final String attributeName;
+		private final String value;
+		private final CompositeExpression composite;
+
+		private Operand(AttributeExpression expression, Bson attributeFilter, String attributeName, String value, CompositeExpression composite) {
+			this.expression = expression;
+			this.attributeFilter = attributeFilter;
+			this.attributeName = attributeName;
+			this.value = value;
+			this.composite = composite;
+		}
+
+		AttributeExpression getExpression() {
+			return expression;
+		}
+
+		/**
+		 * @return Returns the filter on the attributes collection, or null if the operand is not on attribute values.
+		 */
+		Bson getAttributeFilter() {
+			return attributeFilter;
+		}
+
+		/**
+		 * @return Returns the name of the attribute the filter is on, or null if the operand is not on attribute values.
+		 */
+		String getAttributeName() {
+			return attributeName;
+		}
+
+		/**
+		 * @return Returns the value the attribute must be equal to, or null if the operand is not an equality on an attribute value.
+		 */
+		String getValue() {
+			return value;
+		}
+
+		CompositeExpression getComposite() {
+			return composite;
+		}
+
+		@Override
+		public String toString() {
+			if (composite != null) {
+				return composite.toString();
+			}
+			if (expression != null) {
+				return expression.getOperator() + " " + (expression.getAttributeName() == null ? "" : expression.getAttributeName());
+			}
+			return value == null ? String.valueOf(attributeFilter) : attributeName + " = " + value;
+		}
+	}
+
+	private final Combinator combinator;
+	private final List<Operand> operands = new ArrayList<>();
+	private int limit;
+
+	public static CompositeExpression and() {
+		return new CompositeExpression(Combinator.AND);
+	}
+
+	public static CompositeExpression or() {
+		return new CompositeExpression(Combinator.OR);
+	}
+
+	public CompositeExpression(Combinator combinator) {
+		this.combinator = combinator;
+	}
+
+	/**
+	 * @param expr - a WITHIN or FROM expression.
+	 * @return
+	 */
+	public CompositeExpression add(AttributeExpression expr) {
+		operands.add(new Operand(expr, null, null, null, null));
+		return this;
+	}
+
+	public CompositeExpression add(AttributeValueRange range) {
+		operands.add(new Operand(null, range.toFilter(), range.getAttributeName(), null, null));
+		return this;
+	}
+
+	public CompositeExpression add(CompositeExpression expr) {
+		operands.add(new Operand(null, null, null, null, expr));
+		return this;
+	}
+
+	/**
+	 * Add the condition that an entity has an attribute value, as in {@link MongoFlameDAO#getEntitiesWithAttributeValue(String, String)}.
+	 * @param attributePath
+	 * @param value
+	 * @return
+	 */
+	public CompositeExpression addAttributeValue(String attributePath, String value) {
+		Bson filter = Filters.and(Filters.eq(MongoFlameDAO.ATTRIBUTE_NAME_FIELD, attributePath), Filters.eq(MongoFlameDAO.VALUE_FIELD, value));
+		operands.add(new Operand(null, filter, attributePath, value, null));
+		return this;
+	}
+
+	/**
+	 * @param limit - the maximum number of entities. Non-positive values mean the maximum limit.
+	 * @return
+	 */
+	public CompositeExpression limit(int limit) {
+		this.limit = limit;
+		return this;
+	}
+
+	public Combinator getCombinator() {
+		return combinator;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	List<Operand> getOperands() {
+		return Collections.unmodifiableList(operands);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder s = new StringBuilder("(");
+		for (Operand operand : operands) {
+			if (s.length() > 1) {
+				s.append(" ").append(combinator).append(" ");
+			}
+			s.append(operand);
+		}
+		return s.append(")").toString();
+	}
+}
@@ -0,0 +1,127 @@
+package com.i4hq.flame.mongo;
+
+import org.bson.Document;
+
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * The state of a database that is set up once and shared by all DAOs of the same host and database, through {@link MongoClientRegistry}:
+ * the indexes are ensured, the caches are warmed and the server limits are read when the first DAO connects, not by every DAO.
+ * It is configured by the system properties in effect when it is created.
+ * @author rmoten
+ *
+ */
+final class DatabaseState {
+
+	/**
+	 * The defaults of the server limits, used if they cannot be read from the server.
+	 */
+	private static final int DEFAULT_MAX_MESSAGE_SIZE = 48000000;
+	private static final int DEFAULT_MAX_WRITE_BATCH_SIZE = 1000;
+
+	private final IndexManager indexManager;
+	private final KnownTypesCache knownTypes;
+	private final AttributeStatistics attributeStatistics;
+	private final EntityTypeResolver entityTypeResolver;
+	private final int maxMessageSize;
+	private final int maxWriteBatchSize;
+
+	private DatabaseState(IndexManager indexManager, KnownTypesCache knownTypes, AttributeStatistics attributeStatistics,
+			EntityTypeResolver entityTypeResolver, int maxMessageSize, int maxWriteBatchSize) {
+		this.indexManager = indexManager;
+		this.knownTypes = knownTypes;
+		this.attributeStatistics = attributeStatistics;
+		this.entityTypeResolver = entityTypeResolver;
+		this.maxMessageSize = maxMessageSize;
+		this.maxWriteBatchSize = maxWriteBatchSize;
+	}
+
+	/**
+	 * Ensure the indexes, warm the caches and read the server limits of a database.
+	 * @param database
+	 * @return
+	 */
+	static DatabaseState create(MongoDatabase database) {
+		IndexManager indexManager = new IndexManager(database);
+		boolean createIndexes = Boolean.parseBoolean(System.getProperty("MONGO_FLAME_CREATE_INDEXES", "true"));
+		MongoFlameDAO.logger.info("MONGO_FLAME_CREATE_INDEXES = {}", createIndexes);
+		if (createIndexes) {
+			boolean inBackground = Boolean.parseBoolean(System.getProperty("MONGO_FLAME_CREATE_INDEXES_IN_BACKGROUND", "true"));
+			MongoFlameDAO.logger.info("MONGO_FLAME_CREATE_INDEXES_IN_BACKGROUND = {}", inBackground);
+			try {
+				MongoFlameDAO.logger.info("Created {} indexes", indexManager.ensureIndexes(inBackground));
+			} catch (RuntimeException ex) {
+				MongoFlameDAO.logger.error("Unable to create the indexes", ex);
+			}
+		}
+
+		int knownTypesCacheSize = Integer.parseInt(System.getProperty("MONGO_FLAME_KNOWN_TYPES_CACHE_SIZE", "10000"));
+		MongoFlameDAO.logger.info("MONGO_FLAME_KNOWN_TYPES_CACHE_SIZE = {}", knownTypesCacheSize);
+		KnownTypesCache knownTypes = new KnownTypesCache(knownTypesCacheSize);
+		knownTypes.warm(database.getCollection("types"));
+
+		int maxStatisticsValues = Integer.parseInt(System.getProperty("MONGO_FLAME_STATS_MAX_VALUES", "1000"));
+		MongoFlameDAO.logger.info("MONGO_FLAME_STATS_MAX_VALUES = {}", maxStatisticsValues);
+		AttributeStatistics attributeStatistics = new AttributeStatistics(database.getCollection("statistics"), maxStatisticsValues);
+		try {
+			attributeStatistics.warm();
+		} catch (RuntimeException ex) {
+			MongoFlameDAO.logger.error("Unable to load the statistics", ex);
+		}
+
+		long typesReloadInterval = Long.parseLong(System.getProperty("MONGO_FLAME_TYPES_RELOAD_INTERVAL", "60000"));
+		MongoFlameDAO.logger.info("MONGO_FLAME_TYPES_RELOAD_INTERVAL = {}", typesReloadInterval);
+		EntityTypeResolver entityTypeResolver = new EntityTypeResolver(database.getCollection("types"), database.getCollection("entities"),
+				database.getCollection("attributes"), typesReloadInterval);
+
+		int maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+		int maxWriteBatchSize = DEFAULT_MAX_WRITE_BATCH_SIZE;
+		try {
+			Document isMaster = database.runCommand(new Document("isMaster", 1));
+			Object value = isMaster.get("maxMessageSizeBytes");
+			if (value instanceof Number) {
+				maxMessageSize = ((Number) value).intValue();
+			}
+			value = isMaster.get("maxWriteBatchSize");
+			if (value instanceof Number) {
+				maxWriteBatchSize = ((Number) value).intValue();
+			}
+		} catch (RuntimeException ex) {
+			MongoFlameDAO.logger.warn("Unable to read the server limits. Using the defaults.", ex);
+		}
+		return new DatabaseState(indexManager, knownTypes, attributeStatistics, entityTypeResolver, maxMessageSize, maxWriteBatchSize);
+	}
+
+	IndexManager getIndexManager() {
+		return indexManager;
+	}
+
+	KnownTypesCache getKnownTypes() {
+		return knownTypes;
+	}
+
+	AttributeStatistics getAttributeStatistics() {
+		return attributeStatistics;
+	}
+
+	/**
+	 * @return Returns the resolver over the collections with the default read preference. Use {@link EntityTypeResolver#withCollections} for others.
+	 */
+	EntityTypeResolver getEntityTypeResolver() {
+		return entityTypeResolver;
+	}
+
+	/**
+	 * @return Returns the maximum size, in bytes, of a message to the server.
+	 */
+	int getMaxMessageSize() {
+		return maxMessageSize;
+	}
+
+	/**
+	 * @return Returns the maximum number of documents in a write command.
+	 */
+	int getMaxWriteBatchSize() {
+		return maxWriteBatchSize;
+	}
+}
@@ -0,0 +1,130 @@
+package com.i4hq.flame.mongo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.bson.Document;
+
+import com.i4hq.flame.core.EntityType;
+import com.i4hq.flame.core.FlameEntity;
+import com.mongodb.client.MongoCursor;
+
+/**
+ * Lazily iterates over the results of a query, without the limit on the number of results of the methods that return a collection. 
+ * The IDs of the matching entities are read, in ascending order, from a cursor on the server. The same ID may be read several times in a row,
+ * once per matching document of the entity, and is only returned once.
+ * The entities are loaded in batches as the iteration reaches them, so only one batch is held in memory.
+ * <p>
+ * The continuation token is the ID of the last entity returned. Passing it to the method that created the cursor resumes the query after that entity.
+ * A cursor must be closed, unless it has been iterated to the end.
+ * @author rmoten
+ *
+ */
+public final class EntityCursor implements Iterator<FlameEntity>, AutoCloseable {
+
+	private final MongoCursor<Document> entityIdCursor;
+	private final String entityIdFieldName;
+	private final EntityHydrator entityHydrator;
+	private final EntityType entityType;
+	private final int batchSize;
+	private final int limit;
+	/**
+	 * The number of distinct IDs read so far, and the last of them.
+	 */
+	private int numOfEntityIds = 0;
+	private String lastEntityId = null;
+	private Iterator<FlameEntity> batch = Collections.emptyIterator();
+	private String continuationToken;
+	private boolean closed = false;
+
+	/**
+	 * @param entityIdCursor - the cursor on the IDs of the matching entities in ascending order. If null, there are no results.
+	 * @param entityIdFieldName - the name of the field holding the entity ID in the documents of the cursor.
+	 * @param entityHydrator
+	 * @param entityType - used to ensure attributes in the entity type have the correct attribute type. May be null.
+	 * @param batchSize - the number of entities loaded at a time.
+	 * @param limit - the maximum number of entities. Non-positive values mean no limit.
+	 * @param continuationToken - the token the query was resumed from. May be null.
+	 */
+	EntityCursor(MongoCursor<Document> entityIdCursor, String entityIdFieldName, EntityHydrator entityHydrator, EntityType entityType, int batchSize, int limit,
+			String continuationToken) {
+		this.entityIdCursor = entityIdCursor;
+		this.entityIdFieldName = entityIdFieldName;
+		this.entityHydrator = entityHydrator;
+		this.entityType = entityType;
+		this.batchSize = Math.max(1, batchSize);
+		this.limit = limit > 0 ? limit : Integer.MAX_VALUE;
+		this.continuationToken = continuationToken;
+		this.closed = entityIdCursor == null;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (batch.hasNext()) {
+			return true;
+		}
+		if (closed) {
+			return false;
+		}
+		List<String> entityIds = new ArrayList<>(batchSize);
+		while (entityIds.size() < batchSize && numOfEntityIds < limit && entityIdCursor.hasNext()) {
+			String entityId = entityIdCursor.next().getString(entityIdFieldName);
+			if (entityId != null && !entityId.equals(lastEntityId)) {
+				entityIds.add(entityId);
+				lastEntityId = entityId;
+				numOfEntityIds++;
+			}
+		}
+		if (entityIds.isEmpty()) {
+			close();
+			return false;
+		}
+		batch = entityHydrator.hydrate(entityIds, entityType).values().iterator();
+		return batch.hasNext();
+	}
+
+	@Override
+	public FlameEntity next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		FlameEntity entity = batch.next();
+		continuationToken = entity.getId();
+		return entity;
+	}
+
+	/**
+	 * @return Returns the token to resume the query after the last entity returned, or the token the query was resumed from if no entity has been returned.
+	 */
+	public String getContinuationToken() {
+		return continuationToken;
+	}
+
+	/**
+	 * @return Returns a sequential stream over the remaining results. Closing the stream closes this cursor.
+	 */
+	public Stream<FlameEntity> stream() {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.DISTINCT), false)
+				.onClose(new Runnable() {
+					@Override
+					public void run() {
+						close();
+					}
+				});
+	}
+
+	@Override
+	public void close() {
+		if (!closed) {
+			closed = true;
+			entityIdCursor.close();
+		}
+	}
+}
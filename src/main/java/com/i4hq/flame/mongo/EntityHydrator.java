@@ -0,0 +1,160 @@
+package com.i4hq.flame.mongo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+
+import com.i4hq.flame.core.EntityType;
+import com.i4hq.flame.core.FlameEntity;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+
+/**
+ * Loads entities, with their locations and attributes, given their IDs.
+ * Instead of a query per entity, the IDs are split into batches and each batch is loaded with one $in query on the entities collection and one on the attributes collection.
+ * The batches are loaded concurrently and the entities are joined to their attributes on the client.
+ * @author rmoten
+ *
+ */
+final class EntityHydrator {
+
+	private final MongoFlameDAO dao;
+	private final MongoCollection<Document> entitiesCollection;
+	private final MongoCollection<Document> attributesCollection;
+	private final ExecutorService executor;
+	private final int batchSize;
+
+	/**
+	 * @param dao - the DAO of the entities created.
+	 * @param entitiesCollection
+	 * @param attributesCollection
+	 * @param executor - loads the batches, other than the first, which is loaded by the calling thread.
+	 * @param batchSize - the maximum number of entity IDs in a query.
+	 */
+	EntityHydrator(MongoFlameDAO dao, MongoCollection<Document> entitiesCollection, MongoCollection<Document> attributesCollection, ExecutorService executor,
+			int batchSize) {
+		this.dao = dao;
+		this.entitiesCollection = entitiesCollection;
+		this.attributesCollection = attributesCollection;
+		this.executor = executor;
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * @param entityIds
+	 * @param entityType - used to ensure attributes in the entity type have the correct attribute type. May be null.
+	 * @return Returns an entity for each distinct ID, in the order of the IDs. An ID not in the database maps to an entity without attributes.
+	 */
+	Map<String, FlameEntity> hydrate(Collection<String> entityIds, EntityType entityType) {
+		return hydrate(entityIds, entityType, null);
+	}
+
+	/**
+	 * @param entityIds
+	 * @param entityType - used to ensure attributes in the entity type have the correct attribute type. May be null.
+	 * @param attributeNames - the names of the attributes to load, without the copies of long values. If null, all attributes are loaded in full.
+	 * @return Returns an entity for each distinct ID, in the order of the IDs. An ID not in the database maps to an entity without attributes.
+	 */
+	Map<String, FlameEntity> hydrate(Collection<String> entityIds, final EntityType entityType, final Collection<String> attributeNames) {
+		List<String> distinctIds = new ArrayList<>(new LinkedHashSet<>(entityIds));
+		Map<String, FlameEntity> results = new LinkedHashMap<>();
+		if (distinctIds.isEmpty()) {
+			return results;
+		}
+
+		List<Future<Map<String, FlameEntity>>> futures = new ArrayList<>();
+		for (int start = batchSize; start < distinctIds.size(); start += batchSize) {
+			final List<String> batch = distinctIds.subList(start, Math.min(start + batchSize, distinctIds.size()));
+			futures.add(executor.submit(new Callable<Map<String, FlameEntity>>() {
+				@Override
+				public Map<String, FlameEntity> call() throws Exception {
+					return hydrateBatch(batch, entityType, attributeNames);
+				}
+			}));
+		}
+		Map<String, FlameEntity> entities = hydrateBatch(distinctIds.subList(0, Math.min(batchSize, distinctIds.size())), entityType, attributeNames);
+		for (Future<Map<String, FlameEntity>> future : futures) {
+			try {
+				entities.putAll(future.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				MongoFlameDAO.logger.error("Unable to load entities", e.getCause());
+				throw new RuntimeException(e.getCause());
+			}
+		}
+
+		for (String entityId : distinctIds) {
+			results.put(entityId, entities.get(entityId));
+		}
+		return results;
+	}
+
+	/**
+	 * Load a batch of entities with one query per collection.
+	 * @param entityIds
+	 * @param entityType
+	 * @param attributeNames
+	 * @return
+	 */
+	private Map<String, FlameEntity> hydrateBatch(List<String> entityIds, EntityType entityType, Collection<String> attributeNames) {
+		final Map<String, FlameEntity> entities = new HashMap<>();
+		for (String entityId : entityIds) {
+			entities.put(entityId, new MongoFlameEntity(entityId, dao));
+		}
+
+		try (MongoCursor<Document> cursor = entitiesCollection.find(Filters.in(MongoFlameDAO.ID_FIELD, entityIds))
+				.projection(Projections.include(MongoFlameDAO.LONGITUDE_FIELD, MongoFlameDAO.LATITUDE_FIELD)).iterator()) {
+			while (cursor.hasNext()) {
+				Document doc = cursor.next();
+				Object longitude = doc.get(MongoFlameDAO.LONGITUDE_FIELD);
+				Object latitude = doc.get(MongoFlameDAO.LATITUDE_FIELD);
+				if (longitude instanceof Number && latitude instanceof Number) {
+					entities.get(doc.getString(MongoFlameDAO.ID_FIELD)).setLocation(((Number) longitude).doubleValue(), ((Number) latitude).doubleValue());
+				}
+			}
+		}
+
+		Function<String, FlameEntity> entityResolver = new Function<String, FlameEntity>() {
+			@Override
+			public FlameEntity apply(String entityId) {
+				return entities.get(entityId);
+			}
+		};
+		CodecRegistry registry = attributesCollection.getCodecRegistry();
+		JoinedEntityCodec codec = new JoinedEntityCodec(MongoFlameDAO.ENTITY_ID_FIELD, null, entityType, entityResolver, registry);
+		Bson filter = Filters.in(MongoFlameDAO.ENTITY_ID_FIELD, entityIds);
+		Bson attributeFilter = AttributeFilters.createFilter(attributeNames, entityType);
+		if (attributeFilter != null) {
+			filter = Filters.and(filter, attributeFilter);
+		}
+		FindIterable<RawBsonDocument> attributesFound = attributesCollection.find(filter, RawBsonDocument.class);
+		if (attributeNames != null) {
+			attributesFound.projection(Projections.exclude(MongoFlameDAO.PROJECTED_OUT_ATTRIBUTE_FIELDS));
+		}
+		try (MongoCursor<RawBsonDocument> cursor = attributesFound.iterator()) {
+			while (cursor.hasNext()) {
+				codec.decode(cursor.next());
+			}
+		}
+		return entities;
+	}
+}
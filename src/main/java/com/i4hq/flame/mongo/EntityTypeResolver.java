@@ -0,0 +1,199 @@
+package com.i4hq.flame.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.i4hq.flame.core.EntityType;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+
+/**
+ * Finds the hashes of the stored entity types that match an {@link EntityType}, so that FROM queries can select entities by their indexed type field.
+ * A stored type matches if it has at least one of the attributes declared in the entity type, as FROM queries on the attributes collection do.
+ * <p>
+ * The attribute names of a stored type are read from the attributes of one entity of that type, and cached.
+ * This relies on entities with the same type hash having the same attribute names.
+ * A type is only cached once an entity of that type with attributes is found, since the type may be saved before its entities, by this or another process.
+ * <p>
+ * The type hashes are loaded once and then kept up to date by the inserts of the types writer.
+ * Every MONGO_FLAME_TYPES_RELOAD_INTERVAL milliseconds, the hashes are reloaded, to see the types saved by other processes,
+ * and the attribute names are read again, in case the attributes of the entity read were only partly saved.
+ * @author rmoten
+ *
+ */
+final class EntityTypeResolver {
+
+	/**
+	 * The maximum number of entity IDs whose attribute names are read by one aggregation.
+	 */
+	private static final int RESOLVE_BATCH_SIZE = 1000;
+
+	/**
+	 * The cached state, shared by the resolvers of the views of a DAO.
+	 */
+	private static final class Cache {
+		private final Set<String> typeHashes = ConcurrentHashMap.newKeySet();
+		private final Map<String, Set<String>> attributeNamesByTypeHash = new ConcurrentHashMap<>();
+		private volatile long loadTime = -1;
+	}
+
+	private final MongoCollection<Document> typesCollection;
+	private final MongoCollection<Document> entitiesCollection;
+	private final MongoCollection<Document> attributesCollection;
+	private final long reloadInterval;
+	private final Cache cache;
+
+	/**
+	 * @param typesCollection
+	 * @param entitiesCollection
+	 * @param attributesCollection
+	 * @param reloadInterval - the time, in milliseconds, after which the type hashes are reloaded. Non-positive values mean never.
+	 */
+	EntityTypeResolver(MongoCollection<Document> typesCollection, MongoCollection<Document> entitiesCollection,
+			MongoCollection<Document> attributesCollection, long reloadInterval) {
+		this(typesCollection, entitiesCollection, attributesCollection, reloadInterval, new Cache());
+	}
+
+	private EntityTypeResolver(MongoCollection<Document> typesCollection, MongoCollection<Document> entitiesCollection,
+			MongoCollection<Document> attributesCollection, long reloadInterval, Cache cache) {
+		this.typesCollection = typesCollection;
+		this.entitiesCollection = entitiesCollection;
+		this.attributesCollection = attributesCollection;
+		this.reloadInterval = reloadInterval;
+		this.cache = cache;
+	}
+
+	/**
+	 * @param typesCollection
+	 * @param entitiesCollection
+	 * @param attributesCollection
+	 * @return Returns a resolver that reads from the given collections, such as those of another read preference, and shares the cache of this resolver.
+	 */
+	EntityTypeResolver withCollections(MongoCollection<Document> typesCollection, MongoCollection<Document> entitiesCollection,
+			MongoCollection<Document> attributesCollection) {
+		return new EntityTypeResolver(typesCollection, entitiesCollection, attributesCollection, reloadInterval, cache);
+	}
+
+	/**
+	 * Call this once a type is in the types collection.
+	 * @param typeHash
+	 */
+	void typeInserted(String typeHash) {
+		cache.typeHashes.add(typeHash);
+	}
+
+	/**
+	 * @param entityType - an entity type that declares at least one attribute.
+	 * @return Returns the hashes of the stored types that have at least one of the declared attributes.
+	 */
+	List<String> findTypeHashes(EntityType entityType) {
+		Set<String> declaredNames = entityType.getAttributeNames();
+		Collection<String> typeHashes = loadTypeHashes();
+		resolveAttributeNames(typeHashes);
+		List<String> matchingTypeHashes = new ArrayList<>();
+		for (String typeHash : typeHashes) {
+			Set<String> attributeNames = cache.attributeNamesByTypeHash.get(typeHash);
+			if (attributeNames == null) {
+				continue;
+			}
+			for (String declaredName : declaredNames) {
+				if (attributeNames.contains(declaredName)) {
+					matchingTypeHashes.add(typeHash);
+					break;
+				}
+			}
+		}
+		MongoFlameDAO.logger.debug("{} of {} types match {}", matchingTypeHashes.size(), typeHashes.size(), declaredNames);
+		return matchingTypeHashes;
+	}
+
+	private Collection<String> loadTypeHashes() {
+		long now = System.currentTimeMillis();
+		long loadTime = cache.loadTime;
+		if (loadTime < 0 || (reloadInterval > 0 && now - loadTime >= reloadInterval)) {
+			Set<String> hashes = new HashSet<>();
+			try (MongoCursor<Document> cursor = typesCollection.find().projection(Projections.include(MongoFlameDAO.ID_FIELD)).iterator()) {
+				while (cursor.hasNext()) {
+					Object typeHash = cursor.next().get(MongoFlameDAO.ID_FIELD);
+					if (typeHash instanceof String) {
+						hashes.add((String) typeHash);
+					}
+				}
+			}
+			cache.typeHashes.addAll(hashes);
+			if (loadTime >= 0) {
+				cache.attributeNamesByTypeHash.clear();
+			}
+			cache.loadTime = now;
+		}
+		return new ArrayList<>(cache.typeHashes);
+	}
+
+	/**
+	 * Read the attribute names of the types that are not cached yet.
+	 * One entity of each type is looked up by the type index, then the names of all of them are read by one aggregation per batch.
+	 * @param typeHashes
+	 */
+	private void resolveAttributeNames(Collection<String> typeHashes) {
+		Map<Object, String> typeHashesByEntityId = new HashMap<>();
+		for (String typeHash : typeHashes) {
+			if (cache.attributeNamesByTypeHash.containsKey(typeHash)) {
+				continue;
+			}
+			Document entity = entitiesCollection.find(Filters.eq(MongoFlameDAO.TYPE_FIELD, typeHash)).projection(Projections.include(MongoFlameDAO.ID_FIELD)).first();
+			if (entity == null) {
+				// The entity may not be saved yet, so look again next time.
+				continue;
+			}
+			typeHashesByEntityId.put(entity.get(MongoFlameDAO.ID_FIELD), typeHash);
+			if (typeHashesByEntityId.size() >= RESOLVE_BATCH_SIZE) {
+				readAttributeNames(typeHashesByEntityId);
+				typeHashesByEntityId.clear();
+			}
+		}
+		if (!typeHashesByEntityId.isEmpty()) {
+			readAttributeNames(typeHashesByEntityId);
+		}
+	}
+
+	private void readAttributeNames(Map<Object, String> typeHashesByEntityId) {
+		List<Bson> pipeline = Arrays.asList(
+				Aggregates.match(Filters.in(MongoFlameDAO.ENTITY_ID_FIELD, typeHashesByEntityId.keySet())),
+				Aggregates.group("$" + MongoFlameDAO.ENTITY_ID_FIELD, Accumulators.addToSet("names", "$" + MongoFlameDAO.ATTRIBUTE_NAME_FIELD)));
+		try (MongoCursor<Document> cursor = attributesCollection.aggregate(pipeline).iterator()) {
+			while (cursor.hasNext()) {
+				Document doc = cursor.next();
+				String typeHash = typeHashesByEntityId.get(doc.get(MongoFlameDAO.ID_FIELD));
+				Object names = doc.get("names");
+				if (typeHash == null || !(names instanceof List)) {
+					continue;
+				}
+				Set<String> attributeNames = new HashSet<>();
+				for (Object name : (List<?>) names) {
+					if (name instanceof String) {
+						attributeNames.add((String) name);
+					}
+				}
+				if (!attributeNames.isEmpty()) {
+					cache.attributeNamesByTypeHash.put(typeHash, Collections.unmodifiableSet(attributeNames));
+				}
+			}
+		}
+		// An entity without attribute documents is left uncached: its attributes may still be buffered.
+	}
+}
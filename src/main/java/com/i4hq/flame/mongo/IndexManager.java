@@ -0,0 +1,258 @@
+package com.i4hq.flame.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.bson.Document;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexOptions;
+
+/**
+ * Declares the indexes the queries of the DAO need, creates the missing ones, and checks that they exist and are used.
+ * Each declared index has a sample of the filters that need it, which is explained to check that the server would not scan the collection.
+ * @author rmoten
+ *
+ */
+final class IndexManager {
+
+	/**
+	 * An index the queries need.
+	 */
+	static final class IndexDeclaration {
+		private final String collectionName;
+		private final Document keys;
+		private final Document sampleFilter;
+
+		IndexDeclaration(String collectionName, Document keys, Document sampleFilter) {
+			this.collectionName = collectionName;
+			this.keys = keys;
+			this.sampleFilter = sampleFilter;
+		}
+
+		String getCollectionName() {
+			return collectionName;
+		}
+
+		Document getKeys() {
+			return keys;
+		}
+
+		Document getSampleFilter() {
+			return sampleFilter;
+		}
+
+		@Override
+		public String toString() {
+			return collectionName + " " + keys.toJson();
+		}
+	}
+
+	private static final String COLLECTION_SCAN = "COLLSCAN";
+
+	/**
+	 * The keys of the index on the attribute values, ordered by entity ID within each value.
+	 */
+	static final Document ATTRIBUTE_VALUE_ENTITY_INDEX = new Document(MongoFlameDAO.ATTRIBUTE_NAME_FIELD, 1).append(MongoFlameDAO.VALUE_FIELD, 1)
+			.append(MongoFlameDAO.ENTITY_ID_FIELD, 1);
+	/**
+	 * The keys of the index on the entity IDs of the attributes.
+	 */
+	static final Document ENTITY_ID_INDEX = new Document(MongoFlameDAO.ENTITY_ID_FIELD, 1);
+
+	private final MongoDatabase database;
+	private final List<IndexDeclaration> declarations = new ArrayList<>();
+
+	IndexManager(MongoDatabase database) {
+		this.database = database;
+		declare("entities", new Document(MongoFlameDAO.TYPE_FIELD, 1), new Document(MongoFlameDAO.TYPE_FIELD, "sample"));
+		declare("entities", new Document(MongoFlameDAO.LOCATION_FIELD, "2dsphere"), new Document(MongoFlameDAO.LOCATION_FIELD, 
+				new Document("$geoWithin", new Document("$geometry", new Document("type", "Polygon").append("coordinates", 
+						Arrays.asList(Arrays.asList(Arrays.asList(0.0, 0.0), Arrays.asList(1.0, 0.0), Arrays.asList(1.0, 1.0), Arrays.asList(0.0, 0.0))))))));
+		declare("attributes", ENTITY_ID_INDEX, new Document(MongoFlameDAO.ENTITY_ID_FIELD, "sample"));
+		// The entity ID lets streams read the entities with an attribute value in order from the index.
+		declare("attributes", ATTRIBUTE_VALUE_ENTITY_INDEX, 
+				new Document(MongoFlameDAO.ATTRIBUTE_NAME_FIELD, "sample").append(MongoFlameDAO.VALUE_FIELD, "sample"));
+		declare("attributes", new Document(MongoFlameDAO.ATTRIBUTE_NAME_FIELD, 1).append(MongoFlameDAO.TS_FIELD, 1), 
+				new Document(MongoFlameDAO.ATTRIBUTE_NAME_FIELD, new Document("$in", Arrays.asList("sample"))).append(MongoFlameDAO.TS_FIELD, new Document("$gte", 1L)));
+		declare("attributes", new Document(MongoFlameDAO.TS_FIELD, 1), new Document(MongoFlameDAO.TS_FIELD, new Document("$gte", 1L)));
+		declare("attributes", new Document(MongoFlameDAO.TEXT_FIELD, "text"), new Document("$text", new Document("$search", "sample")));
+		declare("references", new Document(MongoFlameDAO.ENTITY_ID_FIELD, 1), new Document(MongoFlameDAO.ENTITY_ID_FIELD, "sample"));
+		declare("geos", new Document(MongoFlameDAO.ENTITY_ID_FIELD, 1), new Document(MongoFlameDAO.ENTITY_ID_FIELD, new Document("$in", Arrays.asList("sample"))));
+	}
+
+	/**
+	 * Declare an index.
+	 * @param collectionName
+	 * @param keys
+	 * @param sampleFilter - a filter of a query that needs the index.
+	 */
+	void declare(String collectionName, Document keys, Document sampleFilter) {
+		declarations.add(new IndexDeclaration(collectionName, keys, sampleFilter));
+	}
+
+	List<IndexDeclaration> getDeclarations() {
+		return Collections.unmodifiableList(declarations);
+	}
+
+	/**
+	 * Create the declared indexes that do not exist.
+	 * @param background - if true, the indexes are built in the background, so the collections are not locked during the build.
+	 * @return Returns the number of indexes created.
+	 */
+	int ensureIndexes(boolean background) {
+		int created = 0;
+		for (IndexDeclaration declaration : findMissingIndexes()) {
+			MongoFlameDAO.logger.info("Creating index {}", declaration);
+			database.getCollection(declaration.getCollectionName()).createIndex(declaration.getKeys(), new IndexOptions().background(background));
+			created++;
+		}
+		return created;
+	}
+
+	/**
+	 * @return Returns the declared indexes that do not exist.
+	 */
+	List<IndexDeclaration> findMissingIndexes() {
+		List<IndexDeclaration> missing = new ArrayList<>();
+		for (IndexDeclaration declaration : declarations) {
+			if (!getIndexKeys(declaration.getCollectionName()).contains(declaration.getKeys())) {
+				missing.add(declaration);
+			}
+		}
+		return missing;
+	}
+
+	/**
+	 * @return Returns the indexes of the collections of the declared indexes that have not been used since the server started, other than the _id indexes.
+	 */
+	List<String> findUnusedIndexes() {
+		List<String> unused = new ArrayList<>();
+		for (String collectionName : getCollectionNames()) {
+			try (MongoCursor<Document> cursor = database.getCollection(collectionName).aggregate(Arrays.asList(new Document("$indexStats", new Document())))
+					.iterator()) {
+				while (cursor.hasNext()) {
+					Document stats = cursor.next();
+					String name = stats.getString("name");
+					Document accesses = (Document) stats.get("accesses");
+					Object ops = accesses == null ? null : accesses.get("ops");
+					if (!"_id_".equals(name) && ops instanceof Number && ((Number) ops).longValue() == 0) {
+						unused.add(collectionName + " " + name);
+					}
+				}
+			} catch (MongoCommandException ex) {
+				MongoFlameDAO.logger.warn("Unable to read the index statistics of {}: {}", collectionName, ex.getMessage());
+			}
+		}
+		return unused;
+	}
+
+	/**
+	 * Explain the sample filter of each declared index.
+	 * @return Returns the declared indexes whose sample filter would scan the collection.
+	 */
+	List<IndexDeclaration> findCollectionScans() {
+		List<IndexDeclaration> scans = new ArrayList<>();
+		for (IndexDeclaration declaration : declarations) {
+			Document explain = new Document("explain", new Document("find", declaration.getCollectionName()).append("filter", declaration.getSampleFilter()))
+					.append("verbosity", "queryPlanner");
+			Document result = database.runCommand(explain);
+			Document queryPlanner = (Document) result.get("queryPlanner");
+			if (queryPlanner != null && containsStage(queryPlanner.get("winningPlan"), COLLECTION_SCAN)) {
+				scans.add(declaration);
+			}
+		}
+		return scans;
+	}
+
+	/**
+	 * Check the indexes and log the problems found.
+	 * @return Returns a description of each problem found.
+	 */
+	List<String> verify() {
+		List<String> problems = new ArrayList<>();
+		for (IndexDeclaration declaration : findMissingIndexes()) {
+			problems.add("missing index: " + declaration);
+		}
+		for (IndexDeclaration declaration : findCollectionScans()) {
+			problems.add("collection scan: " + declaration.getCollectionName() + " " + declaration.getSampleFilter().toJson());
+		}
+		for (String index : findUnusedIndexes()) {
+			problems.add("unused index: " + index);
+		}
+		for (String problem : problems) {
+			MongoFlameDAO.logger.warn(problem);
+		}
+		return problems;
+	}
+
+	private Set<Document> getIndexKeys(String collectionName) {
+		Set<Document> keys = new HashSet<>();
+		MongoCollection<Document> collection = database.getCollection(collectionName);
+		try (MongoCursor<Document> cursor = collection.listIndexes().iterator()) {
+			while (cursor.hasNext()) {
+				Document index = cursor.next();
+				Document weights = (Document) index.get("weights");
+				if (weights != null) {
+					// The keys of a text index are stored as _fts and _ftsx. The indexed fields are the keys of the weights.
+					Document textKeys = new Document();
+					for (String field : weights.keySet()) {
+						textKeys.append(field, "text");
+					}
+					keys.add(textKeys);
+				} else {
+					keys.add(normalize((Document) index.get("key")));
+				}
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * The server may return the directions of the keys as doubles or longs.
+	 */
+	private static Document normalize(Document keys) {
+		Document normalized = new Document();
+		for (String field : keys.keySet()) {
+			Object direction = keys.get(field);
+			normalized.append(field, direction instanceof Number ? (Object) ((Number) direction).intValue() : direction);
+		}
+		return normalized;
+	}
+
+	private Set<String> getCollectionNames() {
+		Set<String> collectionNames = new HashSet<>();
+		for (IndexDeclaration declaration : declarations) {
+			collectionNames.add(declaration.getCollectionName());
+		}
+		return collectionNames;
+	}
+
+	private static boolean containsStage(Object plan, String stageName) {
+		if (plan instanceof Document) {
+			Document stage = (Document) plan;
+			if (stageName.equals(stage.getString("stage"))) {
+				return true;
+			}
+			for (Object child : stage.values()) {
+				if (containsStage(child, stageName)) {
+					return true;
+				}
+			}
+		} else if (plan instanceof List) {
+			for (Object child : (List<?>) plan) {
+				if (containsStage(child, stageName)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,230 @@
+package com.i4hq.flame.mongo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonTypeClassMap;
+import org.bson.codecs.Decoder;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+
+import com.i4hq.flame.core.EntityType;
+import com.i4hq.flame.core.FlameEntity;
+import com.i4hq.flame.core.MetadataItem;
+
+/**
+ * Decodes the results of queries that join an entity to its attributes straight into {@link FlameEntity} instances, while reading the BSON stream.
+ * Unlike decoding into a {@link org.bson.Document} first, no intermediate maps are built and fields that are not needed are skipped.
+ * Each result document holds the entity ID and an array of attribute documents, or, if there is no attributes field, is an attribute document itself. 
+ * The attributes are added to the entity returned by the entity resolver, so several result documents can add to the same entity.
+ * An instance is used by one query at a time.
+ * <p>
+ * It only decodes: an entity is spread over several attribute documents, so it is never written as one. For that reason it is not put in the codec
+ * registry of a collection, where the driver could pick it to encode. Results are read as {@link RawBsonDocument} and passed to {@link #decode(RawBsonDocument)}.
+ * @author rmoten
+ *
+ */
+final class JoinedEntityCodec implements Decoder<FlameEntity> {
+
+	private static final BsonTypeClassMap bsonTypeClassMap = new BsonTypeClassMap();
+	private static final DecoderContext DECODER_CONTEXT = DecoderContext.builder().build();
+	private static final MetadataItem[] NO_METADATA = new MetadataItem[0];
+
+	/**
+	 * An attribute read before the ID of its entity.
+	 */
+	private static final class PendingAttribute {
+		private final String entityId;
+		private final String name;
+		private final String type;
+		private final Object value;
+		private final MetadataItem[] metadata;
+
+		private PendingAttribute(String entityId, String name, String type, Object value, MetadataItem[] metadata) {
+			this.entityId = entityId;
+			this.name = name;
+			this.type = type;
+			this.value = value;
+			this.metadata = metadata;
+		}
+	}
+
+	private final String entityIdFieldName;
+	private final String attributesFieldName;
+	private final EntityType entityType;
+	private final Function<String, FlameEntity> entityResolver;
+	private final CodecRegistry registry;
+	/**
+	 * Reused to collect the metadata of each attribute.
+	 */
+	private final List<MetadataItem> metadata = new ArrayList<>();
+
+	/**
+	 * @param entityIdFieldName - the name of the field holding the entity ID.
+	 * @param attributesFieldName - the name of the array of attribute documents. If null, each result is an attribute document.
+	 * @param entityType - used to ensure attributes in the entity type have the correct attribute type. May be null.
+	 * @param entityResolver - returns the entity to add the attributes to, given its ID. If it returns null, the attributes are skipped.
+	 * @param registry - used to decode values of types that are not read directly.
+	 */
+	JoinedEntityCodec(String entityIdFieldName, String attributesFieldName, EntityType entityType, Function<String, FlameEntity> entityResolver,
+			CodecRegistry registry) {
+		this.entityIdFieldName = entityIdFieldName;
+		this.attributesFieldName = attributesFieldName;
+		this.entityType = entityType;
+		this.entityResolver = entityResolver;
+		this.registry = registry;
+	}
+
+	/**
+	 * @param document - a result document read without decoding.
+	 * @return Returns the entity the attributes of the document were added to, or null if there is none.
+	 */
+	FlameEntity decode(RawBsonDocument document) {
+		try (BsonBinaryReader reader = new BsonBinaryReader(document.getByteBuffer().asNIO())) {
+			return decode(reader, DECODER_CONTEXT);
+		}
+	}
+
+	@Override
+	public FlameEntity decode(BsonReader reader, DecoderContext decoderContext) {
+		if (attributesFieldName == null) {
+			PendingAttribute attribute = readAttribute(reader, decoderContext);
+			FlameEntity entity = attribute.entityId == null ? null : entityResolver.apply(attribute.entityId);
+			addAttribute(entity, attribute);
+			return entity;
+		}
+
+		FlameEntity entity = null;
+		Double longitude = null;
+		Double latitude = null;
+		List<PendingAttribute> pendingAttributes = null;
+
+		reader.readStartDocument();
+		while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+			String fieldName = reader.readName();
+			BsonType bsonType = reader.getCurrentBsonType();
+			if (fieldName.equals(entityIdFieldName) && bsonType == BsonType.STRING) {
+				entity = entityResolver.apply(reader.readString());
+				if (pendingAttributes != null) {
+					for (PendingAttribute attribute : pendingAttributes) {
+						addAttribute(entity, attribute);
+					}
+					pendingAttributes = null;
+				}
+			} else if (fieldName.equals(attributesFieldName) && bsonType == BsonType.ARRAY) {
+				reader.readStartArray();
+				while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+					PendingAttribute attribute = readAttribute(reader, decoderContext);
+					if (entity != null) {
+						addAttribute(entity, attribute);
+					} else {
+						if (pendingAttributes == null) {
+							pendingAttributes = new ArrayList<>();
+						}
+						pendingAttributes.add(attribute);
+					}
+				}
+				reader.readEndArray();
+			} else if (fieldName.equals(MongoFlameDAO.LONGITUDE_FIELD) && bsonType == BsonType.DOUBLE) {
+				longitude = reader.readDouble();
+			} else if (fieldName.equals(MongoFlameDAO.LATITUDE_FIELD) && bsonType == BsonType.DOUBLE) {
+				latitude = reader.readDouble();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.readEndDocument();
+
+		if (entity != null && longitude != null && latitude != null) {
+			entity.setLocation(longitude, latitude);
+		}
+		return entity;
+	}
+
+	private void addAttribute(FlameEntity entity, PendingAttribute attribute) {
+		if (entity != null) {
+			MongoFlameDAO.addAttributeToEntity(entity, attribute.name, attribute.type, attribute.value, attribute.metadata, entityType);
+		}
+	}
+
+	/**
+	 * Read an attribute document.
+	 * @param reader
+	 * @param decoderContext
+	 * @return
+	 */
+	private PendingAttribute readAttribute(BsonReader reader, DecoderContext decoderContext) {
+		String entityId = null;
+		String name = null;
+		String type = null;
+		Object value = null;
+		metadata.clear();
+
+		reader.readStartDocument();
+		while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+			String fieldName = reader.readName();
+			// Metadata is any field other than _id, value, entity_id, and attribute_name.
+			if (fieldName.equals(MongoFlameDAO.VALUE_FIELD)) {
+				value = readValue(reader, decoderContext);
+			} else if (fieldName.equals(MongoFlameDAO.ATTRIBUTE_NAME_FIELD)) {
+				Object attributeName = readValue(reader, decoderContext);
+				name = attributeName == null ? null : attributeName.toString();
+			} else if (fieldName.equals(MongoFlameDAO.ENTITY_ID_FIELD) && reader.getCurrentBsonType() == BsonType.STRING) {
+				entityId = reader.readString();
+			} else if (fieldName.equals(MongoFlameDAO.ID_FIELD) || fieldName.equals(MongoFlameDAO.ENTITY_ID_FIELD)) {
+				reader.skipValue();
+			} else {
+				Object fieldValue = readValue(reader, decoderContext);
+				if (fieldValue == null) {
+					continue;
+				}
+				String fieldValueAsString = fieldValue.toString();
+				if (fieldName.equals(MongoFlameDAO.TYPE_FIELD)) {
+					type = fieldValueAsString;
+				}
+				metadata.add(new MetadataItem(fieldName, fieldValueAsString));
+			}
+		}
+		reader.readEndDocument();
+
+		MetadataItem[] metadataItems = metadata.isEmpty() ? NO_METADATA : metadata.toArray(new MetadataItem[metadata.size()]);
+		return new PendingAttribute(entityId, name, type, value, metadataItems);
+	}
+
+	/**
+	 * Read a value into the same Java type a {@link org.bson.Document} would hold.
+	 */
+	private Object readValue(BsonReader reader, DecoderContext decoderContext) {
+		BsonType bsonType = reader.getCurrentBsonType();
+		switch (bsonType) {
+		case STRING:
+			return reader.readString();
+		case DOUBLE:
+			return reader.readDouble();
+		case INT32:
+			return reader.readInt32();
+		case INT64:
+			return reader.readInt64();
+		case BOOLEAN:
+			return reader.readBoolean();
+		case NULL:
+			reader.readNull();
+			return null;
+		case ARRAY:
+			List<Object> list = new ArrayList<>();
+			reader.readStartArray();
+			while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+				list.add(readValue(reader, decoderContext));
+			}
+			reader.readEndArray();
+			return list;
+		default:
+			return registry.get(bsonTypeClassMap.get(bsonType)).decode(reader, decoderContext);
+		}
+	}
+}
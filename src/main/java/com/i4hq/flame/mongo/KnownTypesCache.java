@@ -0,0 +1,149 @@
+package com.i4hq.flame.mongo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.Document;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Projections;
+
+/**
+ * A bounded cache of the entity types that have already been saved to the types collection, mapping each type expression to its hash.
+ * A save of an entity whose type is in the cache neither hashes the type nor writes to the types collection.
+ * Lookups take no lock. When the cache is over capacity, the least recently used tenth of the types is evicted.
+ * Recency is measured in puts, so the eviction is approximate: types used since the same put are equally recent, and any of them may be evicted first.
+ * @author rmoten
+ *
+ */
+final class KnownTypesCache {
+
+	private static final class Entry {
+		private final String typeHash;
+		private volatile long lastAccess;
+
+		private Entry(String typeHash, long lastAccess) {
+			this.typeHash = typeHash;
+			this.lastAccess = lastAccess;
+		}
+	}
+
+	private final int capacity;
+	private final Map<String, Entry> entriesByTypeExpr = new ConcurrentHashMap<>();
+	/**
+	 * Advances on each put. Lookups only write the time of an entry when it has changed, so hot types are not written on every save.
+	 */
+	private final AtomicLong clock = new AtomicLong();
+	private final AtomicBoolean evicting = new AtomicBoolean();
+
+	/**
+	 * @param capacity - the maximum number of types in the cache.
+	 */
+	KnownTypesCache(int capacity) {
+		this.capacity = Math.max(1, capacity);
+	}
+
+	/**
+	 * Load the types already in the types collection, up to the capacity of the cache.
+	 * @param typesCollection
+	 */
+	void warm(MongoCollection<Document> typesCollection) {
+		int count = warm(typesCollection.find().projection(Projections.include(MongoFlameDAO.ID_FIELD, MongoFlameDAO.TYPE_EXPR_FIELD)).limit(capacity));
+		MongoFlameDAO.logger.info("Loaded {} known types", count);
+	}
+
+	/**
+	 * @param typesDocuments - documents of the types collection.
+	 * @return Returns the number of types loaded.
+	 */
+	int warm(Iterable<Document> typesDocuments) {
+		int count = 0;
+		for (Document doc : typesDocuments) {
+			if (put(doc)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @param typeExpr
+	 * @return Returns the hash of the type or null if the type is not known.
+	 */
+	String getHash(String typeExpr) {
+		Entry entry = entriesByTypeExpr.get(typeExpr);
+		if (entry == null) {
+			return null;
+		}
+		long now = clock.get();
+		if (entry.lastAccess != now) {
+			entry.lastAccess = now;
+		}
+		return entry.typeHash;
+	}
+
+	void put(String typeExpr, String typeHash) {
+		entriesByTypeExpr.put(typeExpr, new Entry(typeHash, clock.incrementAndGet()));
+		if (entriesByTypeExpr.size() > capacity) {
+			evict();
+		}
+	}
+
+	/**
+	 * @param typesDocument - a document of the types collection.
+	 * @return Returns true if the document has a type expression and a hash, and it was put in the cache.
+	 */
+	boolean put(Document typesDocument) {
+		Object typeHash = typesDocument.get(MongoFlameDAO.ID_FIELD);
+		String typeExpr = typesDocument.getString(MongoFlameDAO.TYPE_EXPR_FIELD);
+		if (!(typeHash instanceof String) || typeExpr == null) {
+			return false;
+		}
+		put(typeExpr, (String) typeHash);
+		return true;
+	}
+
+	int size() {
+		return entriesByTypeExpr.size();
+	}
+
+	/**
+	 * Evict the least recently used types until the cache is at nine tenths of its capacity. Only one thread evicts at a time; the others carry on.
+	 */
+	private void evict() {
+		if (!evicting.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			List<Map.Entry<String, Entry>> entries = new ArrayList<>(entriesByTypeExpr.entrySet());
+			int toEvict = entries.size() - capacity * 9 / 10;
+			if (toEvict <= 0) {
+				return;
+			}
+			// Snapshot the times, since lookups may change them while sorting.
+			final Map<Entry, Long> lastAccesses = new IdentityHashMap<>();
+			for (Map.Entry<String, Entry> entry : entries) {
+				lastAccesses.put(entry.getValue(), entry.getValue().lastAccess);
+			}
+			Collections.sort(entries, new Comparator<Map.Entry<String, Entry>>() {
+				@Override
+				public int compare(Map.Entry<String, Entry> a, Map.Entry<String, Entry> b) {
+					return Long.compare(lastAccesses.get(a.getValue()), lastAccesses.get(b.getValue()));
+				}
+			});
+			// Types used since the same put are equally recent, so exactly as many types as needed are evicted among them.
+			for (Map.Entry<String, Entry> entry : entries.subList(0, toEvict)) {
+				entriesByTypeExpr.remove(entry.getKey(), entry.getValue());
+			}
+		} finally {
+			evicting.set(false);
+		}
+	}
+}
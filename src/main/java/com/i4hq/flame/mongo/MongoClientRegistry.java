@@ -0,0 +1,185 @@
+package com.i4hq.flame.mongo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.bson.Document;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * Shares one {@link MongoClient}, and so one connection pool and one set of monitor threads, per host among all DAOs, whatever their database.
+ * The clients are reference counted: a client is closed when the last DAO using it is closed.
+ * Likewise, the DAOs of the same host and database share one {@link DatabaseState}, which is set up by the first of them and dropped with the last.
+ * <p>
+ * The clients are configured with these system properties:
+ * <ul>
+ * <li>MONGO_FLAME_POOL_MAX_SIZE - the maximum number of connections per server. Default 100.</li>
+ * <li>MONGO_FLAME_POOL_MIN_SIZE - the number of connections per server the pool keeps open. Default 0.</li>
+ * <li>MONGO_FLAME_POOL_WAIT_QUEUE_MULTIPLE - times the maximum pool size is the number of threads that may wait for a connection. Default 5.</li>
+ * <li>MONGO_FLAME_POOL_MAX_WAIT_TIME - the maximum time, in milliseconds, to wait for a connection. Default 120000.</li>
+ * <li>MONGO_FLAME_CONNECT_TIMEOUT - in milliseconds. Default 10000.</li>
+ * <li>MONGO_FLAME_SOCKET_TIMEOUT - in milliseconds. 0, the default, means no timeout.</li>
+ * <li>MONGO_FLAME_HEARTBEAT_FREQUENCY - the time, in milliseconds, between checks of the servers. Default 10000.</li>
+ * <li>MONGO_FLAME_PREWARM_CONNECTIONS - the number of connections opened when a client is created. Default 0.</li>
+ * </ul>
+ * @author rmoten
+ *
+ */
+public final class MongoClientRegistry {
+
+	private static final class SharedClient {
+		private final MongoClient client;
+		private int references = 0;
+
+		private SharedClient(MongoClient client) {
+			this.client = client;
+		}
+	}
+
+	private static final class SharedDatabase {
+		private DatabaseState state;
+		private int references = 0;
+	}
+
+	private static final Map<String, SharedClient> clientsByHost = new HashMap<>();
+	private static final Map<String, SharedDatabase> databasesByName = new HashMap<>();
+
+	private MongoClientRegistry() {
+	}
+
+	/**
+	 * Get the client of a host, creating it if needed. Each call must be matched by a call to {@link #release(String)}.
+	 * @param host - the host, with an optional port, as accepted by {@link MongoClient#MongoClient(String, MongoClientOptions)}.
+	 * @return
+	 */
+	public static synchronized MongoClient acquire(String host) {
+		SharedClient sharedClient = clientsByHost.get(host);
+		if (sharedClient == null) {
+			MongoClientOptions options = createOptions();
+			MongoFlameDAO.logger.info("Creating client of {} with {}", host, options);
+			sharedClient = new SharedClient(new MongoClient(host, options));
+			clientsByHost.put(host, sharedClient);
+			prewarm(sharedClient.client, Integer.parseInt(System.getProperty("MONGO_FLAME_PREWARM_CONNECTIONS", "0")));
+		}
+		sharedClient.references++;
+		return sharedClient.client;
+	}
+
+	/**
+	 * Release a client acquired with {@link #acquire(String)}. The client is closed if no one else uses it.
+	 * @param host
+	 */
+	public static synchronized void release(String host) {
+		SharedClient sharedClient = clientsByHost.get(host);
+		if (sharedClient == null) {
+			return;
+		}
+		sharedClient.references--;
+		if (sharedClient.references <= 0) {
+			clientsByHost.remove(host);
+			sharedClient.client.close();
+			MongoFlameDAO.logger.info("Closed client of {}", host);
+		}
+	}
+
+	/**
+	 * Get the state shared by the DAOs of a database, creating it if needed. Each call must be matched by a call to {@link #releaseDatabaseState(String, String)}.
+	 * The state is created outside of the lock of the registry, so that setting up one database does not hold up the others.
+	 * @param host
+	 * @param dbName
+	 * @param database - the database, used if the state has to be created.
+	 * @return
+	 */
+	static DatabaseState acquireDatabaseState(String host, String dbName, MongoDatabase database) {
+		SharedDatabase sharedDatabase;
+		synchronized (MongoClientRegistry.class) {
+			String name = host + "/" + dbName;
+			sharedDatabase = databasesByName.get(name);
+			if (sharedDatabase == null) {
+				sharedDatabase = new SharedDatabase();
+				databasesByName.put(name, sharedDatabase);
+			}
+			sharedDatabase.references++;
+		}
+		try {
+			synchronized (sharedDatabase) {
+				if (sharedDatabase.state == null) {
+					sharedDatabase.state = DatabaseState.create(database);
+				}
+				return sharedDatabase.state;
+			}
+		} catch (RuntimeException ex) {
+			releaseDatabaseState(host, dbName);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Release a state acquired with {@link #acquireDatabaseState(String, String, MongoDatabase)}. The state is dropped if no one else uses it.
+	 * @param host
+	 * @param dbName
+	 */
+	static synchronized void releaseDatabaseState(String host, String dbName) {
+		String name = host + "/" + dbName;
+		SharedDatabase sharedDatabase = databasesByName.get(name);
+		if (sharedDatabase == null) {
+			return;
+		}
+		sharedDatabase.references--;
+		if (sharedDatabase.references <= 0) {
+			databasesByName.remove(name);
+		}
+	}
+
+	static MongoClientOptions createOptions() {
+		return MongoClientOptions.builder()
+				.connectionsPerHost(Integer.parseInt(System.getProperty("MONGO_FLAME_POOL_MAX_SIZE", "100")))
+				.minConnectionsPerHost(Integer.parseInt(System.getProperty("MONGO_FLAME_POOL_MIN_SIZE", "0")))
+				.threadsAllowedToBlockForConnectionMultiplier(Integer.parseInt(System.getProperty("MONGO_FLAME_POOL_WAIT_QUEUE_MULTIPLE", "5")))
+				.maxWaitTime(Integer.parseInt(System.getProperty("MONGO_FLAME_POOL_MAX_WAIT_TIME", "120000")))
+				.connectTimeout(Integer.parseInt(System.getProperty("MONGO_FLAME_CONNECT_TIMEOUT", "10000")))
+				.socketTimeout(Integer.parseInt(System.getProperty("MONGO_FLAME_SOCKET_TIMEOUT", "0")))
+				.heartbeatFrequency(Integer.parseInt(System.getProperty("MONGO_FLAME_HEARTBEAT_FREQUENCY", "10000")))
+				.build();
+	}
+
+	/**
+	 * Open connections by running concurrent pings, so the first requests do not pay for the connection setup.
+	 * @param client
+	 * @param connections
+	 */
+	private static void prewarm(final MongoClient client, int connections) {
+		if (connections <= 0) {
+			return;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(connections);
+		try {
+			List<Future<Document>> pings = new ArrayList<>();
+			for (int i = 0; i < connections; i++) {
+				pings.add(executor.submit(new Callable<Document>() {
+					@Override
+					public Document call() throws Exception {
+						return client.getDatabase("admin").runCommand(new Document("ping", 1));
+					}
+				}));
+			}
+			for (Future<Document> ping : pings) {
+				ping.get();
+			}
+			MongoFlameDAO.logger.info("Opened {} connections", connections);
+		} catch (Exception ex) {
+			MongoFlameDAO.logger.warn("Unable to open the connections in advance", ex);
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
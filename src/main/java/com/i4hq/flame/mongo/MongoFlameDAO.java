@@ -3,20 +3,37 @@
  */
 package com.i4hq.flame.mongo;
 
-import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 import org.bson.BsonArray;
 import org.bson.BsonDocument;
@@ -25,6 +42,9 @@ import org.bson.BsonElement;
 import org.bson.BsonString;
 import org.bson.BsonValue;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
 import org.bson.conversions.Bson;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,16 +55,26 @@ import com.i4hq.flame.core.AttributeValue;
 import com.i4hq.flame.core.EntityType;
 import com.i4hq.flame.core.FlameEntity;
 import com.i4hq.flame.core.FlameEntityDAO;
+import com.i4hq.flame.core.FlameEntityFactory;
 import com.i4hq.flame.core.Geo2DPoint;
 import com.i4hq.flame.core.MetadataItem;
 import com.mongodb.BasicDBObject;
 import com.mongodb.MongoBulkWriteException;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoWriteException;
+import com.mongodb.ReadPreference;
+import com.mongodb.Tag;
+import com.mongodb.TagSet;
+import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.MongoIterable;
+import com.mongodb.client.model.Accumulators;
 import com.mongodb.client.model.Aggregates;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
 import com.mongodb.client.model.UpdateOptions;
 
 /**
@@ -63,18 +93,138 @@ public class MongoFlameDAO implements FlameEntityDAO {
 	static final String ID_FIELD = "_id";
 	static final String LATITUDE_FIELD = "latitude";
 	static final String LOCATION_FIELD = "loc";
-	private static final String LONG_STRING_FIELD = "orig_value";
+	static final String LONG_STRING_FIELD = "orig_value";
 	static final String LONGITUDE_FIELD = "longitude";
-	private static final String REFERENCE_FIELD = "ref";
-	private static final String TEXT_FIELD = "text";
-	private static final String TS_FIELD = "ts";
-	private static final String TYPE_EXPR_FIELD = "type_expr";
-	private static final String TYPE_FIELD = "type";
-	private static final String VALUE_FIELD = "value";
+	static final String REFERENCE_FIELD = "ref";
+	static final String TEXT_FIELD = "text";
+	static final String TS_FIELD = "ts";
+	static final String TYPE_EXPR_FIELD = "type_expr";
+	static final String TYPE_FIELD = "type";
+	static final String VALUE_FIELD = "value";
+	/**
+	 * The fields of attribute documents left out when only some attributes are requested: the _id and the copies of long values.
+	 */
+	static final List<String> PROJECTED_OUT_ATTRIBUTE_FIELDS = Collections.unmodifiableList(Arrays.asList(ID_FIELD, TEXT_FIELD, LONG_STRING_FIELD));
 
 	private static final int MAX_MONGO_KEY_SIZE = 256;
 
 	private static final int MAX_LIMIT = 1024 * 10;
+	/**
+	 * The maximum number of entities returned by {@link #getEntitiesWithAttributeValue(String, String)}.
+	 */
+	static final int ATTRIBUTE_VALUE_LIMIT = 10 * 1000;
+
+	/**
+	 * The shortest period, in milliseconds, between two checks of the age of the buffered documents.
+	 */
+	private static final long MIN_FLUSH_CHECK_PERIOD = 10;
+
+	/**
+	 * The fraction of the maximum message size a batch is allowed to fill. This leaves room for the command itself and for errors in the size estimate.
+	 */
+	private static final double BATCH_FILL_RATIO = 0.9;
+
+	/**
+	 * Runs the background flushes of all DAOs on one daemon thread, so that creating a DAO does not start a thread.
+	 */
+	private static final ScheduledThreadPoolExecutor FLUSH_SCHEDULER = createFlushScheduler();
+
+	private static ScheduledThreadPoolExecutor createFlushScheduler() {
+		ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, createDaemonThreadFactory("mongo-flame-flusher-"));
+		// The flushes of closed DAOs are cancelled, so don't keep them queued.
+		scheduler.setRemoveOnCancelPolicy(true);
+		return scheduler;
+	}
+
+	/**
+	 * Writes the batches of the bulk writers of all DAOs. Its threads end when they are idle, so it is never shut down.
+	 */
+	private static final ExecutorService WRITE_EXECUTOR = Executors.newCachedThreadPool(createDaemonThreadFactory("mongo-flame-writer-"));
+
+	/**
+	 * Runs the concurrent queries of the reads of all DAOs. It is sized once, by MONGO_FLAME_QUERY_THREADS, and its threads end when they are idle, 
+	 * so it is never shut down.
+	 */
+	private static final ExecutorService QUERY_EXECUTOR = createQueryExecutor();
+
+	private static ExecutorService createQueryExecutor() {
+		int queryThreads = Integer.parseInt(System.getProperty("MONGO_FLAME_QUERY_THREADS", Integer.toString(2 * Runtime.getRuntime().availableProcessors())));
+		logger.info("MONGO_FLAME_QUERY_THREADS = {}", queryThreads);
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(queryThreads, queryThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), 
+				createDaemonThreadFactory("mongo-flame-reader-"));
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * The thread factories are created in a static method so that they do not hold a DAO.
+	 * @param namePrefix - the prefix of the names of the threads, which are numbered.
+	 * @return Returns a factory of daemon threads.
+	 */
+	static ThreadFactory createDaemonThreadFactory(final String namePrefix) {
+		final AtomicInteger threadNumber = new AtomicInteger();
+		return new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, namePrefix + threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * The listeners of the writers are created in static methods so that they do not hold a DAO.
+	 * @param statistics
+	 * @return Returns a listener of the attributes writer that counts the inserted attributes.
+	 */
+	static Consumer<List<AttributeRecord>> createAttributesListener(final AttributeStatistics statistics) {
+		return new Consumer<List<AttributeRecord>>() {
+
+			@Override
+			public void accept(List<AttributeRecord> records) {
+				for (AttributeRecord record : records) {
+					statistics.recordAttribute(record.getAttributeName(), record.getValue());
+				}
+			}
+		};
+	}
+
+	/**
+	 * @param statistics
+	 * @return Returns a listener of the entities writer that counts the inserted entities by type.
+	 */
+	static Consumer<List<Document>> createEntitiesListener(final AttributeStatistics statistics) {
+		return new Consumer<List<Document>>() {
+
+			@Override
+			public void accept(List<Document> docs) {
+				for (Document doc : docs) {
+					statistics.recordEntity(doc.getString(TYPE_FIELD));
+				}
+			}
+		};
+	}
+
+	/**
+	 * @param knownTypes
+	 * @param entityTypeResolver
+	 * @return Returns a listener of the types writer that adds the written types to the cache of known types and to the resolver.
+	 */
+	static Consumer<List<Document>> createTypesListener(final KnownTypesCache knownTypes, final EntityTypeResolver entityTypeResolver) {
+		return new Consumer<List<Document>>() {
+
+			@Override
+			public void accept(List<Document> docs) {
+				for (Document doc : docs) {
+					if (knownTypes.put(doc)) {
+						entityTypeResolver.typeInserted(doc.getString(ID_FIELD));
+					}
+				}
+			}
+		};
+	}
 
 	/**
 	 * @param entity
@@ -82,15 +232,28 @@ public class MongoFlameDAO implements FlameEntityDAO {
 	 * @param entityType - used to ensure attributes in the  entity type have the correct attribute type. Not used for attribute not in the entityType. As a result, we can do subsumption.
 	 */
 	static boolean addAttributeInJsonToEntity(FlameEntity entity, Document t, EntityType entityType) {
-		String name = t.getString(ATTRIBUTE_NAME_FIELD);
-		AttributeType valueType = AttributeType.valueOf(t.getString(TYPE_FIELD));
+		return addAttributeToEntity(entity, t.getString(ATTRIBUTE_NAME_FIELD), t.getString(TYPE_FIELD), t.get(VALUE_FIELD), getMetadata(t), entityType);
+	}
+
+	/**
+	 * Add an attribute read from the attributes collection to an entity.
+	 * @param entity
+	 * @param name
+	 * @param type - the name of the attribute type.
+	 * @param value
+	 * @param metadata
+	 * @param entityType - used to ensure attributes in the  entity type have the correct attribute type. Not used for attribute not in the entityType.
+	 * @return Returns false if the attribute was not added because its type does not match the type declared in the entity type.
+	 */
+	static boolean addAttributeToEntity(FlameEntity entity, String name, String type, Object value, MetadataItem[] metadata, EntityType entityType) {
+		AttributeType valueType = AttributeType.valueOf(type);
 		if (entityType == null){
-			entity.addAttribute(name, t.get(VALUE_FIELD), valueType, getMetadata(t));
+			entity.addAttribute(name, value, valueType, metadata);
 			return true;
 		}
 		AttributeType declaredType = entityType.getAttributeType(name);
 		if (declaredType == null || declaredType == valueType){
-			entity.addAttribute(name, t.get(VALUE_FIELD), valueType, getMetadata(t));
+			entity.addAttribute(name, value, valueType, metadata);
 			return true;
 		}
 
@@ -155,11 +318,21 @@ public class MongoFlameDAO implements FlameEntityDAO {
 	//private static MongoFlameDAO instance = new MongoFlameDAO();
 
 	public static MongoFlameDAO getInstance() {
-		return new MongoFlameDAO(System.getProperty("mongo.db", "flame"));
+		return new MongoFlameDAO(System.getProperty("mongo.host", "localhost"), System.getProperty("mongo.db", "flame"));
 	}
 	
 	public static MongoFlameDAO getInstance(String dbName) {
-		return new MongoFlameDAO(dbName);
+		return new MongoFlameDAO(System.getProperty("mongo.host", "localhost"), dbName);
+	}
+
+	/**
+	 * DAOs of the same host share a client, and so a connection pool, through {@link MongoClientRegistry}.
+	 * @param host
+	 * @param dbName
+	 * @return
+	 */
+	public static MongoFlameDAO getInstance(String host, String dbName) {
+		return new MongoFlameDAO(host, dbName);
 	}
 
 	private boolean isConnected = false;
@@ -171,6 +344,7 @@ public class MongoFlameDAO implements FlameEntityDAO {
 	private MongoCollection<Document> geoCollection;
 	private final UpdateOptions upsertOption;
 	private final String dbName;
+	private final String host;
 
 	private BulkOperation[] bulkWriters = new BulkOperation[5];
 	final private int entityAttributesBulkWriter = 0;
@@ -178,6 +352,43 @@ public class MongoFlameDAO implements FlameEntityDAO {
 	final private int typesBulkWriter = 2;
 	final private int referenceBulkWriter = 3;
 	final private int geoBulkWriter = 4;
+	/**
+	 * The maximum time, in milliseconds, a document stays in the buffer of a bulk writer before it is sent to the server.
+	 * Non-positive values disable the background flush.
+	 */
+	private long maxBufferLatency;
+	/**
+	 * The maximum number of batches per bulk writer that are being written asynchronously. If 0, writes are synchronous.
+	 */
+	private int maxInFlightBatches;
+	private ScheduledFuture<?> scheduledFlush;
+	/**
+	 * Writes the batches of the bulk writers when asynchronous writes are enabled and flushes the bulk writers in parallel. Null once the DAO is closed.
+	 */
+	private ExecutorService writeExecutor;
+	/**
+	 * Runs the queries of a read concurrently, such as the batches of a multi-get. Shared by all DAOs.
+	 */
+	private ExecutorService queryExecutor;
+	private EntityHydrator entityHydrator;
+	private int multiGetBatchSize;
+	private volatile QueryMode queryMode;
+	/**
+	 * The read preference of the queries. Writes always go to the primary.
+	 */
+	private ReadPreference readPreference = ReadPreference.primary();
+	/**
+	 * If not null, this DAO is a view of that DAO, with another read preference, and shares its client, write buffers, and executors.
+	 */
+	private final MongoFlameDAO parent;
+	/**
+	 * If true, FROM queries with declared attributes select entities by their stored type.
+	 */
+	private boolean typeDrivenFromQueries;
+	private EntityTypeResolver entityTypeResolver;
+	private IndexManager indexManager;
+	private AttributeStatistics attributeStatistics;
+	private QueryPlanner queryPlanner;
 	/**
 	 * This set is used to ensure that no metadata field names are the same as the required field names.
 	 */
@@ -185,10 +396,19 @@ public class MongoFlameDAO implements FlameEntityDAO {
 
 	private MongoDatabase database;
 
+	/**
+	 * The types known to be in the types collection.
+	 */
+	private KnownTypesCache knownTypes;
+
+	private final AttributeIdGenerator idGenerator = AttributeIdGenerator.fromSystemProperties();
 
 
-	private MongoFlameDAO (String dbName) {
+
+	private MongoFlameDAO (String host, String dbName) {
+		this.host = host;
 		this.dbName = dbName;
+		this.parent = null;
 		init();
 		upsertOption = new UpdateOptions();
 		upsertOption.upsert(true);
@@ -209,6 +429,36 @@ public class MongoFlameDAO implements FlameEntityDAO {
 	}	
 
 
+	/**
+	 * Creates a view of a DAO whose queries use another read preference.
+	 * @param dao
+	 * @param readPreference
+	 */
+	private MongoFlameDAO (MongoFlameDAO dao, ReadPreference readPreference) {
+		this.host = dao.host;
+		this.dbName = dao.dbName;
+		this.parent = dao;
+		this.upsertOption = dao.upsertOption;
+		this.reservedFieldNames.addAll(dao.reservedFieldNames);
+		this.isConnected = true;
+		this.mongoClient = dao.mongoClient;
+		this.geoCollection = dao.geoCollection;
+		this.bulkWriters = dao.bulkWriters;
+		this.maxBufferLatency = dao.maxBufferLatency;
+		this.maxInFlightBatches = dao.maxInFlightBatches;
+		this.writeExecutor = dao.writeExecutor;
+		this.queryExecutor = dao.queryExecutor;
+		this.multiGetBatchSize = dao.multiGetBatchSize;
+		this.queryMode = dao.queryMode;
+		this.typeDrivenFromQueries = dao.typeDrivenFromQueries;
+		this.entityTypeResolver = dao.entityTypeResolver;
+		this.indexManager = dao.indexManager;
+		this.attributeStatistics = dao.attributeStatistics;
+		this.queryPlanner = dao.queryPlanner;
+		this.knownTypes = dao.knownTypes;
+		setReadPreference(readPreference);
+	}
+
 	/* (non-Javadoc)
 	 * @see java.lang.Object#finalize()
 	 */
@@ -218,20 +468,48 @@ public class MongoFlameDAO implements FlameEntityDAO {
 		super.finalize();
 	}
 
+	/**
+	 * Flush the buffered writes and release the resources of the DAO. Closing a view created by {@link #withReadPreference(ReadPreference)} does nothing.
+	 */
 	public void close() {
+		if (parent != null) {
+			return;
+		}
+		synchronized (this) {
+			// The shared database state and client are released once only.
+			if (mongoClient == null) {
+				return;
+			}
+			if (scheduledFlush != null) {
+				scheduledFlush.cancel(false);
+				scheduledFlush = null;
+			}
+		}
 		for(BulkOperation writer : bulkWriters) {
 			if (writer != null) {
 				writer.close();
 			}
 		}
-		mongoClient.close();
+		persistStatistics();
+		synchronized (this) {
+			// The executors are shared by all DAOs, so they are not shut down.
+			writeExecutor = null;
+		}
+		synchronized (this) {
+			if (mongoClient != null) {
+				MongoClientRegistry.releaseDatabaseState(host, dbName);
+				MongoClientRegistry.release(host);
+				mongoClient = null;
+				isConnected = false;
+			}
+		}
 	}
 
 	private synchronized void init() {
 		if (isConnected) {
 			return;
 		}
-		mongoClient = new MongoClient(System.getProperty("mongo.host", "localhost"));
+		mongoClient = MongoClientRegistry.acquire(host);
 		database = mongoClient.getDatabase(dbName);
 		entitiesCollection = database.getCollection("entities");
 		typesCollection = database.getCollection("types");
@@ -239,11 +517,70 @@ public class MongoFlameDAO implements FlameEntityDAO {
 		referenceCollection = database.getCollection("references");
 		geoCollection = database.getCollection("geos");
 		isConnected = true;
-		bulkWriters[entityAttributesBulkWriter] = new BulkInsert(entityAttributesCollection);
-		bulkWriters[entityBulkWriter] = new BulkInsert(entitiesCollection);
-		bulkWriters[typesBulkWriter] = new BulkInsert(typesCollection);
-		bulkWriters[referenceBulkWriter] = new BulkInsert(referenceCollection);
+		// The indexes, caches, statistics and server limits are set up once per database, by the first DAO.
+		DatabaseState databaseState = MongoClientRegistry.acquireDatabaseState(host, dbName, database);
+		indexManager = databaseState.getIndexManager();
+		knownTypes = databaseState.getKnownTypes();
+		attributeStatistics = databaseState.getAttributeStatistics();
+		entityTypeResolver = databaseState.getEntityTypeResolver();
+		// Attributes and references are encoded straight to BSON, without building documents.
+		CodecRegistry codecRegistry = CodecRegistries.fromRegistries(CodecRegistries.fromCodecs(new AttributeRecordCodec(database.getCodecRegistry())), 
+				database.getCodecRegistry());
+		BulkInsert<AttributeRecord> attributesWriter = new BulkInsert<AttributeRecord>(
+				entityAttributesCollection.withCodecRegistry(codecRegistry).withDocumentClass(AttributeRecord.class), AttributeRecord::estimateSize);
+		attributesWriter.setInsertListener(createAttributesListener(attributeStatistics));
+		bulkWriters[entityAttributesBulkWriter] = attributesWriter;
+		BulkInsert<Document> entitiesWriter = new BulkInsert<Document>(entitiesCollection, BsonSizeEstimator::estimate);
+		entitiesWriter.setInsertListener(createEntitiesListener(attributeStatistics));
+		bulkWriters[entityBulkWriter] = entitiesWriter;
+		BulkInsert<Document> typesWriter = new BulkInsert<Document>(typesCollection, BsonSizeEstimator::estimate);
+		// A type is known once it is in the types collection, whether this write or an earlier one put it there.
+		typesWriter.setInsertListener(createTypesListener(knownTypes, entityTypeResolver), true);
+		bulkWriters[typesBulkWriter] = typesWriter;
+		bulkWriters[referenceBulkWriter] = new BulkInsert<AttributeRecord>(
+				referenceCollection.withCodecRegistry(codecRegistry).withDocumentClass(AttributeRecord.class), AttributeRecord::estimateSize);
 		bulkWriters[geoBulkWriter] = new BulkUpdate(geoCollection);
+		configureBatchSizes(databaseState.getMaxMessageSize(), databaseState.getMaxWriteBatchSize());
+		writeExecutor = WRITE_EXECUTOR;
+		setMaxInFlightBatches(Integer.parseInt(System.getProperty("MONGO_FLAME_BULK_WRITE_MAX_IN_FLIGHT", "0")));
+		logger.info("MONGO_FLAME_BULK_WRITE_MAX_IN_FLIGHT = {}", maxInFlightBatches);
+		setAdaptiveBufferWriteThreshold(Long.parseLong(System.getProperty("MONGO_FLAME_BULK_WRITE_TARGET_LATENCY", "0")));
+		setMaxBufferLatency(Long.parseLong(System.getProperty("MONGO_FLAME_BULK_WRITE_MAX_LATENCY", "5000")));
+		logger.info("MONGO_FLAME_BULK_WRITE_MAX_LATENCY = {}", maxBufferLatency);
+
+		queryExecutor = QUERY_EXECUTOR;
+		multiGetBatchSize = Integer.parseInt(System.getProperty("MONGO_FLAME_MULTI_GET_BATCH_SIZE", "500"));
+		logger.info("MONGO_FLAME_MULTI_GET_BATCH_SIZE = {}", multiGetBatchSize);
+		setReadPreference(createReadPreference(System.getProperty("MONGO_FLAME_READ_PREFERENCE", "primary"), 
+				System.getProperty("MONGO_FLAME_READ_PREFERENCE_TAGS"), Long.parseLong(System.getProperty("MONGO_FLAME_READ_PREFERENCE_MAX_STALENESS", "-1"))));
+		logger.info("MONGO_FLAME_READ_PREFERENCE = {}", readPreference);
+		setQueryMode(QueryMode.valueOf(System.getProperty("MONGO_FLAME_QUERY_MODE", QueryMode.LOOKUP.name())));
+		logger.info("MONGO_FLAME_QUERY_MODE = {}", queryMode);
+		typeDrivenFromQueries = Boolean.parseBoolean(System.getProperty("MONGO_FLAME_TYPE_DRIVEN_FROM", "true"));
+		logger.info("MONGO_FLAME_TYPE_DRIVEN_FROM = {}", typeDrivenFromQueries);
+		int maxDriverEntities = Integer.parseInt(System.getProperty("MONGO_FLAME_PLANNER_MAX_DRIVER_ENTITIES", "10000"));
+		logger.info("MONGO_FLAME_PLANNER_MAX_DRIVER_ENTITIES = {}", maxDriverEntities);
+		queryPlanner = new QueryPlanner(attributeStatistics, entityTypeResolver, maxDriverEntities);
+	}
+
+	/**
+	 * Size the batches of the bulk writers so that each round trip is close to the maximum message size of the server.
+	 * Unless they are set explicitly, the buffers are flushed by size and the document count is only a secondary cap.
+	 * @param maxMessageSize - the maximum size, in bytes, of a message to the server.
+	 * @param maxWriteBatchSize - the maximum number of documents in a write command.
+	 */
+	private void configureBatchSizes(int maxMessageSize, int maxWriteBatchSize) {
+		long maxBatchBytes = (long) (maxMessageSize * BATCH_FILL_RATIO);
+		logger.info("maximum batch size = {} bytes, {} documents", maxBatchBytes, maxWriteBatchSize);
+		for (BulkOperation writer : bulkWriters) {
+			writer.setMaxBatchSize(maxBatchBytes, maxWriteBatchSize);
+			if (System.getProperty("MONGO_FLAME_BULK_WRITE_MAX_BYTES") == null) {
+				writer.setMaxBufferedBytes(maxBatchBytes);
+			}
+			if (System.getProperty("MONGO_FLAME_BULK_WRITE_MIN_THRESHOLD") == null) {
+				writer.setBufferWriteThreshold(maxWriteBatchSize);
+			}
+		}
 	}
 
 	protected boolean connect() {
@@ -263,29 +600,37 @@ public class MongoFlameDAO implements FlameEntityDAO {
 	 * @see com.i4hq.flame.EntityDAO#save(com.i4hq.flame.Entity)
 	 */
 	@Override
+	@SuppressWarnings("unchecked")
 	public boolean save(FlameEntity entity) {		
 		SaveTransactionStep step = SaveTransactionStep.START;
 		boolean insertCompletedSuccessfully = false;
 		try {
-			String typeHash = createHash(entity.getType());
+			final String typeExpr = entity.getType();
+			String typeHash = knownTypes.getHash(typeExpr);
+			final boolean isNewType = typeHash == null;
+			if (isNewType) {
+				typeHash = createHash(typeExpr);
+			}
 			Document entitiesDocument = new Document(ID_FIELD, entity.getId()).append(TYPE_FIELD, typeHash);
 			if (entity.getGeospatialPosition() != null) {
 				entitiesDocument.append(LOCATION_FIELD, toGeoJsonPoint(entity.getGeospatialPosition()));
 			}
-			Document typesDocument = new Document(ID_FIELD, typeHash).append(TYPE_EXPR_FIELD, entity.getType());
-			List<AttributeDocument> attributes = toEntityAttributesDocuments(entity);
-
-			// Save type. No need to roll this back. May through an exception because of a duplicate type
-			try {
-				((BulkInsert) bulkWriters[typesBulkWriter]).write(typesDocument);
-			} catch (MongoWriteException ex) {
-				// Assume this only occurs when the type already exists. Therefore we ignore it since different entities may have the same type.
-				logger.debug(ex.getMessage());
+			List<AttributeRecord> attributes = toAttributeRecords(entity);
+
+			// Save type, unless it is known to be saved already. No need to roll this back. May through an exception because of a duplicate type
+			if (isNewType) {
+				Document typesDocument = new Document(ID_FIELD, typeHash).append(TYPE_EXPR_FIELD, typeExpr);
+				try {
+					((BulkInsert<Document>) bulkWriters[typesBulkWriter]).write(typesDocument);
+				} catch (MongoWriteException ex) {
+					// Assume this only occurs when the type already exists. Therefore we ignore it since different entities may have the same type.
+					logger.debug(ex.getMessage());
+				}
 			}
 
 			// Save to entities collection.
 			try {
-				((BulkInsert) bulkWriters[this.entityBulkWriter]).write(entitiesDocument);
+				((BulkInsert<Document>) bulkWriters[this.entityBulkWriter]).write(entitiesDocument);
 				step = SaveTransactionStep.SAVED_TO_ENTITIES_COLLECTION;
 			} catch (MongoWriteException ex) {
 				// Assuming we only get this when we inserting an entity that already exists.
@@ -295,16 +640,16 @@ public class MongoFlameDAO implements FlameEntityDAO {
 			// Save attributes.
 			// Fail if any insert fails.
 			try {
-				for (AttributeDocument ad : attributes){
-					switch(ad.getDocType()) {
+				for (AttributeRecord record : attributes){
+					switch(record.getRecordType()) {
 					case REFERENCE: 
-						((BulkInsert) bulkWriters[referenceBulkWriter]).write(ad.getDecoratedDoc());
+						((BulkInsert<AttributeRecord>) bulkWriters[referenceBulkWriter]).write(record);
 						break;
 					case GEO:
-						((BulkUpdate) bulkWriters[geoBulkWriter]).update(Filters.eq(ENTITY_ID_FIELD, entity.getId()), new Document ("$set", ad.getDecoratedDoc()));
+						((BulkUpdate) bulkWriters[geoBulkWriter]).update(Filters.eq(ENTITY_ID_FIELD, entity.getId()), new Document ("$set", record.toDocument()));
 						break;
 					default:
-						((BulkInsert) bulkWriters[entityAttributesBulkWriter]).write(ad.getDecoratedDoc());
+						((BulkInsert<AttributeRecord>) bulkWriters[entityAttributesBulkWriter]).write(record);
 					}
 				}
 			} catch (MongoBulkWriteException ex) {
@@ -320,33 +665,16 @@ public class MongoFlameDAO implements FlameEntityDAO {
 	}
 
 	private Document toGeoJsonPoint(Geo2DPoint gp) {
-		Document doc = Document.parse(String.format("{ type: 'Point', coordinates: [ %f, %f ] }", gp.getLongitude(), gp.getLatitude()));
-		return doc;
+		return new Document("type", "Point").append("coordinates", Arrays.asList(gp.getLongitude(), gp.getLatitude()));
 	}
 
 
 	private String createHash(String type) {
-		try {
-			MessageDigest md = MessageDigest.getInstance("MD5");
-			md.update(type.getBytes());
-			return new BigInteger(1,md.digest()).toString(16);
-		} catch (NoSuchAlgorithmException e) {
-			logger.error("MD5", e);
-			throw new RuntimeException(e);
-		}
+		return idGenerator.createTypeHash(type);
 	}
 
-	private String createAttributeId(Object attributeValue, String attributeName, byte[] entityId) {
-		try {
-			MessageDigest md = MessageDigest.getInstance("MD5");
-			md.update(attributeValue == null ? "".getBytes() : attributeValue.toString().getBytes());
-			md.update(attributeName.getBytes());
-			md.update(entityId);
-			return new BigInteger(1,md.digest()).toString(16);
-		} catch (NoSuchAlgorithmException e) {
-			logger.error("MD5", e);
-			throw new RuntimeException(e);
-		}
+	private Object createAttributeId(Object attributeValue, String attributeName, String entityId) {
+		return idGenerator.createAttributeId(attributeValue, attributeName, entityId);
 	}
 
 	@Override
@@ -362,75 +690,71 @@ public class MongoFlameDAO implements FlameEntityDAO {
 	}
 
 	/**
-	 * Convert each attribute into a Mongo Document.
+	 * Convert each attribute into a record that is encoded straight to BSON.
 	 * @param entity
-	 * @param idOfEntityType - the ID of the type of the entity.
 	 * @return
 	 */
-	private List<AttributeDocument> toEntityAttributesDocuments(FlameEntity entity){
-		List<AttributeDocument> docs = new ArrayList<>(entity.size());
-		byte[] entityIdInBytes = entity.getId().getBytes();
+	private List<AttributeRecord> toAttributeRecords(FlameEntity entity){
+		List<AttributeRecord> records = new ArrayList<>(entity.size());
+		final String entityId = entity.getId();
 
-		// Create a document for each attribute.
+		// Create a record for each attribute.
 		for (Entry<String, List<AttributeValue>> attributes : entity.getAttributes()){
 			final List<AttributeValue> values = attributes.getValue();
 			if (values == null) {
 				continue;
 			}
 			for (AttributeValue attribute : values){
-				AttributeDocument doc = addAttributeColumns(entityIdInBytes, attributes.getKey(), attribute);
-				doc.append(ENTITY_ID_FIELD, entity.getId());
-				doc.append(TS_FIELD, entity.getTimestamp());
-				docs.add(doc);
+				AttributeRecord record = addAttributeColumns(entityId, attributes.getKey(), attribute);
+				record.setEntityId(entityId);
+				record.setTimestamp(entity.getTimestamp());
+				records.add(record);
 			}
 		}
 
-		return docs;
+		return records;
 	}
 
 
 	/**
-	 * @param entityIdInBytes
+	 * @param entityId
 	 * @param attributePathName
 	 * @param attribute
 	 * @return
 	 */
-	private AttributeDocument addAttributeColumns(byte[] entityIdInBytes, String attributePathName, AttributeValue attribute) {
+	private AttributeRecord addAttributeColumns(String entityId, String attributePathName, AttributeValue attribute) {
 
 		AttributeType attributeType = attribute.getType();
 		String value = attribute.getValue();
-		String attributeId = createAttributeId(value, attributePathName, entityIdInBytes);
-		AttributeDocument doc =  null;
+		Object attributeId = createAttributeId(value, attributePathName, entityId);
+		AttributeRecord record =  null;
 		if (attributeType == AttributeType.REFERENCE){
-			doc = new AttributeDocument (new Document(), AttributeDocument.AttributeDocumentType.REFERENCE);
-			addToIndexableField(doc, VALUE_FIELD, value);	
+			record = new AttributeRecord(AttributeRecord.RecordType.REFERENCE, attributePathName, attributeType.toString());
+			addToIndexableField(record, VALUE_FIELD, value);	
 		} else if (attributeType == AttributeType.STRING && containsSpace(value)){
-			doc = new AttributeDocument (new Document(), AttributeDocument.AttributeDocumentType.DEFAULT);
-			doc.append(TEXT_FIELD, value);
+			record = new AttributeRecord(AttributeRecord.RecordType.DEFAULT, attributePathName, attributeType.toString());
+			record.setText(value);
 			// If the string is too long, then elide it. Since is has been added as a text field.
-			doc.append(VALUE_FIELD, value = isLongString(value) ? "..." : value);
+			record.setValue(VALUE_FIELD, isLongString(value) ? "..." : value);
 		} else if (attributeType == AttributeType.LATITUDE || attributeType == AttributeType.LONGITUDE) {
-			doc = new AttributeDocument (new Document(), AttributeDocument.AttributeDocumentType.GEO);
-			addToIndexableField(doc, attributeType == AttributeType.LATITUDE ? LATITUDE_FIELD : LONGITUDE_FIELD, attributeType.convertToJava(value));	
-			attributeId = new String(entityIdInBytes);
+			record = new AttributeRecord(AttributeRecord.RecordType.GEO, attributePathName, attributeType.toString());
+			addToIndexableField(record, attributeType == AttributeType.LATITUDE ? LATITUDE_FIELD : LONGITUDE_FIELD, attributeType.convertToJava(value));	
+			attributeId = entityId;
 		}else {
-			doc = new AttributeDocument (new Document(), AttributeDocument.AttributeDocumentType.DEFAULT);
-			addToIndexableField(doc, VALUE_FIELD, attributeType.convertToJava(value));	
+			record = new AttributeRecord(AttributeRecord.RecordType.DEFAULT, attributePathName, attributeType.toString());
+			addToIndexableField(record, VALUE_FIELD, attributeType.convertToJava(value));	
 		}
 
 		// add metadata field
 		for (MetadataItem metadata : attribute.getMetadata()) {
 			if (this.reservedFieldNames.contains(metadata.getName())) {
-				throw new RuntimeException("Attempting to used a reserved field name as a metadata field name: " + metadata.getName() + " in entity " + new String(entityIdInBytes));
+				throw new RuntimeException("Attempting to used a reserved field name as a metadata field name: " + metadata.getName() + " in entity " + entityId);
 			}
-			doc.append(metadata.getName(), metadata.getValue());
+			record.addMetadata(metadata);
 		}
-		attributeId = attributeId == null ? createAttributeId(value, attributePathName, entityIdInBytes) : attributeId;
-		doc.append(ID_FIELD, attributeId);
-		doc.append(ATTRIBUTE_NAME_FIELD, attributePathName);
-		doc.append(TYPE_FIELD, attributeType.toString());
+		record.setId(attributeId);
 
-		return doc;
+		return record;
 	}
 
 	private boolean containsSpace(String value) {
@@ -447,18 +771,18 @@ public class MongoFlameDAO implements FlameEntityDAO {
 	}
 
 
-	private void addToIndexableField(Document doc, String fieldName, Object v){
+	private void addToIndexableField(AttributeRecord record, String fieldName, Object v){
 		if (!(v instanceof String)){
-			doc.append(fieldName, v);
+			record.setValue(fieldName, v);
 			return;
 		}
 		String s = (String) v;
 
 		if (!isLongString(s)){
-			doc.append(fieldName, s);
+			record.setValue(fieldName, s);
 		} else {
-			doc.append(fieldName, "...");
-			doc.append(LONG_STRING_FIELD, s);
+			record.setValue(fieldName, "...");
+			record.setLongValue(s);
 		}
 	}
 
@@ -481,6 +805,20 @@ public class MongoFlameDAO implements FlameEntityDAO {
 
 	@Override
 	public FlameEntity getEntitiesById(final String id) {
+		return getEntitiesById(id, null);
+	}
+
+	/**
+	 * Get an entity with only some of its attributes.
+	 * @param id
+	 * @param attributeNames - the names of the attributes to get. If null, all attributes are returned. 
+	 * Otherwise, the copies of long values are not fetched, so long values are elided as "..." and strings with spaces are not in the text metadata.
+	 * @return
+	 */
+	public FlameEntity getEntitiesById(final String id, Collection<String> attributeNames) {
+		if (queryMode == QueryMode.CLIENT_JOIN) {
+			return entityHydrator.hydrate(Collections.singletonList(id), null, attributeNames).get(id);
+		}
 		final FlameEntity entity = new MongoFlameEntity(id, this);
 		String attributesFieldName = "attributes";
 
@@ -493,50 +831,113 @@ public class MongoFlameDAO implements FlameEntityDAO {
 		BsonDocument eqEntityId = new BsonDocument(ID_FIELD, new BsonString(entity.getId()));
 		BsonDocument match = new BsonDocument("$match", eqEntityId);
 
-		List<? extends Bson> pipelines = Arrays.asList(match, lookup);
+		List<Bson> pipelines = new ArrayList<>(Arrays.asList(match, lookup));
+		addAttributeProjection(pipelines, attributesFieldName, attributeNames, null);
 		final Map<String, FlameEntity> resultEntities = new HashMap<>();
 		resultEntities.put(entity.getId(), entity);
 
-		Consumer<Document> addAttribute = new AddAttributeToEntityActionFromJoin(resultEntities, attributesFieldName);		
-		entitiesCollection.aggregate(pipelines).forEach(addAttribute);
+		aggregateJoinedEntities(entitiesCollection, pipelines, ID_FIELD, attributesFieldName, null, resultEntities);
 
 		return entity;
 	}
 
 	@Override
 	public List<FlameEntity> getEntitiesByIds(List<String> ids) {
+		return getEntitiesByIds(ids, null);
+	}
 
-		final List<FlameEntity> results = new LinkedList<>();
+	/**
+	 * Get entities with only some of their attributes.
+	 * @param ids
+	 * @param attributeNames - the names of the attributes to get. If null, all attributes are returned. See {@link #getEntitiesById(String, Collection)}.
+	 * @return Returns the entities in the order of the IDs.
+	 */
+	public List<FlameEntity> getEntitiesByIds(List<String> ids, Collection<String> attributeNames) {
+		Map<String, FlameEntity> entities = entityHydrator.hydrate(ids, null, attributeNames);
+		final List<FlameEntity> results = new ArrayList<>(ids.size());
 		for (String id : ids){
-			results.add(getEntitiesById(id));
+			results.add(entities.get(id));
 		}
 		return results;
 	}
 
 	@Override
 	public Collection<FlameEntity> getEntitiesWithAttributeValue(String attributePath, String value) {
+		return getEntitiesWithAttributeValue(attributePath, value, null);
+	}
+
+	/**
+	 * Get entities that have an attribute value, with only some of their attributes.
+	 * @param attributePath
+	 * @param value
+	 * @param attributeNames - the names of the attributes to get. If null, all attributes are returned. See {@link #getEntitiesById(String, Collection)}.
+	 * @return
+	 */
+	public Collection<FlameEntity> getEntitiesWithAttributeValue(String attributePath, String value, Collection<String> attributeNames) {
+		return getEntitiesWithMatchingAttribute(Filters.and(Filters.eq(ATTRIBUTE_NAME_FIELD, attributePath), Filters.eq(VALUE_FIELD, value)), ATTRIBUTE_VALUE_LIMIT, 
+				attributeNames);
+	}
+
+	/**
+	 * Get the entities with an attribute whose value, or timestamp, is within a range.
+	 * @param range
+	 * @param limitAmount - the maximum number of entities.
+	 * @return
+	 */
+	public Collection<FlameEntity> getEntitiesWithAttributeValueInRange(AttributeValueRange range, int limitAmount) {
+		return getEntitiesWithAttributeValueInRange(range, limitAmount, null);
+	}
+
+	/**
+	 * Get the entities with an attribute whose value, or timestamp, is within a range, with only some of their attributes.
+	 * @param range
+	 * @param limitAmount - the maximum number of entities.
+	 * @param attributeNames - the names of the attributes to get. If null, all attributes are returned. See {@link #getEntitiesById(String, Collection)}.
+	 * @return
+	 */
+	public Collection<FlameEntity> getEntitiesWithAttributeValueInRange(AttributeValueRange range, int limitAmount, Collection<String> attributeNames) {
+		logger.debug("range query: {}", range);
+		return getEntitiesWithMatchingAttribute(range.toFilter(), limitAmount, attributeNames);
+	}
+
+	/**
+	 * @param filter - the filter on the attributes collection.
+	 * @param limitAmount
+	 * @param attributeNames - the names of the attributes to get. If null, all attributes are returned.
+	 * @return Returns the entities with an attribute that matches the filter.
+	 */
+	private Collection<FlameEntity> getEntitiesWithMatchingAttribute(Bson filter, int limitAmount, Collection<String> attributeNames) {
 		final Map<String, FlameEntity> resultEntities = new HashMap<>();
-		int limitAmount = 10 * 1000;
-		
 		String attributesLookupName = "attributes";
-		Consumer<Document> addAttribute = new AddAttributeToEntityActionFromJoin(ENTITY_ID_FIELD, resultEntities, attributesLookupName);
 
-		Bson match = Aggregates.match(Filters.and(Filters.eq(ATTRIBUTE_NAME_FIELD, attributePath), Filters.eq(VALUE_FIELD, value)));
-		Bson entityLookup = Aggregates.lookup("entities", ENTITY_ID_FIELD, ID_FIELD, "entities");
-		Bson attributeLookup = Aggregates.lookup(attributesLookupName, ENTITY_ID_FIELD, ENTITY_ID_FIELD, attributesLookupName);
-		Bson limit = Aggregates.limit(determineLimit(limitAmount));
-		this.entityAttributesCollection.aggregate(Arrays.asList(match, entityLookup, attributeLookup, limit)).forEach(addAttribute);
+		if (queryMode == QueryMode.CLIENT_JOIN) {
+			return findEntities(entityAttributesCollection, filter, ENTITY_ID_FIELD, determineLimit(limitAmount), null, attributeNames);
+		}
+		List<Bson> pipeline = matchEntityIds(filter, determineLimit(limitAmount));
+		pipeline.add(Aggregates.lookup(attributesLookupName, ID_FIELD, ENTITY_ID_FIELD, attributesLookupName));
+		addAttributeProjection(pipeline, attributesLookupName, attributeNames, null);
+		aggregateJoinedEntities(entityAttributesCollection, pipeline, ID_FIELD, attributesLookupName, null, resultEntities);
 		return resultEntities.values();
 	}
 
 
 	@Override
 	public Collection<FlameEntity> getEntitiesByAttributeExpression(AttributeExpression expr) {
+		return getEntitiesByAttributeExpression(expr, null);
+	}
+
+	/**
+	 * Get entities that match an expression, with only some of their attributes.
+	 * @param expr
+	 * @param attributeNames - the names of the attributes to get. If null, all attributes are returned. See {@link #getEntitiesById(String, Collection)}.
+	 * @return
+	 */
+	public Collection<FlameEntity> getEntitiesByAttributeExpression(AttributeExpression expr, Collection<String> attributeNames) {
 		switch(expr.getOperator()){
 		case WITHIN:
-			return getAttributiesByGeospatialRegion(expr.getAttributeName(), expr.getCoordinates(), expr.getLimit());
+			return getAttributiesByGeospatialRegion(expr.getAttributeName(), expr.getCoordinates(), expr.getLimit(), attributeNames);
 		case FROM:
-			return getAttributesByEntityType(expr.getEntityType(), expr.getLimit());		
+			return getAttributesByEntityType(expr.getEntityType(), expr.getLimit(), attributeNames);		
 		default:
 			return new LinkedList<>();
 		}
@@ -547,39 +948,411 @@ public class MongoFlameDAO implements FlameEntityDAO {
 	 * @param entityType
 	 * @return
 	 */
-	private Collection<FlameEntity> getAttributesByEntityType(EntityType entityType, int limitAmount) {
+	private Collection<FlameEntity> getAttributesByEntityType(EntityType entityType, int limitAmount, Collection<String> attributeNames) {
 		if (entityType == null) {
 			return new LinkedList<>();
 		}
 		final Map<String, FlameEntity> resultEntities = new HashMap<>();
 
 		String attributesLookupName = "attributes";
-		Consumer<Document> addAttribute = new AddAttributeToEntityActionFromJoin(ENTITY_ID_FIELD, resultEntities, attributesLookupName, entityType);
 
-		// We use at least one attribute decl to reduce the result set instead
-		// of looping through all attributes.
-		Set<String> attributeNamesInEntityType = entityType.getAttributeNames();
+		if (typeDrivenFromQueries && !entityType.getAttributeNames().isEmpty()) {
+			List<String> typeHashes = entityTypeResolver.findTypeHashes(entityType);
+			if (queryPlanner.isTypeDrivenCheaper(entityType, typeHashes)) {
+				return getEntitiesOfStoredTypes(entityType, typeHashes, limitAmount, attributeNames);
+			}
+		}
 
-		// TODO Need to implement this.
-		// db.attributes.aggregate([{$match: {attribute_name: 'blah'}}, 
-		// {$lookup: {from: 'entities', localField: 'entity_id', foreignField: '_id', as: 'attributes'}}, 
-		// {$lookup: {from: 'attributes', localField: 'entity_id', foreignField: 'entity_id', as: 'more_attributes'}}])
+		Bson filter = createEntityTypeFilter(entityType);
+		if (queryMode == QueryMode.CLIENT_JOIN) {
+			return findEntities(entityAttributesCollection, filter, ENTITY_ID_FIELD, determineLimit(limitAmount), entityType, attributeNames);
+		}
+		List<Bson> pipeline = matchEntityIds(filter, determineLimit(limitAmount));
+		pipeline.add(Aggregates.lookup(attributesLookupName, ID_FIELD, ENTITY_ID_FIELD, attributesLookupName));
+		addAttributeProjection(pipeline, attributesLookupName, attributeNames, entityType);
+		aggregateJoinedEntities(entityAttributesCollection, pipeline, ID_FIELD, attributesLookupName, entityType, resultEntities);
+		return resultEntities.values();
+	}
 
-		Bson match;
-		if (attributeNamesInEntityType.isEmpty()){
-			match = Aggregates.match(Filters.gte(TS_FIELD, entityType.getAge()));
-		} else {
-			match = Aggregates.match(Filters.and(Filters.in(ATTRIBUTE_NAME_FIELD, attributeNamesInEntityType),
-					Filters.gte(TS_FIELD, entityType.getAge())));
+	/**
+	 * Get the entities whose stored type has at least one of the attributes of the entity type, selecting them by the type field of the entities collection.
+	 * If the entity type has an age, an entity must also have one of the declared attributes that is at least as recent.
+	 * @param entityType - an entity type that declares at least one attribute.
+	 * @param typeHashes - the hashes of the stored types that have at least one of the attributes of the entity type.
+	 * @param limitAmount
+	 * @param attributeNames - the names of the attributes to get. If null, all attributes are returned.
+	 * @return
+	 */
+	private Collection<FlameEntity> getEntitiesOfStoredTypes(EntityType entityType, List<String> typeHashes, int limitAmount, Collection<String> attributeNames) {
+		if (typeHashes.isEmpty()) {
+			return new LinkedList<>();
 		}
-		Bson limit = Aggregates.limit(determineLimit(limitAmount));
-		Bson entityLookup = Aggregates.lookup("entities", ENTITY_ID_FIELD, ID_FIELD, "entities");
-		Bson attributeLookup = Aggregates.lookup(attributesLookupName, ENTITY_ID_FIELD, ENTITY_ID_FIELD, attributesLookupName);
+		String attributesLookupName = "attributes";
+		Bson lookup = Aggregates.lookup(attributesLookupName, ID_FIELD, ENTITY_ID_FIELD, attributesLookupName);
+		List<Bson> pipeline = new ArrayList<>();
+		pipeline.add(Aggregates.match(Filters.in(TYPE_FIELD, typeHashes)));
+		boolean checkAge = entityType.getAge() > 0;
+		if (checkAge) {
+			pipeline.add(lookup);
+			pipeline.add(Aggregates.match(Filters.elemMatch(attributesLookupName, createEntityTypeFilter(entityType))));
+		}
+		pipeline.add(Aggregates.limit(determineLimit(limitAmount)));
 
-		this.entityAttributesCollection.aggregate(Arrays.asList(match, entityLookup, attributeLookup, limit)).forEach(addAttribute);
+		if (queryMode == QueryMode.CLIENT_JOIN) {
+			pipeline.add(Aggregates.project(Projections.include(ID_FIELD)));
+			return hydrateMatches(entitiesCollection.aggregate(pipeline).allowDiskUse(true), entityType, attributeNames);
+		}
+		if (!checkAge) {
+			pipeline.add(lookup);
+		}
+		addAttributeProjection(pipeline, attributesLookupName, attributeNames, entityType);
+		final Map<String, FlameEntity> resultEntities = new HashMap<>();
+		aggregateJoinedEntities(entitiesCollection, pipeline, ID_FIELD, attributesLookupName, entityType, resultEntities);
 		return resultEntities.values();
 	}
 
+	/**
+	 * Get the entities that match a composite expression. 
+	 * The operands are resolved to entity IDs concurrently, the ID sets are combined, and the surviving entities are loaded once.
+	 * If the statistics show that an operand of an AND matches few entities, it is resolved first and the other operands are only checked for its entities.
+	 * @param expr
+	 * @return
+	 */
+	public Collection<FlameEntity> getEntitiesByCompositeExpression(CompositeExpression expr) {
+		return getEntitiesByCompositeExpression(expr, null);
+	}
+
+	/**
+	 * Get the entities that match a composite expression, with only some of their attributes.
+	 * @param expr
+	 * @param attributeNames - the names of the attributes to get. If null, all attributes are returned. See {@link #getEntitiesById(String, Collection)}.
+	 * @return
+	 */
+	public Collection<FlameEntity> getEntitiesByCompositeExpression(CompositeExpression expr, Collection<String> attributeNames) {
+		Map<CompositeExpression.Operand, Future<Set<String>>> entityIdsByOperand = new IdentityHashMap<>();
+		Set<String> candidateIds = null;
+		if (expr.getCombinator() == CompositeExpression.Combinator.AND) {
+			CompositeExpression.Operand driver = queryPlanner.selectDriver(expr.getOperands());
+			if (driver != null) {
+				Set<String> driverIds = findEntityIds(driver, null);
+				if (driverIds.isEmpty()) {
+					return new LinkedList<>();
+				}
+				entityIdsByOperand.put(driver, CompletableFuture.completedFuture(driverIds));
+				// The estimate may be wrong. If the driver matched too many entities, resolve the other operands on their own rather than send all the IDs.
+				if (driverIds.size() <= queryPlanner.getMaxDriverEntities()) {
+					candidateIds = driverIds;
+				} else {
+					logger.debug("{} matched {} entities, too many to drive the query", driver, driverIds.size());
+				}
+			}
+		}
+		// Submit all operands first, so that no task of the pool waits on another task of the pool.
+		submitOperands(expr, candidateIds, entityIdsByOperand);
+		Set<String> entityIds = combineEntityIds(expr, entityIdsByOperand);
+
+		int limitAmount = determineLimit(expr.getLimit());
+		Set<String> survivors = new LinkedHashSet<>();
+		for (String entityId : entityIds) {
+			if (survivors.size() >= limitAmount) {
+				break;
+			}
+			survivors.add(entityId);
+		}
+		logger.debug("{} matched {} entities", expr, entityIds.size());
+		return entityHydrator.hydrate(survivors, findEntityType(expr), attributeNames).values();
+	}
+
+	/**
+	 * @param expr
+	 * @return Returns the entity type of the first FROM operand that every result must match, or null if there is none.
+	 */
+	private EntityType findEntityType(CompositeExpression expr) {
+		if (expr.getCombinator() != CompositeExpression.Combinator.AND) {
+			return null;
+		}
+		for (CompositeExpression.Operand operand : expr.getOperands()) {
+			if (operand.getExpression() != null) {
+				switch (operand.getExpression().getOperator()) {
+				case FROM:
+					return operand.getExpression().getEntityType();
+				default:
+					break;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param expr
+	 * @param candidateIds - if not null, the operands only need to be checked for these entities.
+	 * @param entityIdsByOperand - the pending entity IDs of the operands. Operands already in it are not submitted.
+	 */
+	private void submitOperands(CompositeExpression expr, final Set<String> candidateIds, Map<CompositeExpression.Operand, Future<Set<String>>> entityIdsByOperand) {
+		for (final CompositeExpression.Operand operand : expr.getOperands()) {
+			if (operand.getComposite() != null) {
+				submitOperands(operand.getComposite(), candidateIds, entityIdsByOperand);
+				continue;
+			}
+			if (entityIdsByOperand.containsKey(operand)) {
+				continue;
+			}
+			entityIdsByOperand.put(operand, queryExecutor.submit(new Callable<Set<String>>() {
+				@Override
+				public Set<String> call() throws Exception {
+					return findEntityIds(operand, candidateIds);
+				}
+			}));
+		}
+	}
+
+	/**
+	 * Intersect or union the entity IDs of the operands of an expression. Intersections start from the smallest set and stop as soon as the result is empty.
+	 * @param expr
+	 * @param entityIdsByOperand - the pending entity IDs of each operand that is not a composite expression.
+	 * @return
+	 */
+	private Set<String> combineEntityIds(CompositeExpression expr, Map<CompositeExpression.Operand, Future<Set<String>>> entityIdsByOperand) {
+		List<Set<String>> operandEntityIds = new ArrayList<>();
+		for (CompositeExpression.Operand operand : expr.getOperands()) {
+			if (operand.getComposite() != null) {
+				operandEntityIds.add(combineEntityIds(operand.getComposite(), entityIdsByOperand));
+				continue;
+			}
+			try {
+				operandEntityIds.add(entityIdsByOperand.get(operand).get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				logger.error("Failed to find the entities of {}", operand, e.getCause());
+				throw new RuntimeException(e.getCause());
+			}
+		}
+		if (operandEntityIds.isEmpty()) {
+			return new LinkedHashSet<>();
+		}
+		if (expr.getCombinator() == CompositeExpression.Combinator.OR) {
+			Set<String> union = new LinkedHashSet<>();
+			for (Set<String> entityIds : operandEntityIds) {
+				union.addAll(entityIds);
+			}
+			return union;
+		}
+		Collections.sort(operandEntityIds, new Comparator<Set<String>>() {
+			@Override
+			public int compare(Set<String> s1, Set<String> s2) {
+				return Integer.compare(s1.size(), s2.size());
+			}
+		});
+		Set<String> intersection = new LinkedHashSet<>(operandEntityIds.get(0));
+		for (int i = 1; i < operandEntityIds.size() && !intersection.isEmpty(); i++) {
+			intersection.retainAll(operandEntityIds.get(i));
+		}
+		return intersection;
+	}
+
+	/**
+	 * Find the IDs of all entities that match an operand that is not a composite expression, without loading the entities.
+	 * @param operand
+	 * @param candidateIds - if not null, only these entities are checked.
+	 * @return
+	 */
+	private Set<String> findEntityIds(CompositeExpression.Operand operand, Set<String> candidateIds) {
+		if (operand.getAttributeFilter() != null) {
+			return collectEntityIds(entityAttributesCollection, operand.getAttributeFilter(), ENTITY_ID_FIELD, candidateIds);
+		}
+		AttributeExpression expr = operand.getExpression();
+		switch(expr.getOperator()){
+		case WITHIN:
+			if (expr.getCoordinates().length < 3) {
+				logger.info("Not enough points to form a polygon.");
+				return new HashSet<>();
+			}
+			return collectEntityIds(entitiesCollection, createGeoWithinFilter(expr.getCoordinates()), ID_FIELD, candidateIds);
+		case FROM:
+			EntityType entityType = expr.getEntityType();
+			if (entityType == null) {
+				return new HashSet<>();
+			}
+			if (typeDrivenFromQueries && !entityType.getAttributeNames().isEmpty() && entityType.getAge() <= 0) {
+				List<String> typeHashes = entityTypeResolver.findTypeHashes(entityType);
+				if (queryPlanner.isTypeDrivenCheaper(entityType, typeHashes)) {
+					return collectEntityIds(entitiesCollection, Filters.in(TYPE_FIELD, typeHashes), ID_FIELD, candidateIds);
+				}
+			}
+			return collectEntityIds(entityAttributesCollection, createEntityTypeFilter(entityType), ENTITY_ID_FIELD, candidateIds);
+		default:
+			logger.info("Operator {} is not supported in composite expressions.", expr.getOperator());
+			return new HashSet<>();
+		}
+	}
+
+	/**
+	 * @param collection
+	 * @param filter
+	 * @param entityIdFieldName - the name of the field in the collection that holds the entity ID.
+	 * @param candidateIds - if not null, only these entities are checked.
+	 * @return Returns the distinct IDs of the entities that match the filter.
+	 */
+	private Set<String> collectEntityIds(MongoCollection<Document> collection, Bson filter, String entityIdFieldName, Set<String> candidateIds) {
+		if (candidateIds != null) {
+			filter = Filters.and(Filters.in(entityIdFieldName, candidateIds), filter);
+		}
+		MongoIterable<Document> matches;
+		if (entityIdFieldName.equals(ID_FIELD)) {
+			matches = collection.find(filter).projection(Projections.include(ID_FIELD)).batchSize(multiGetBatchSize);
+		} else {
+			matches = collection.aggregate(Arrays.asList(Aggregates.match(filter), Aggregates.group("$" + entityIdFieldName)))
+					.allowDiskUse(true).batchSize(multiGetBatchSize);
+		}
+		Set<String> entityIds = new HashSet<>();
+		try (MongoCursor<Document> cursor = matches.iterator()) {
+			while (cursor.hasNext()) {
+				String entityId = cursor.next().getString(ID_FIELD);
+				if (entityId != null) {
+					entityIds.add(entityId);
+				}
+			}
+		}
+		return entityIds;
+	}
+
+	/**
+	 * Search the text of string attributes. 
+	 * Only the string values that contain a space are copied to the text index, so single words stored on their own are not found.
+	 * @param text - the search string, in the syntax of the MongoDB $text operator.
+	 * @param attributeNames - the names of the attributes to search in. If null, all attributes are searched.
+	 * @param limitAmount - the maximum number of entities.
+	 * @return Returns the entities in descending order of the text score of their best matching attribute.
+	 */
+	public List<FlameEntity> searchText(String text, Collection<String> attributeNames, int limitAmount) {
+		String scoreField = "score";
+		Bson filter = Filters.text(text);
+		if (attributeNames != null) {
+			filter = Filters.and(filter, Filters.in(ATTRIBUTE_NAME_FIELD, attributeNames));
+		}
+		List<Bson> pipeline = new ArrayList<>();
+		pipeline.add(Aggregates.match(filter));
+		pipeline.add(new Document("$addFields", new Document(scoreField, new Document("$meta", "textScore"))));
+		pipeline.add(Aggregates.group("$" + ENTITY_ID_FIELD, Accumulators.max(scoreField, "$" + scoreField)));
+		pipeline.add(Aggregates.sort(Sorts.descending(scoreField)));
+		pipeline.add(Aggregates.limit(determineLimit(limitAmount)));
+
+		if (queryMode == QueryMode.CLIENT_JOIN) {
+			return new ArrayList<>(hydrateMatches(entityAttributesCollection.aggregate(pipeline).allowDiskUse(true), null, null));
+		}
+		String attributesLookupName = "attributes";
+		pipeline.add(Aggregates.lookup(attributesLookupName, ID_FIELD, ENTITY_ID_FIELD, attributesLookupName));
+		// The results are in ranked order, so the entities are kept in the order they are first found.
+		final Map<String, FlameEntity> resultEntities = new LinkedHashMap<>();
+		aggregateJoinedEntities(entityAttributesCollection, pipeline, ID_FIELD, attributesLookupName, null, resultEntities);
+		return new ArrayList<>(resultEntities.values());
+	}
+
+	/**
+	 * Streaming variant of {@link #getEntitiesWithAttributeValue(String, String)}, without a limit on the number of results.
+	 * @param attributePath
+	 * @param value
+	 * @param batchSize - the number of entities loaded at a time.
+	 * @param continuationToken - the continuation token of an earlier cursor of the same query to resume from, or null to start from the first entity.
+	 * @return Returns the entities in ascending order of ID.
+	 */
+	public EntityCursor streamEntitiesWithAttributeValue(String attributePath, String value, int batchSize, String continuationToken) {
+		Bson filter = Filters.and(Filters.eq(ATTRIBUTE_NAME_FIELD, attributePath), Filters.eq(VALUE_FIELD, value));
+		MongoCursor<Document> entityIdCursor = openEntityIdCursor(entityAttributesCollection, filter, ENTITY_ID_FIELD, IndexManager.ATTRIBUTE_VALUE_ENTITY_INDEX,
+				batchSize, continuationToken);
+		return new EntityCursor(entityIdCursor, ENTITY_ID_FIELD, entityHydrator, null, batchSize, 0, continuationToken);
+	}
+
+	/**
+	 * Streaming variant of {@link #getEntitiesByAttributeExpression(AttributeExpression)}. 
+	 * The limit of the expression, if positive, applies to each cursor and is not capped.
+	 * FROM expressions select the entities by their stored types when that reads fewer documents, as the query that returns a collection does.
+	 * @param expr
+	 * @param batchSize - the number of entities loaded at a time.
+	 * @param continuationToken - the continuation token of an earlier cursor of the same query to resume from, or null to start from the first entity.
+	 * @return Returns the entities in ascending order of ID.
+	 */
+	public EntityCursor streamEntitiesByAttributeExpression(AttributeExpression expr, int batchSize, String continuationToken) {
+		MongoCursor<Document> entityIdCursor = null;
+		String entityIdFieldName = ID_FIELD;
+		EntityType entityType = null;
+		switch(expr.getOperator()){
+		case WITHIN:
+			if (expr.getCoordinates().length < 3) {
+				logger.info("Not enough points to form a polygon.");
+			} else {
+				entityIdCursor = openEntityIdCursor(entitiesCollection, createGeoWithinFilter(expr.getCoordinates()), ID_FIELD, null, batchSize, continuationToken);
+			}
+			break;
+		case FROM:
+			entityType = expr.getEntityType();
+			if (entityType == null) {
+				break;
+			}
+			if (typeDrivenFromQueries && !entityType.getAttributeNames().isEmpty() && entityType.getAge() <= 0) {
+				List<String> typeHashes = entityTypeResolver.findTypeHashes(entityType);
+				if (queryPlanner.isTypeDrivenCheaper(entityType, typeHashes)) {
+					if (!typeHashes.isEmpty()) {
+						entityIdCursor = openEntityIdCursor(entitiesCollection, Filters.in(TYPE_FIELD, typeHashes), ID_FIELD, new Document(ID_FIELD, 1),
+								batchSize, continuationToken);
+					}
+					break;
+				}
+			}
+			entityIdFieldName = ENTITY_ID_FIELD;
+			entityIdCursor = openEntityIdCursor(entityAttributesCollection, createEntityTypeFilter(entityType), ENTITY_ID_FIELD, IndexManager.ENTITY_ID_INDEX,
+					batchSize, continuationToken);
+			break;
+		default:
+			break;
+		}
+		return new EntityCursor(entityIdCursor, entityIdFieldName, entityHydrator, entityType, batchSize, expr.getLimit(), continuationToken);
+	}
+
+	/**
+	 * Open a cursor on the IDs of the entities that match a filter, in ascending order, by scanning an index in the order of the entity IDs. 
+	 * Nothing is grouped or sorted in memory, so the first IDs are returned without reading every match first.
+	 * A collection with several documents per entity returns the ID of an entity once per matching document, and the {@link EntityCursor} skips the repeats.
+	 * Resuming after a continuation token is a range condition on the entity ID, so earlier results are not skipped over on the server.
+	 * @param collection
+	 * @param filter
+	 * @param entityIdFieldName - the name of the field in the collection that holds the entity ID.
+	 * @param hint - the index that orders the matches by entity ID. If null, the server chooses the index and sorts the matches.
+	 * @param batchSize
+	 * @param continuationToken - the ID after which to start. May be null.
+	 * @return Returns a cursor on documents with the entity ID in the given field.
+	 */
+	private MongoCursor<Document> openEntityIdCursor(MongoCollection<Document> collection, Bson filter, String entityIdFieldName, Document hint, int batchSize,
+			String continuationToken) {
+		if (continuationToken != null) {
+			filter = Filters.and(filter, Filters.gt(entityIdFieldName, continuationToken));
+		}
+		FindIterable<Document> entityIds = collection.find(filter).projection(Projections.include(entityIdFieldName))
+				.sort(Sorts.ascending(entityIdFieldName)).batchSize(batchSize);
+		if (hint != null) {
+			entityIds.modifiers(new Document("$hint", hint));
+		}
+		return entityIds.iterator();
+	}
+
+	/**
+	 * @param entityType
+	 * @return Returns the filter on the attributes collection for the attributes of entities that may be of the entity type.
+	 */
+	private Bson createEntityTypeFilter(EntityType entityType) {
+		// We use at least one attribute decl to reduce the result set instead
+		// of looping through all attributes.
+		Set<String> attributeNamesInEntityType = entityType.getAttributeNames();
+		if (attributeNamesInEntityType.isEmpty()){
+			return Filters.gte(TS_FIELD, entityType.getAge());
+		}
+		return Filters.and(Filters.in(ATTRIBUTE_NAME_FIELD, attributeNamesInEntityType),
+				Filters.gte(TS_FIELD, entityType.getAge()));
+	}
+
 	/**
 	 * @param limitAmount
 	 * @return Returns null if the input parameter is non-positive.
@@ -588,7 +1361,7 @@ public class MongoFlameDAO implements FlameEntityDAO {
 		return Aggregates.limit(determineLimit(limitAmount));
 	}
 
-	private int determineLimit(int limitAmount){
+	static int determineLimit(int limitAmount){
 		if (limitAmount < 1){
 			limitAmount = MAX_LIMIT;
 			logger.debug("no limit set. Using the maximum limit of {}", limitAmount);
@@ -599,11 +1372,11 @@ public class MongoFlameDAO implements FlameEntityDAO {
 		}
 		return limitAmount;
 	}
-	private Collection<FlameEntity> getAttributiesByGeospatialRegion(String attributeName, Geo2DPoint[] geospatialPositions, int limitAmount) {
+	private Collection<FlameEntity> getAttributiesByGeospatialRegion(String attributeName, Geo2DPoint[] geospatialPositions, int limitAmount,
+			Collection<String> attributeNames) {
 		final Map<String, FlameEntity> resultEntities = new HashMap<>();
 
 		String attributesFieldName = "attributes";
-		Consumer<Document> addAttribute = new AddAttributeToEntityActionFromJoin(resultEntities, attributesFieldName);		
 
 		if (geospatialPositions.length < 3) {
 			logger.info("Not enough points to form a polygon.");
@@ -616,6 +1389,35 @@ public class MongoFlameDAO implements FlameEntityDAO {
 		//		[ 20.73414993286133, 56.85886001586914 ] ] ] } } } }}, 
 		//		{$lookup: { from:"attributes", localField:"_id", foreignField: "entity_id", as: "attributes"}}])
 
+		BsonDocument filter = createGeoWithinFilter(geospatialPositions);
+		if (queryMode == QueryMode.CLIENT_JOIN) {
+			return findEntities(entitiesCollection, filter, ID_FIELD, determineLimit(limitAmount), null, attributeNames);
+		}
+		BsonDocument match = new BsonDocument("$match", filter);
+
+		// This is used to join the entities in the polygon to their attributes.
+		BsonDocument lookup = new BsonDocument("$lookup",new BsonDocument(Arrays.asList(
+				new BsonElement("from", new BsonString("attributes")),
+				new BsonElement("localField", new BsonString("_id")),
+				new BsonElement("foreignField", new BsonString(ENTITY_ID_FIELD)),
+				new BsonElement("as", new BsonString(attributesFieldName))
+				)));
+
+		Bson limit = createLimitDocument(limitAmount);
+		List<Bson> pipelines = new ArrayList<>(limit == null ? Arrays.asList(match, lookup) : Arrays.asList(match, limit, lookup));
+		addAttributeProjection(pipelines, attributesFieldName, attributeNames, null);
+
+		aggregateJoinedEntities(entitiesCollection, pipelines, ID_FIELD, attributesFieldName, null, resultEntities);
+
+		logger.debug("Number of results: {}", resultEntities.size());
+		return resultEntities.values();
+	}
+
+	/**
+	 * @param geospatialPositions - the vertices of the polygon. There must be at least 3.
+	 * @return Returns the filter on the entities collection for the entities located within the polygon.
+	 */
+	private BsonDocument createGeoWithinFilter(Geo2DPoint[] geospatialPositions) {
 		List<BsonValue> coordinates = new LinkedList<>();
 		// The first point must be the first and last in the list.
 		BsonArray firstPosition = createBsonGeoCoordinate(geospatialPositions[0]);
@@ -633,23 +1435,123 @@ public class MongoFlameDAO implements FlameEntityDAO {
 								new BsonElement("type", new BsonString("Polygon")),
 								new BsonElement ("coordinates", new BsonArray(Arrays.asList(new BsonArray(coordinates))))))));
 
-		BsonDocument match = new BsonDocument("$match", new BsonDocument(LOCATION_FIELD, geoWithin));
+		return new BsonDocument(LOCATION_FIELD, geoWithin);
+	}
 
-		// This is used to join the entities in the polygon to their attributes.
-		BsonDocument lookup = new BsonDocument("$lookup",new BsonDocument(Arrays.asList(
-				new BsonElement("from", new BsonString("attributes")),
-				new BsonElement("localField", new BsonString("_id")),
-				new BsonElement("foreignField", new BsonString(ENTITY_ID_FIELD)),
-				new BsonElement("as", new BsonString(attributesFieldName))
-				)));
+	/**
+	 * Find the IDs of the entities that match a filter and then load the entities and their attributes, joining them on the client.
+	 * @param collection
+	 * @param filter
+	 * @param entityIdFieldName - the name of the field in the collection that holds the entity ID.
+	 * @param limitAmount - the maximum number of documents matched.
+	 * @param entityType - used to ensure attributes in the entity type have the correct attribute type. May be null.
+	 * @param attributeNames - the names of the attributes to get. If null, all attributes are returned.
+	 * @return
+	 */
+	private Collection<FlameEntity> findEntities(MongoCollection<Document> collection, Bson filter, String entityIdFieldName, int limitAmount,
+			EntityType entityType, Collection<String> attributeNames) {
+		MongoIterable<Document> matches;
+		if (entityIdFieldName.equals(ID_FIELD)) {
+			matches = collection.find(filter).projection(Projections.include(ID_FIELD)).limit(limitAmount);
+		} else {
+			// Several attributes of an entity can match, so the limit applies to the distinct entity IDs.
+			matches = collection.aggregate(matchEntityIds(filter, limitAmount)).allowDiskUse(true);
+		}
+		return hydrateMatches(matches, entityType, attributeNames);
+	}
 
-		Bson limit = createLimitDocument(limitAmount);
-		List<? extends Bson> pipelines = limit == null ? Arrays.asList(match, lookup) : Arrays.asList(match, limit, lookup);
+	/**
+	 * Load the entities whose IDs are in the _id field of the matches, joining them to their attributes on the client.
+	 * @param matches
+	 * @param entityType - used to ensure attributes in the entity type have the correct attribute type. May be null.
+	 * @param attributeNames - the names of the attributes to get. If null, all attributes are returned.
+	 * @return
+	 */
+	private Collection<FlameEntity> hydrateMatches(MongoIterable<Document> matches, EntityType entityType, Collection<String> attributeNames) {
+		Set<String> entityIds = new LinkedHashSet<>();
+		try (MongoCursor<Document> cursor = matches.iterator()) {
+			while (cursor.hasNext()) {
+				String entityId = cursor.next().getString(ID_FIELD);
+				if (entityId != null) {
+					entityIds.add(entityId);
+				}
+			}
+		}
+		Collection<FlameEntity> results = entityHydrator.hydrate(entityIds, entityType, attributeNames).values();
+		logger.debug("Number of results: {}", results.size());
+		return results;
+	}
 
-		entitiesCollection.aggregate(pipelines).forEach(addAttribute);
+	/**
+	 * Add the stages that keep only the selected attributes in the joined attributes array. 
+	 * If attribute names are requested, the _id and the copies of long values of the attributes are left out too.
+	 * @param pipeline
+	 * @param attributesFieldName - the name of the joined attributes array.
+	 * @param attributeNames - the names of the attributes to keep. If null, all names are kept.
+	 * @param entityType - if not null, attributes declared in the entity type are kept only if they have the declared type.
+	 */
+	private void addAttributeProjection(List<Bson> pipeline, String attributesFieldName, Collection<String> attributeNames, EntityType entityType) {
+		BsonDocument condition = AttributeFilters.createCondition("a", attributeNames, entityType);
+		if (condition != null) {
+			BsonDocument filter = new BsonDocument("$filter", new BsonDocument(Arrays.asList(
+					new BsonElement("input", new BsonString("$" + attributesFieldName)),
+					new BsonElement("as", new BsonString("a")),
+					new BsonElement("cond", condition))));
+			pipeline.add(new BsonDocument("$addFields", new BsonDocument(attributesFieldName, filter)));
+		}
+		if (attributeNames != null) {
+			List<String> excludedFields = new ArrayList<>();
+			for (String field : PROJECTED_OUT_ATTRIBUTE_FIELDS) {
+				excludedFields.add(attributesFieldName + "." + field);
+			}
+			pipeline.add(Aggregates.project(Projections.exclude(excludedFields)));
+		}
+	}
 
-		logger.debug("Number of results: {}", resultEntities.size());
-		return resultEntities.values();
+	/**
+	 * Create the stages of a pipeline on the attributes collection that find the distinct IDs of the entities with an attribute that matches a filter.
+	 * Grouping and limiting come before any join, so each entity is joined once, and only the entities returned are joined.
+	 * @param filter
+	 * @param limitAmount
+	 * @return Returns the stages, which output documents whose _id is an entity ID. More stages can be added to the list.
+	 */
+	private List<Bson> matchEntityIds(Bson filter, int limitAmount) {
+		List<Bson> pipeline = new ArrayList<>();
+		pipeline.add(Aggregates.match(filter));
+		pipeline.add(Aggregates.group("$" + ENTITY_ID_FIELD));
+		pipeline.add(Aggregates.limit(limitAmount));
+		return pipeline;
+	}
+
+	/**
+	 * Run an aggregation whose results join an entity to its attributes and decode the results straight into entities.
+	 * @param collection
+	 * @param pipeline
+	 * @param entityIdFieldName - the name of the field in the results that holds the entity ID.
+	 * @param attributesFieldName - the name of the array in the results that holds the attributes.
+	 * @param entityType - used to ensure attributes in the entity type have the correct attribute type. May be null.
+	 * @param resultEntities - the entities found, keyed by ID. Entities already in the map are added to.
+	 */
+	private void aggregateJoinedEntities(MongoCollection<Document> collection, List<? extends Bson> pipeline, String entityIdFieldName, String attributesFieldName,
+			EntityType entityType, final Map<String, FlameEntity> resultEntities) {
+		Function<String, FlameEntity> entityResolver = new Function<String, FlameEntity>() {
+			@Override
+			public FlameEntity apply(String entityId) {
+				FlameEntity entity = resultEntities.get(entityId);
+				if (entity == null){
+					entity = FlameEntityFactory.createEntity(entityId);
+					resultEntities.put(entityId, entity);
+				}
+				return entity;
+			}
+		};
+		CodecRegistry registry = collection.getCodecRegistry();
+		JoinedEntityCodec codec = new JoinedEntityCodec(entityIdFieldName, attributesFieldName, entityType, entityResolver, registry);
+		try (MongoCursor<RawBsonDocument> cursor = collection.aggregate(pipeline, RawBsonDocument.class).allowDiskUse(true).iterator()) {
+			while (cursor.hasNext()) {
+				codec.decode(cursor.next());
+			}
+		}
 	}
 
 
@@ -661,15 +1563,282 @@ public class MongoFlameDAO implements FlameEntityDAO {
 		return new BsonArray(Arrays.asList(new BsonDouble(gp.getLongitude()), new BsonDouble(gp.getLatitude())));
 	}
 
+	/**
+	 * Sets the read preference of the queries of this DAO, such as secondaryPreferred to move the queries off the primary. Writes always go to the primary.
+	 * Set it before running queries.
+	 * @param readPreference
+	 */
+	public synchronized void setReadPreference(ReadPreference readPreference) {
+		this.readPreference = readPreference;
+		database = mongoClient.getDatabase(dbName).withReadPreference(readPreference);
+		entitiesCollection = database.getCollection("entities");
+		typesCollection = database.getCollection("types");
+		entityAttributesCollection = database.getCollection("attributes");
+		referenceCollection = database.getCollection("references");
+		entityHydrator = new EntityHydrator(this, entitiesCollection, entityAttributesCollection, queryExecutor, multiGetBatchSize);
+		// The FROM queries resolve the stored types with the same read preference, sharing the cache of the types.
+		if (entityTypeResolver != null) {
+			entityTypeResolver = entityTypeResolver.withCollections(typesCollection, entitiesCollection, entityAttributesCollection);
+		}
+		if (queryPlanner != null) {
+			queryPlanner = queryPlanner.withEntityTypeResolver(entityTypeResolver);
+		}
+	}
+
+	public ReadPreference getReadPreference() {
+		return readPreference;
+	}
+
+	/**
+	 * @return Returns the host and database of this DAO.
+	 */
+	String getName() {
+		return host + "/" + dbName;
+	}
+
+	/**
+	 * Get a view of this DAO whose queries use another read preference, for example to run a heavy query on a secondary.
+	 * The view shares the connection pool and the write buffers of this DAO, so it is cheap to create. Closing the view does nothing.
+	 * The write settings, such as {@link #setBufferWriteThreshold(int)}, cannot be changed through the view.
+	 * @param readPreference
+	 * @return
+	 */
+	public MongoFlameDAO withReadPreference(ReadPreference readPreference) {
+		return new MongoFlameDAO(this, readPreference);
+	}
+
+	/**
+	 * The write settings belong to the write buffers, which a view shares with its DAO. They are set on the DAO, so that a view cannot change them behind its back.
+	 * @throws UnsupportedOperationException if this DAO is a view.
+	 */
+	private void checkNotView() {
+		if (parent != null) {
+			throw new UnsupportedOperationException("The write settings of a view are those of its DAO. Set them on the DAO.");
+		}
+	}
+
+	/**
+	 * @param mode - the name of the read preference mode, such as secondaryPreferred or nearest.
+	 * @param tagSets - the tag sets in order of preference, separated by ';'. The tags of a tag set are name:value pairs separated by ','. May be null.
+	 * @param maxStalenessSeconds - the maximum replication lag of a secondary that may be read. Non-positive values mean no maximum.
+	 * @return
+	 */
+	static ReadPreference createReadPreference(String mode, String tagSets, long maxStalenessSeconds) {
+		if (ReadPreference.primary().getName().equalsIgnoreCase(mode)) {
+			return ReadPreference.primary();
+		}
+		List<TagSet> tagSetList = new ArrayList<>();
+		if (tagSets != null && !tagSets.trim().isEmpty()) {
+			for (String tagSet : tagSets.split(";")) {
+				List<Tag> tags = new ArrayList<>();
+				for (String tag : tagSet.split(",")) {
+					String[] nameAndValue = tag.split(":", 2);
+					if (nameAndValue.length != 2) {
+						throw new IllegalArgumentException("Tags must be name:value pairs: " + tagSet);
+					}
+					tags.add(new Tag(nameAndValue[0].trim(), nameAndValue[1].trim()));
+				}
+				tagSetList.add(new TagSet(tags));
+			}
+		}
+		if (maxStalenessSeconds > 0) {
+			return ReadPreference.valueOf(mode, tagSetList, maxStalenessSeconds, TimeUnit.SECONDS);
+		}
+		return ReadPreference.valueOf(mode, tagSetList);
+	}
+
+	/**
+	 * Check that the indexes the queries need exist, that the queries would use them rather than scan the collections, and which indexes are unused.
+	 * The problems found are logged.
+	 * @return Returns a description of each problem found.
+	 */
+	public List<String> verifyIndexes() {
+		return indexManager.verify();
+	}
+
+	/**
+	 * Sets how queries join entities to their attributes.
+	 * @param queryMode
+	 */
+	public void setQueryMode(QueryMode queryMode) {
+		this.queryMode = queryMode;
+	}
+
+	public QueryMode getQueryMode() {
+		return queryMode;
+	}
+
+	/**
+	 * Sets the same fixed write threshold on the bulk writers of all collections. This turns off adaptive tuning.
+	 * The threshold applies to each stripe of a bulk writer, see {@link BulkOperation#setBufferWriteThreshold(int)}.
+	 * @param i
+	 */
 	public void setBufferWriteThreshold(int i) {
+		checkNotView();
 		for (BulkOperation writer : bulkWriters) {
 			writer.setBufferWriteThreshold(i);
 		}
 	}
 
+	/**
+	 * Turn on adaptive tuning of the write thresholds. Each collection's bulk writer measures how long its batches take to write 
+	 * and grows or shrinks its own threshold to meet the target latency. A buffered document also triggers a write once the target latency 
+	 * has passed since the last write.
+	 * @param targetLatency - the target time, in milliseconds, to write a batch. Non-positive values turn off adaptive tuning.
+	 */
+	public void setAdaptiveBufferWriteThreshold(long targetLatency) {
+		checkNotView();
+		for (BulkOperation writer : bulkWriters) {
+			writer.setTargetLatency(targetLatency);
+		}
+	}
+
+	/**
+	 * Flush the bulk writers of all collections in parallel and wait until all buffered documents have been written.
+	 */
 	public void flush() {
+		final ExecutorService executor;
+		synchronized (this) {
+			executor = writeExecutor;
+		}
+		if (executor == null) {
+			for (BulkOperation writer : bulkWriters) {
+				writer.flush();
+			}
+			persistStatistics();
+			return;
+		}
+		List<Future<?>> flushes = new ArrayList<>(bulkWriters.length);
+		for (final BulkOperation writer : bulkWriters) {
+			flushes.add(executor.submit(new Runnable() {
+
+				@Override
+				public void run() {
+					writer.flush();
+				}
+			}));
+		}
+		for (Future<?> f : flushes) {
+			try {
+				f.get();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(ex);
+			} catch (ExecutionException ex) {
+				Throwable cause = ex.getCause();
+				throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+			}
+		}
+		persistStatistics();
+	}
+
+	/**
+	 * Add the counts of the documents inserted since the last time to the statistics collection. Failures are logged, since the statistics are only estimates.
+	 */
+	private void persistStatistics() {
+		if (attributeStatistics == null) {
+			return;
+		}
+		try {
+			attributeStatistics.persist();
+		} catch (RuntimeException ex) {
+			logger.error("Unable to save the statistics", ex);
+		}
+	}
+
+	/**
+	 * @return Returns the counts of the saved attributes and entities used to plan queries.
+	 */
+	public AttributeStatistics getAttributeStatistics() {
+		return attributeStatistics;
+	}
+
+	/**
+	 * Recount the attributes per name and the entities per type. Use it when the database has documents saved before the statistics were kept.
+	 * It reads the whole attributes and entities collections.
+	 */
+	public void rebuildStatistics() {
+		attributeStatistics.rebuild(entityAttributesCollection, entitiesCollection);
+	}
+
+	/**
+	 * Enable or disable asynchronous bulk writes. When enabled, full batches are written on a background thread while 
+	 * callers of save() continue to buffer documents. Callers block once the maximum number of batches of a collection are in flight.
+	 * Errors of asynchronous writes are logged rather than thrown to save().
+	 * @param maxInFlightBatches - the maximum number of batches per collection that may be in flight. If 0, writes are synchronous.
+	 */
+	public synchronized void setMaxInFlightBatches(int maxInFlightBatches) {
+		checkNotView();
+		this.maxInFlightBatches = Math.max(0, maxInFlightBatches);
+		for (BulkOperation writer : bulkWriters) {
+			writer.setAsyncWrites(writeExecutor, this.maxInFlightBatches);
+		}
+	}
+
+	/**
+	 * @param maxBufferedBytes - the estimated size, in bytes, of the buffered documents of a stripe of a bulk writer that triggers a write. 
+	 * The memory used by a bulk writer may reach MONGO_FLAME_BULK_WRITE_STRIPES times this size.
+	 */
+	public void setMaxBufferedBytes(long maxBufferedBytes) {
+		checkNotView();
 		for (BulkOperation writer : bulkWriters) {
-			writer.flush();
+			writer.setMaxBufferedBytes(maxBufferedBytes);
+		}
+	}
+
+	/**
+	 * Sets the maximum time a document stays in the buffer of a bulk writer. 
+	 * A background task checks the buffers periodically and flushes those whose oldest document would otherwise exceed this time.
+	 * @param maxBufferLatency - in milliseconds. Non-positive values disable the background flush.
+	 */
+	public synchronized void setMaxBufferLatency(long maxBufferLatency) {
+		checkNotView();
+		this.maxBufferLatency = maxBufferLatency;
+		if (scheduledFlush != null) {
+			scheduledFlush.cancel(false);
+			scheduledFlush = null;
+		}
+		if (maxBufferLatency <= 0) {
+			return;
+		}
+		// Check often enough that no document waits longer than the maximum latency.
+		long period = Math.max(MIN_FLUSH_CHECK_PERIOD, maxBufferLatency / 4);
+		BackgroundFlush backgroundFlush = new BackgroundFlush(this, Math.max(0, maxBufferLatency - period));
+		scheduledFlush = FLUSH_SCHEDULER.scheduleAtFixedRate(backgroundFlush, period, period, TimeUnit.MILLISECONDS);
+		backgroundFlush.scheduledFlush = scheduledFlush;
+	}
+
+	/**
+	 * Flushes the buffers of a DAO whose oldest document is too old. 
+	 * It holds the DAO through a weak reference, so a DAO that is not closed can still be finalized, and it cancels itself once the DAO is collected.
+	 */
+	private static final class BackgroundFlush implements Runnable {
+		private final WeakReference<MongoFlameDAO> daoReference;
+		private final long maxAge;
+		private volatile ScheduledFuture<?> scheduledFlush;
+
+		private BackgroundFlush(MongoFlameDAO dao, long maxAge) {
+			this.daoReference = new WeakReference<>(dao);
+			this.maxAge = maxAge;
+		}
+
+		@Override
+		public void run() {
+			MongoFlameDAO dao = daoReference.get();
+			if (dao == null) {
+				ScheduledFuture<?> future = scheduledFlush;
+				if (future != null) {
+					future.cancel(false);
+				}
+				return;
+			}
+			for (BulkOperation writer : dao.bulkWriters) {
+				try {
+					writer.flushIfOlderThan(maxAge);
+				} catch (Throwable ex) {
+					logger.error("Error in background flush", ex);
+				}
+			}
 		}
 	}
 
@@ -720,6 +1889,20 @@ public class MongoFlameDAO implements FlameEntityDAO {
 		logger.debug("{}", result);
 	}
 
+	/**
+	 * Rewrite the IDs of the attributes and references collections into the format this DAO generates (see MONGO_FLAME_ID_FORMAT).
+	 * Attributes are always read by entity ID and attribute name, never by ID, so reads are unaffected by the format of the stored IDs.
+	 * Only the detection of duplicates is: an attribute saved again after the format changed is stored a second time under the new ID.
+	 * Run it before saving with a new format, or after, which also removes such duplicates.
+	 * @return Returns the number of documents whose ID was rewritten.
+	 */
+	public long migrateAttributeIds() {
+		flush();
+		AttributeIdMigration migration = new AttributeIdMigration(idGenerator.getIdFormat());
+		return migration.migrate(entityAttributesCollection.withReadPreference(ReadPreference.primary())) 
+				+ migration.migrate(referenceCollection.withReadPreference(ReadPreference.primary()));
+	}
+
 	/**
 	 * Get the references of the given entity.
 	 * @param entityId
@@ -0,0 +1,299 @@
+package com.i4hq.flame.mongo;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.i4hq.flame.core.AttributeExpression;
+import com.i4hq.flame.core.FlameEntity;
+import com.i4hq.flame.core.FlameEntityDAO;
+
+/**
+ * Partitions the entities across several MongoDB instances, each accessed through its own {@link MongoFlameDAO}.
+ * An entity is routed by consistent hashing of its ID, so all its attributes, references, and geos are stored in the same partition, 
+ * and adding a partition moves only the entities that hash to the new partition.
+ * Queries on attributes are sent to all partitions in parallel and their results merged, up to the limit of the query.
+ * @author rmoten
+ *
+ */
+public class PartitionedFlameDAO implements FlameEntityDAO {
+
+	/**
+	 * The number of points of each partition on the hash ring. More points spread the entities more evenly.
+	 */
+	private static final int DEFAULT_VIRTUAL_NODES = 160;
+
+	/**
+	 * A query run on one partition.
+	 */
+	private interface PartitionQuery<T> {
+		T run(MongoFlameDAO partition);
+	}
+
+	/**
+	 * Runs the queries on the partitions for all instances. Its threads are daemons that end when they are idle, so it is never shut down.
+	 * It is not the query pool of the partitions, since a query on a partition waits for the tasks it submits to that pool.
+	 * It is not bounded, so concurrent callers do not wait for each other.
+	 */
+	private static final ExecutorService PARTITION_EXECUTOR = Executors.newCachedThreadPool(MongoFlameDAO.createDaemonThreadFactory("mongo-flame-partitions-"));
+
+	private final List<MongoFlameDAO> partitions;
+	private final TreeMap<Long, MongoFlameDAO> ring = new TreeMap<>();
+
+	/**
+	 * @param hosts - the host of each partition.
+	 * @param dbName - the database used in each partition.
+	 * @return
+	 */
+	public static PartitionedFlameDAO getInstance(List<String> hosts, String dbName) {
+		List<MongoFlameDAO> partitions = new ArrayList<>();
+		for (String host : hosts) {
+			partitions.add(MongoFlameDAO.getInstance(host, dbName));
+		}
+		return new PartitionedFlameDAO(partitions);
+	}
+
+	public PartitionedFlameDAO(List<MongoFlameDAO> partitions) {
+		this(partitions, Integer.parseInt(System.getProperty("MONGO_FLAME_PARTITION_VIRTUAL_NODES", Integer.toString(DEFAULT_VIRTUAL_NODES))));
+	}
+
+	/**
+	 * @param partitions
+	 * @param virtualNodes - the number of points of each partition on the hash ring.
+	 */
+	public PartitionedFlameDAO(List<MongoFlameDAO> partitions, int virtualNodes) {
+		if (partitions.isEmpty()) {
+			throw new IllegalArgumentException("At least one partition is needed");
+		}
+		this.partitions = new ArrayList<>(partitions);
+		for (MongoFlameDAO partition : partitions) {
+			// The points depend on the name of the partition, not its position, so the ring is stable when partitions are added.
+			for (int i = 0; i < virtualNodes; i++) {
+				ring.put(hash(partition.getName() + "#" + i), partition);
+			}
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return Returns the first 64 bits of the MurmurHash3 of the key.
+	 */
+	static long hash(String key) {
+		byte[] data = key.getBytes(StandardCharsets.UTF_8);
+		byte[] hash = new byte[AttributeIdGenerator.HASH_LENGTH];
+		AttributeIdGenerator.murmur3x64128(data, data.length, hash);
+		long h = 0;
+		for (int i = 0; i < 8; i++) {
+			h = (h << 8) | (hash[i] & 0xff);
+		}
+		return h;
+	}
+
+	/**
+	 * @param entityId
+	 * @return Returns the partition the entity is stored in.
+	 */
+	MongoFlameDAO getPartition(String entityId) {
+		Entry<Long, MongoFlameDAO> point = ring.ceilingEntry(hash(entityId));
+		return point == null ? ring.firstEntry().getValue() : point.getValue();
+	}
+
+	private Map<MongoFlameDAO, List<String>> groupByPartition(Collection<String> entityIds) {
+		Map<MongoFlameDAO, List<String>> entityIdsByPartition = new HashMap<>();
+		for (String entityId : entityIds) {
+			MongoFlameDAO partition = getPartition(entityId);
+			List<String> partitionEntityIds = entityIdsByPartition.get(partition);
+			if (partitionEntityIds == null) {
+				partitionEntityIds = new ArrayList<>();
+				entityIdsByPartition.put(partition, partitionEntityIds);
+			}
+			partitionEntityIds.add(entityId);
+		}
+		return entityIdsByPartition;
+	}
+
+	/**
+	 * Run a query on each of the partitions in parallel.
+	 * @param targets
+	 * @param query
+	 * @return Returns the results in the order of the partitions.
+	 */
+	private <T> List<T> scatter(Collection<MongoFlameDAO> targets, final PartitionQuery<T> query) {
+		List<Future<T>> futures = new ArrayList<>();
+		for (final MongoFlameDAO partition : targets) {
+			futures.add(PARTITION_EXECUTOR.submit(new Callable<T>() {
+				@Override
+				public T call() throws Exception {
+					return query.run(partition);
+				}
+			}));
+		}
+		List<T> results = new ArrayList<>();
+		for (Future<T> future : futures) {
+			try {
+				results.add(future.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				MongoFlameDAO.logger.error("Query of a partition failed", e.getCause());
+				throw new RuntimeException(e.getCause());
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Merge the results of the partitions. The entities of different partitions are distinct, so no entity is repeated.
+	 * @param results
+	 * @param limitAmount
+	 * @return
+	 */
+	private Collection<FlameEntity> merge(List<Collection<FlameEntity>> results, int limitAmount) {
+		List<FlameEntity> merged = new ArrayList<>();
+		for (Collection<FlameEntity> result : results) {
+			for (FlameEntity entity : result) {
+				if (merged.size() >= limitAmount) {
+					return merged;
+				}
+				merged.add(entity);
+			}
+		}
+		return merged;
+	}
+
+	@Override
+	public boolean save(FlameEntity entity) {
+		return getPartition(entity.getId()).save(entity);
+	}
+
+	@Override
+	public int save(List<FlameEntity> entities) {
+		final Map<MongoFlameDAO, List<FlameEntity>> entitiesByPartition = new HashMap<>();
+		for (FlameEntity entity : entities) {
+			MongoFlameDAO partition = getPartition(entity.getId());
+			List<FlameEntity> partitionEntities = entitiesByPartition.get(partition);
+			if (partitionEntities == null) {
+				partitionEntities = new ArrayList<>();
+				entitiesByPartition.put(partition, partitionEntities);
+			}
+			partitionEntities.add(entity);
+		}
+		int count = 0;
+		for (Integer saved : scatter(entitiesByPartition.keySet(), new PartitionQuery<Integer>() {
+			@Override
+			public Integer run(MongoFlameDAO partition) {
+				return partition.save(entitiesByPartition.get(partition));
+			}
+		})) {
+			count += saved;
+		}
+		return count;
+	}
+
+	@Override
+	public FlameEntity getEntitiesById(String id) {
+		return getPartition(id).getEntitiesById(id);
+	}
+
+	@Override
+	public List<FlameEntity> getEntitiesByIds(List<String> ids) {
+		final Map<MongoFlameDAO, List<String>> idsByPartition = groupByPartition(ids);
+		Map<String, FlameEntity> entities = new LinkedHashMap<>();
+		for (List<FlameEntity> result : scatter(idsByPartition.keySet(), new PartitionQuery<List<FlameEntity>>() {
+			@Override
+			public List<FlameEntity> run(MongoFlameDAO partition) {
+				return partition.getEntitiesByIds(idsByPartition.get(partition));
+			}
+		})) {
+			for (FlameEntity entity : result) {
+				entities.put(entity.getId(), entity);
+			}
+		}
+		List<FlameEntity> results = new ArrayList<>(ids.size());
+		for (String id : ids) {
+			results.add(entities.get(id));
+		}
+		return results;
+	}
+
+	@Override
+	public Collection<FlameEntity> getEntitiesWithAttributeValue(final String attributePath, final String value) {
+		return merge(scatter(partitions, new PartitionQuery<Collection<FlameEntity>>() {
+			@Override
+			public Collection<FlameEntity> run(MongoFlameDAO partition) {
+				return partition.getEntitiesWithAttributeValue(attributePath, value);
+			}
+		}), MongoFlameDAO.ATTRIBUTE_VALUE_LIMIT);
+	}
+
+	@Override
+	public Collection<FlameEntity> getEntitiesByAttributeExpression(final AttributeExpression expr) {
+		return merge(scatter(partitions, new PartitionQuery<Collection<FlameEntity>>() {
+			@Override
+			public Collection<FlameEntity> run(MongoFlameDAO partition) {
+				return partition.getEntitiesByAttributeExpression(expr);
+			}
+		}), MongoFlameDAO.determineLimit(expr.getLimit()));
+	}
+
+	/**
+	 * Get the entities that match a composite expression. All the data of an entity is in one partition, so each partition evaluates the whole expression.
+	 * @param expr
+	 * @return
+	 */
+	public Collection<FlameEntity> getEntitiesByCompositeExpression(final CompositeExpression expr) {
+		return merge(scatter(partitions, new PartitionQuery<Collection<FlameEntity>>() {
+			@Override
+			public Collection<FlameEntity> run(MongoFlameDAO partition) {
+				return partition.getEntitiesByCompositeExpression(expr);
+			}
+		}), MongoFlameDAO.determineLimit(expr.getLimit()));
+	}
+
+	@Override
+	public void updateEntitiesWithGeoLoctions(Collection<String> entityIds) {
+		final Map<MongoFlameDAO, List<String>> idsByPartition = groupByPartition(entityIds);
+		scatter(idsByPartition.keySet(), new PartitionQuery<Void>() {
+			@Override
+			public Void run(MongoFlameDAO partition) {
+				partition.updateEntitiesWithGeoLoctions(idsByPartition.get(partition));
+				return null;
+			}
+		});
+	}
+
+	public void setBufferWriteThreshold(int i) {
+		for (MongoFlameDAO partition : partitions) {
+			partition.setBufferWriteThreshold(i);
+		}
+	}
+
+	public void flush() {
+		scatter(partitions, new PartitionQuery<Void>() {
+			@Override
+			public Void run(MongoFlameDAO partition) {
+				partition.flush();
+				return null;
+			}
+		});
+	}
+
+	public void close() {
+		for (MongoFlameDAO partition : partitions) {
+			partition.close();
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package com.i4hq.flame.mongo;
+
+/**
+ * The ways the DAO joins entities to their attributes when it runs a query.
+ * @author rmoten
+ *
+ */
+public enum QueryMode {
+	/**
+	 * The server joins the entities to their attributes with $lookup stages in an aggregation.
+	 */
+	LOOKUP,
+	/**
+	 * The IDs of the matching entities are found first. 
+	 * Then the entities and their attributes are loaded with batched $in queries, which run in parallel, and joined on the client.
+	 */
+	CLIENT_JOIN;
+}
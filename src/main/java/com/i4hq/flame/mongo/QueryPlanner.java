@@ -0,0 +1,136 @@
+package com.i4hq.flame.mongo;
+
+import java.util.Collection;
+import java.util.List;
+
+import com.i4hq.flame.core.AttributeExpression;
+import com.i4hq.flame.core.EntityType;
+
+/**
+ * Chooses how queries are driven, based on the estimated number of documents each way would read.
+ * The estimates come from the {@link AttributeStatistics}, so a poor choice makes a query slower but never changes its results.
+ * @author rmoten
+ *
+ */
+final class QueryPlanner {
+
+	/**
+	 * The estimate of an operand that cannot be estimated.
+	 */
+	static final long UNKNOWN = Long.MAX_VALUE;
+
+	private final AttributeStatistics statistics;
+	private final EntityTypeResolver entityTypeResolver;
+	private final int maxDriverEntities;
+
+	/**
+	 * @param statistics
+	 * @param entityTypeResolver
+	 * @param maxDriverEntities - the maximum estimated number of entities of an operand that drives a composite query.
+	 * The IDs of its entities are sent with the queries of the other operands.
+	 */
+	QueryPlanner(AttributeStatistics statistics, EntityTypeResolver entityTypeResolver, int maxDriverEntities) {
+		this.statistics = statistics;
+		this.entityTypeResolver = entityTypeResolver;
+		this.maxDriverEntities = maxDriverEntities;
+	}
+
+	/**
+	 * @return Returns the maximum number of entities of an operand that drives a composite query.
+	 */
+	int getMaxDriverEntities() {
+		return maxDriverEntities;
+	}
+
+	/**
+	 * @param entityTypeResolver
+	 * @return Returns a planner with the same statistics and limits that resolves the stored types with the given resolver.
+	 */
+	QueryPlanner withEntityTypeResolver(EntityTypeResolver entityTypeResolver) {
+		return new QueryPlanner(statistics, entityTypeResolver, maxDriverEntities);
+	}
+
+	/**
+	 * @param entityType - an entity type that declares at least one attribute.
+	 * @param typeHashes - the hashes of the stored types that have at least one of the attributes of the entity type.
+	 * @return Returns true if selecting the entities by their stored types reads fewer documents than selecting them by the declared attributes.
+	 * If there are no statistics, it returns true.
+	 */
+	boolean isTypeDrivenCheaper(EntityType entityType, Collection<String> typeHashes) {
+		if (statistics.isEmpty()) {
+			return true;
+		}
+		long typeDrivenCost = estimateTypeDriven(typeHashes);
+		long attributeDrivenCost = estimateAttributeDriven(entityType.getAttributeNames());
+		MongoFlameDAO.logger.debug("FROM cost: type driven {}, attribute driven {}", typeDrivenCost, attributeDrivenCost);
+		return typeDrivenCost <= attributeDrivenCost;
+	}
+
+	private long estimateTypeDriven(Collection<String> typeHashes) {
+		long cost = 0;
+		for (String typeHash : typeHashes) {
+			cost += statistics.getTypeCount(typeHash);
+		}
+		return cost;
+	}
+
+	private long estimateAttributeDriven(Collection<String> attributeNames) {
+		long cost = 0;
+		for (String attributeName : attributeNames) {
+			cost += statistics.getAttributeCount(attributeName);
+		}
+		return cost;
+	}
+
+	/**
+	 * @param operand - an operand that is not a composite expression.
+	 * @return Returns the estimated number of entities that match the operand, or {@link #UNKNOWN}.
+	 */
+	long estimate(CompositeExpression.Operand operand) {
+		if (statistics.isEmpty() || operand.getComposite() != null) {
+			return UNKNOWN;
+		}
+		if (operand.getAttributeFilter() != null) {
+			if (operand.getValue() != null) {
+				return statistics.estimateValueCount(operand.getAttributeName(), operand.getValue());
+			}
+			return statistics.getAttributeCount(operand.getAttributeName());
+		}
+		AttributeExpression expr = operand.getExpression();
+		switch (expr.getOperator()) {
+		case FROM:
+			EntityType entityType = expr.getEntityType();
+			if (entityType == null || entityType.getAttributeNames().isEmpty()) {
+				return UNKNOWN;
+			}
+			return Math.min(estimateTypeDriven(entityTypeResolver.findTypeHashes(entityType)), estimateAttributeDriven(entityType.getAttributeNames()));
+		default:
+			return UNKNOWN;
+		}
+	}
+
+	/**
+	 * Choose the operand of an AND that drives the query: the other operands only need to be checked for the entities it matches.
+	 * @param operands
+	 * @return Returns the most selective operand, or null if none is estimated to match few enough entities.
+	 */
+	CompositeExpression.Operand selectDriver(List<CompositeExpression.Operand> operands) {
+		if (operands.size() < 2) {
+			return null;
+		}
+		CompositeExpression.Operand driver = null;
+		long driverEstimate = UNKNOWN;
+		for (CompositeExpression.Operand operand : operands) {
+			long estimate = estimate(operand);
+			if (estimate < driverEstimate) {
+				driver = operand;
+				driverEstimate = estimate;
+			}
+		}
+		if (driverEstimate > maxDriverEntities) {
+			return null;
+		}
+		MongoFlameDAO.logger.debug("driving with {}, estimated at {} entities", driver, driverEstimate);
+		return driver;
+	}
+}
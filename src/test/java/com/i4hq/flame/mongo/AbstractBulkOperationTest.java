@@ -0,0 +1,321 @@
+package com.i4hq.flame.mongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AbstractBulkOperationTest {
+
+	/**
+	 * Records the batches instead of sending them to a server. The size of an item is its length.
+	 */
+	private static class RecordingBulkOperation extends AbstractBulkOperation<String> {
+		private final List<List<String>> batches = new ArrayList<>();
+
+		RecordingBulkOperation() {
+			super("test");
+		}
+
+		@Override
+		protected void writeBatch(List<String> items) {
+			synchronized (batches) {
+				batches.add(new ArrayList<>(items));
+			}
+		}
+
+		@Override
+		protected long estimateSize(String item) {
+			return item.length();
+		}
+
+		@Override
+		public void setBufferWriteThreshold(int bufferWriteThreshold) {
+			fixBufferWriteThreshold(bufferWriteThreshold);
+		}
+
+		List<List<String>> getBatches() {
+			synchronized (batches) {
+				return new ArrayList<>(batches);
+			}
+		}
+	}
+
+	/**
+	 * Queues the tasks until they are run by the test.
+	 */
+	private static class QueuedExecutor implements Executor {
+		private final List<Runnable> tasks = new ArrayList<>();
+
+		@Override
+		public synchronized void execute(Runnable command) {
+			tasks.add(command);
+			notifyAll();
+		}
+
+		synchronized int size() {
+			return tasks.size();
+		}
+
+		synchronized void awaitSize(int size) throws InterruptedException {
+			while (tasks.size() < size) {
+				wait(1000);
+			}
+		}
+
+		void runFirst() {
+			Runnable task;
+			synchronized (this) {
+				task = tasks.remove(0);
+			}
+			task.run();
+		}
+	}
+
+	private String stripesProperty;
+
+	@Before
+	public void setUp() {
+		stripesProperty = System.getProperty("MONGO_FLAME_BULK_WRITE_STRIPES");
+		System.setProperty("MONGO_FLAME_BULK_WRITE_STRIPES", "2");
+	}
+
+	@After
+	public void tearDown() {
+		if (stripesProperty == null) {
+			System.clearProperty("MONGO_FLAME_BULK_WRITE_STRIPES");
+		} else {
+			System.setProperty("MONGO_FLAME_BULK_WRITE_STRIPES", stripesProperty);
+		}
+	}
+
+	private static RecordingBulkOperation createBulkOperation(int bufferWriteThreshold) {
+		RecordingBulkOperation bulkOperation = new RecordingBulkOperation();
+		bulkOperation.setBufferWriteThreshold(bufferWriteThreshold);
+		bulkOperation.setWaitTimeBeforeFlush(Long.MAX_VALUE);
+		bulkOperation.setMaxBufferedBytes(Long.MAX_VALUE);
+		return bulkOperation;
+	}
+
+	/**
+	 * Run the task on a thread that uses the other stripe than the current thread.
+	 */
+	private static void runOnOtherStripe(Runnable task) throws InterruptedException {
+		Thread thread;
+		do {
+			thread = new Thread(task);
+		} while (thread.getId() % 2 == Thread.currentThread().getId() % 2);
+		thread.start();
+		thread.join();
+	}
+
+	@Test
+	public void add_writesWhenStripeIsFull() {
+		RecordingBulkOperation bulkOperation = createBulkOperation(2);
+		assertFalse(bulkOperation.add("a"));
+		assertFalse(bulkOperation.add("b"));
+		assertTrue(bulkOperation.add("c"));
+		assertEquals(Arrays.asList(Arrays.asList("a", "b", "c")), bulkOperation.getBatches());
+	}
+
+	@Test
+	public void add_thresholdPerStripe() throws Exception {
+		final RecordingBulkOperation bulkOperation = createBulkOperation(2);
+		bulkOperation.add("a");
+		bulkOperation.add("b");
+		runOnOtherStripe(new Runnable() {
+			@Override
+			public void run() {
+				bulkOperation.add("c");
+				bulkOperation.add("d");
+			}
+		});
+		// Each stripe holds 2 items, which is not above the threshold.
+		assertEquals(0, bulkOperation.getBatches().size());
+
+		// A flush drains every stripe into one batch.
+		bulkOperation.flush();
+		assertEquals(1, bulkOperation.getBatches().size());
+		assertEquals(4, bulkOperation.getBatches().get(0).size());
+	}
+
+	@Test
+	public void add_writesWhenStripeBytesAreReached() {
+		RecordingBulkOperation bulkOperation = createBulkOperation(100);
+		bulkOperation.setMaxBufferedBytes(10);
+		assertFalse(bulkOperation.add("12345"));
+		assertTrue(bulkOperation.add("67890"));
+		assertEquals(1, bulkOperation.getBatches().size());
+	}
+
+	@Test
+	public void flush_splitsIntoMaxBatchSize() {
+		RecordingBulkOperation bulkOperation = createBulkOperation(100);
+		bulkOperation.setMaxBatchSize(0, 2);
+		bulkOperation.addAll(Arrays.asList("a", "b", "c", "d", "e"));
+		bulkOperation.flush();
+		assertEquals(Arrays.asList(Arrays.asList("a", "b"), Arrays.asList("c", "d"), Arrays.asList("e")), bulkOperation.getBatches());
+	}
+
+	@Test
+	public void flushIfOlderThan_onlyOldDocuments() throws Exception {
+		RecordingBulkOperation bulkOperation = createBulkOperation(100);
+		assertFalse("empty", bulkOperation.flushIfOlderThan(0));
+		bulkOperation.add("a");
+		assertFalse("too recent", bulkOperation.flushIfOlderThan(60 * 1000));
+		Thread.sleep(20);
+		assertTrue(bulkOperation.flushIfOlderThan(10));
+		assertEquals(Arrays.asList(Arrays.asList("a")), bulkOperation.getBatches());
+		assertFalse("flushed", bulkOperation.flushIfOlderThan(0));
+	}
+
+	@Test
+	public void add_writesAfterWaitTimeSinceLastWrite() throws Exception {
+		RecordingBulkOperation bulkOperation = createBulkOperation(100);
+		bulkOperation.setWaitTimeBeforeFlush(10);
+		Thread.sleep(20);
+		assertTrue(bulkOperation.add("a"));
+		assertEquals(1, bulkOperation.getBatches().size());
+		assertFalse(bulkOperation.add("b"));
+	}
+
+	@Test
+	public void add_waitTimeNotDerivedFromThreshold() throws Exception {
+		RecordingBulkOperation bulkOperation = createBulkOperation(100);
+		bulkOperation.setWaitTimeBeforeFlush(10);
+		bulkOperation.setBufferWriteThreshold(1000);
+		Thread.sleep(20);
+		assertTrue(bulkOperation.add("a"));
+		assertEquals(1, bulkOperation.getBatches().size());
+	}
+
+	@Test
+	public void adaptiveThreshold_targetLatencyIsWaitTime() throws Exception {
+		RecordingBulkOperation bulkOperation = createBulkOperation(100);
+		bulkOperation.setTargetLatency(10);
+		Thread.sleep(20);
+		assertTrue(bulkOperation.add("a"));
+		// Turning off adaptive tuning restores the wait time that was set.
+		bulkOperation.setTargetLatency(0);
+		Thread.sleep(20);
+		assertFalse(bulkOperation.add("b"));
+	}
+
+	private static Thread start(Runnable task) {
+		Thread thread = new Thread(task);
+		thread.start();
+		return thread;
+	}
+
+	@Test
+	public void asyncWrites_blockAtMaxInFlightBatches() throws Exception {
+		final RecordingBulkOperation bulkOperation = createBulkOperation(0);
+		QueuedExecutor executor = new QueuedExecutor();
+		bulkOperation.setAsyncWrites(executor, 2);
+		assertTrue(bulkOperation.add("a"));
+		assertTrue(bulkOperation.add("b"));
+		assertEquals(2, executor.size());
+
+		Thread third = start(new Runnable() {
+			@Override
+			public void run() {
+				bulkOperation.add("c");
+			}
+		});
+		third.join(100);
+		assertTrue("blocked while 2 batches are in flight", third.isAlive());
+		assertEquals(2, executor.size());
+
+		executor.runFirst();
+		third.join(1000);
+		assertFalse(third.isAlive());
+		assertEquals(2, executor.size());
+		assertEquals(Arrays.asList(Arrays.asList("a")), bulkOperation.getBatches());
+	}
+
+	@Test
+	public void flush_waitsForBatchesInFlight() throws Exception {
+		final RecordingBulkOperation bulkOperation = createBulkOperation(100);
+		QueuedExecutor executor = new QueuedExecutor();
+		bulkOperation.setAsyncWrites(executor, 2);
+		bulkOperation.add("a");
+
+		Thread flush = start(new Runnable() {
+			@Override
+			public void run() {
+				bulkOperation.flush();
+			}
+		});
+		executor.awaitSize(1);
+		flush.join(100);
+		assertTrue("waiting for the batch in flight", flush.isAlive());
+
+		executor.runFirst();
+		flush.join(1000);
+		assertFalse(flush.isAlive());
+		assertEquals(1, bulkOperation.getBatches().size());
+	}
+
+	@Test
+	public void setAsyncWrites_waitsForBatchesOfOldExecutor() throws Exception {
+		final RecordingBulkOperation bulkOperation = createBulkOperation(0);
+		QueuedExecutor executor = new QueuedExecutor();
+		bulkOperation.setAsyncWrites(executor, 1);
+		bulkOperation.add("a");
+
+		Thread synchronous = start(new Runnable() {
+			@Override
+			public void run() {
+				bulkOperation.setAsyncWrites(null, 0);
+			}
+		});
+		synchronous.join(100);
+		assertTrue("waiting for the batch in flight", synchronous.isAlive());
+
+		executor.runFirst();
+		synchronous.join(1000);
+		assertFalse(synchronous.isAlive());
+		// Writes are synchronous now.
+		assertTrue(bulkOperation.add("b"));
+		assertEquals(2, bulkOperation.getBatches().size());
+		assertEquals(0, executor.size());
+	}
+
+	@Test
+	public void adaptiveThreshold_growsAfterFastFullBatch() throws Exception {
+		RecordingBulkOperation bulkOperation = createBulkOperation(2);
+		bulkOperation.setMaxBatchSize(Long.MAX_VALUE, 1024);
+		bulkOperation.setTargetLatency(60000);
+		assertEquals(AdaptiveBatchTuner.MIN_THRESHOLD, bulkOperation.bufferWriteThreshold);
+		QueuedExecutor executor = new QueuedExecutor();
+		bulkOperation.setAsyncWrites(executor, 1);
+		for (int i = 0; i <= AdaptiveBatchTuner.MIN_THRESHOLD; i++) {
+			bulkOperation.add("a");
+		}
+		executor.runFirst();
+		assertEquals(2 * AdaptiveBatchTuner.MIN_THRESHOLD, bulkOperation.bufferWriteThreshold);
+	}
+
+	@Test
+	public void adaptiveThreshold_batchInFlightDoesNotOverwriteFixedThreshold() throws Exception {
+		RecordingBulkOperation bulkOperation = createBulkOperation(2);
+		bulkOperation.setMaxBatchSize(Long.MAX_VALUE, 1024);
+		bulkOperation.setTargetLatency(60000);
+		QueuedExecutor executor = new QueuedExecutor();
+		bulkOperation.setAsyncWrites(executor, 1);
+		for (int i = 0; i <= AdaptiveBatchTuner.MIN_THRESHOLD; i++) {
+			bulkOperation.add("a");
+		}
+		bulkOperation.setBufferWriteThreshold(5);
+		executor.runFirst();
+		assertEquals(5, bulkOperation.bufferWriteThreshold);
+	}
+}
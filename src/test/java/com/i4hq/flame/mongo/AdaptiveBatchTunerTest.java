@@ -0,0 +1,55 @@
+package com.i4hq.flame.mongo;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class AdaptiveBatchTunerTest {
+
+	private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(500);
+
+	@Test
+	public void record_increasesAfterFastFullBatch() {
+		AdaptiveBatchTuner tuner = new AdaptiveBatchTuner("test", 100, 64, 1024);
+		assertEquals(64, tuner.getThreshold());
+		assertEquals(80, tuner.record(64, FAST));
+		assertEquals(96, tuner.record(100, FAST));
+	}
+
+	@Test
+	public void record_keepsThresholdAfterFastPartialBatch() {
+		AdaptiveBatchTuner tuner = new AdaptiveBatchTuner("test", 100, 64, 1024);
+		assertEquals(64, tuner.record(10, FAST));
+	}
+
+	@Test
+	public void record_halvesAfterSlowBatch() {
+		AdaptiveBatchTuner tuner = new AdaptiveBatchTuner("test", 100, 256, 1024);
+		assertEquals(128, tuner.record(256, SLOW));
+		assertEquals(64, tuner.record(10, SLOW));
+	}
+
+	@Test
+	public void record_staysWithinBounds() {
+		AdaptiveBatchTuner tuner = new AdaptiveBatchTuner("test", 100, 1000, 1024);
+		assertEquals(1016, tuner.record(1000, FAST));
+		assertEquals(1024, tuner.record(1016, FAST));
+		assertEquals(1024, tuner.record(1024, FAST));
+		for (int i = 0; i < 10; i++) {
+			tuner.record(1, SLOW);
+		}
+		assertEquals(AdaptiveBatchTuner.MIN_THRESHOLD, tuner.getThreshold());
+	}
+
+	@Test
+	public void averages() {
+		AdaptiveBatchTuner tuner = new AdaptiveBatchTuner("test", 100, 64, 1024);
+		assertEquals(0, tuner.getAverageLatency());
+		tuner.record(100, TimeUnit.MILLISECONDS.toNanos(50));
+		assertEquals(50, tuner.getAverageLatency());
+		assertEquals(2000, tuner.getAverageThroughput());
+	}
+}
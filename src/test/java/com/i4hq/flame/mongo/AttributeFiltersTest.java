@@ -0,0 +1,45 @@
+package com.i4hq.flame.mongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+
+import org.bson.BsonDocument;
+import org.bson.conversions.Bson;
+import org.junit.Test;
+
+import com.i4hq.flame.core.AttributeDecl;
+import com.i4hq.flame.core.AttributeType;
+import com.i4hq.flame.core.EntityType;
+import com.mongodb.MongoClient;
+
+public class AttributeFiltersTest {
+
+	private final EntityType entityType = new EntityType(0, new AttributeDecl("sloppy", AttributeType.NUMBER));
+
+	private static BsonDocument toBsonDocument(Bson filter) {
+		return filter.toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry());
+	}
+
+	@Test
+	public void allAttributesSelected() {
+		assertNull("filter", AttributeFilters.createFilter(null, null));
+		assertNull("condition", AttributeFilters.createCondition("a", null, null));
+		assertNull("filter without declared attributes", AttributeFilters.createFilter(null, new EntityType(0)));
+	}
+
+	@Test
+	public void createFilter_withEntityType() {
+		BsonDocument filter = toBsonDocument(AttributeFilters.createFilter(null, entityType));
+		assertEquals(BsonDocument.parse("{ $or: [ { attribute_name: { $nin: ['sloppy'] } }, { attribute_name: 'sloppy', type: 'NUMBER' } ] }"), filter);
+	}
+
+	@Test
+	public void createCondition_withAttributeNamesAndEntityType() {
+		BsonDocument condition = AttributeFilters.createCondition("a", Arrays.asList("sloppy", "properties:report"), entityType);
+		assertEquals(BsonDocument.parse("{ $and: [ { $in: [ '$$a.attribute_name', { $literal: ['sloppy', 'properties:report'] } ] }, "
+				+ "{ $or: [ { $not: [ { $in: [ '$$a.attribute_name', { $literal: ['sloppy'] } ] } ] }, "
+				+ "{ $in: [ ['$$a.attribute_name', '$$a.type'], { $literal: [ ['sloppy', 'NUMBER'] ] } ] } ] } ] }"), condition);
+	}
+}
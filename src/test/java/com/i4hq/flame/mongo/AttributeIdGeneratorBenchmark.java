@@ -0,0 +1,71 @@
+package com.i4hq.flame.mongo;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.i4hq.flame.mongo.AttributeIdGenerator.HashAlgorithm;
+import com.i4hq.flame.mongo.AttributeIdGenerator.IdFormat;
+
+/**
+ * Compares the attribute ID generation of earlier versions with {@link AttributeIdGenerator}.
+ * Run it with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.i4hq.flame.mongo.AttributeIdGeneratorBenchmark
+ * @author rmoten
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AttributeIdGeneratorBenchmark {
+
+	private final String value = "1600 Pennsylvania Avenue NW";
+	private final String name = "properties:address";
+	private final String entityId = "8ffb6805518c29e27df949dc6eb1f70a";
+	private final AttributeIdGenerator md5Generator = new AttributeIdGenerator(HashAlgorithm.MD5, IdFormat.LEGACY_HEX);
+	private final AttributeIdGenerator murmur3Generator = new AttributeIdGenerator(HashAlgorithm.MURMUR3_128, IdFormat.HEX);
+
+	/**
+	 * The implementation of earlier versions.
+	 */
+	@Benchmark
+	public String legacyMd5() throws NoSuchAlgorithmException {
+		MessageDigest md = MessageDigest.getInstance("MD5");
+		md.update(value.getBytes());
+		md.update(name.getBytes());
+		md.update(entityId.getBytes());
+		return new BigInteger(1, md.digest()).toString(16);
+	}
+
+	@Benchmark
+	public Object md5() {
+		return md5Generator.createAttributeId(value, name, entityId);
+	}
+
+	@Benchmark
+	public Object murmur3() {
+		return murmur3Generator.createAttributeId(value, name, entityId);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder().include(AttributeIdGeneratorBenchmark.class.getSimpleName()).addProfiler("gc").build();
+		new Runner(options).run();
+	}
+}
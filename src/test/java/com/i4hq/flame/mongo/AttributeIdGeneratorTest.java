@@ -0,0 +1,92 @@
+package com.i4hq.flame.mongo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import org.bson.types.Binary;
+import org.junit.Test;
+
+import com.i4hq.flame.mongo.AttributeIdGenerator.HashAlgorithm;
+import com.i4hq.flame.mongo.AttributeIdGenerator.IdFormat;
+
+public class AttributeIdGeneratorTest {
+
+	/**
+	 * The IDs must match the ones generated by earlier versions, or existing attributes would be inserted again.
+	 * @throws Exception
+	 */
+	@Test
+	public void testLegacyHex_matchesEarlierIds() throws Exception {
+		AttributeIdGenerator generator = new AttributeIdGenerator(HashAlgorithm.MD5, IdFormat.LEGACY_HEX);
+		for (int i = 0; i < 1000; i++) {
+			String value = "value " + i + (i % 2 == 0 ? "" : " é中");
+			String name = "properties:name" + i;
+			String entityId = "entity" + (i * 31);
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			md.update(value.getBytes(StandardCharsets.UTF_8));
+			md.update(name.getBytes(StandardCharsets.UTF_8));
+			md.update(entityId.getBytes(StandardCharsets.UTF_8));
+			String expected = new BigInteger(1, md.digest()).toString(16);
+			assertEquals(value, expected, generator.createAttributeId(value, name, entityId));
+		}
+		assertEquals("type hash", new BigInteger(1, MessageDigest.getInstance("MD5").digest("type".getBytes(StandardCharsets.UTF_8))).toString(16), 
+				generator.createTypeHash("type"));
+	}
+
+	@Test
+	public void testHex_keepsLeadingZeros() throws Exception {
+		AttributeIdGenerator generator = new AttributeIdGenerator(HashAlgorithm.MD5, IdFormat.HEX);
+		AttributeIdGenerator legacyGenerator = new AttributeIdGenerator(HashAlgorithm.MD5, IdFormat.LEGACY_HEX);
+		for (int i = 0; i < 1000; i++) {
+			String id = (String) generator.createAttributeId(i, "name", "entity");
+			assertEquals("length", 32, id.length());
+			String legacyId = (String) legacyGenerator.createAttributeId(i, "name", "entity");
+			assertEquals("same digest", new BigInteger(id, 16), new BigInteger(legacyId, 16));
+		}
+	}
+
+	@Test
+	public void testBinary_convertsToAndFromHex() throws Exception {
+		AttributeIdGenerator generator = new AttributeIdGenerator(HashAlgorithm.MD5, IdFormat.BINARY);
+		AttributeIdGenerator legacyGenerator = new AttributeIdGenerator(HashAlgorithm.MD5, IdFormat.LEGACY_HEX);
+		for (int i = 0; i < 1000; i++) {
+			Object id = generator.createAttributeId(i, "name", "entity");
+			assertTrue("binary", id instanceof Binary);
+			assertEquals("bytes", AttributeIdGenerator.HASH_LENGTH, ((Binary) id).length());
+			Object legacyId = legacyGenerator.createAttributeId(i, "name", "entity");
+			assertEquals("to binary", id, AttributeIdGenerator.convert(legacyId, IdFormat.BINARY));
+			assertEquals("to legacy hex", legacyId, AttributeIdGenerator.convert(id, IdFormat.LEGACY_HEX));
+			assertTrue("all formats", AttributeIdGenerator.allFormats(legacyId).contains(id));
+		}
+		assertNull("not an attribute ID", AttributeIdGenerator.convert("not hex", IdFormat.BINARY));
+		assertEquals("type hash is hex", 32, generator.createTypeHash("type").length());
+	}
+
+	@Test
+	public void testNullValue() throws Exception {
+		AttributeIdGenerator generator = new AttributeIdGenerator(HashAlgorithm.MD5, IdFormat.HEX);
+		assertEquals(generator.createAttributeId("", "name", "entity"), generator.createAttributeId(null, "name", "entity"));
+	}
+
+	@Test
+	public void testMurmur3() throws Exception {
+		byte[] hash = new byte[AttributeIdGenerator.HASH_LENGTH];
+		AttributeIdGenerator.murmur3x64128(new byte[0], 0, hash);
+		assertArrayEquals("empty input", new byte[AttributeIdGenerator.HASH_LENGTH], hash);
+
+		byte[] data = "The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.UTF_8);
+		AttributeIdGenerator.murmur3x64128(data, data.length, hash);
+		assertEquals("6c1b07bc7bbc4be347939ac4a93c437a", String.format("%032x", new BigInteger(1, hash)));
+
+		AttributeIdGenerator generator = new AttributeIdGenerator(HashAlgorithm.MURMUR3_128, IdFormat.HEX);
+		assertEquals("length", 32, ((String) generator.createAttributeId("value", "name", "entity")).length());
+		assertNotEquals(generator.createAttributeId("value", "name", "entity1"), generator.createAttributeId("value", "name", "entity2"));
+	}
+}
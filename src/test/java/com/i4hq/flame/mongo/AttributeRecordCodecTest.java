@@ -0,0 +1,86 @@
+package com.i4hq.flame.mongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonDocumentWriter;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.types.Binary;
+import org.junit.Test;
+
+import com.i4hq.flame.core.MetadataItem;
+import com.mongodb.MongoClient;
+
+public class AttributeRecordCodecTest {
+
+	private final CodecRegistry registry = MongoClient.getDefaultCodecRegistry();
+	private final AttributeRecordCodec codec = new AttributeRecordCodec(registry);
+
+	private List<AttributeRecord> createRecords() {
+		List<AttributeRecord> records = new ArrayList<>();
+
+		AttributeRecord text = new AttributeRecord(AttributeRecord.RecordType.DEFAULT, "properties:name", "STRING");
+		text.setId("2e221ea12073022a28c69444aaf52736");
+		text.setText("a name with spaces");
+		text.setValue(MongoFlameDAO.VALUE_FIELD, "a name with spaces");
+		text.addMetadata(new MetadataItem("source", "test"));
+		records.add(text);
+
+		AttributeRecord number = new AttributeRecord(AttributeRecord.RecordType.DEFAULT, "properties:count", "NUMBER");
+		number.setId(new Binary(new byte[AttributeIdGenerator.HASH_LENGTH]));
+		number.setValue(MongoFlameDAO.VALUE_FIELD, 13.5);
+		records.add(number);
+
+		AttributeRecord reference = new AttributeRecord(AttributeRecord.RecordType.REFERENCE, "link", "REFERENCE");
+		reference.setId("abc");
+		reference.setValue(MongoFlameDAO.VALUE_FIELD, "...");
+		reference.setLongValue("a very long reference");
+		records.add(reference);
+
+		for (AttributeRecord record : records) {
+			record.setEntityId("8ffb6805518c29e27df949dc6eb1f70a");
+			record.setTimestamp(100L);
+		}
+		return records;
+	}
+
+	@Test
+	public void testEncode_sameAsDocument() throws Exception {
+		for (AttributeRecord record : createRecords()) {
+			BsonDocument encoded = new BsonDocument();
+			codec.encode(new BsonDocumentWriter(encoded), record, EncoderContext.builder().build());
+			BsonDocument expected = record.toDocument().toBsonDocument(BsonDocument.class, registry);
+			assertEquals(record.getAttributeName(), expected, encoded);
+			assertEquals("field order", new ArrayList<>(expected.keySet()), new ArrayList<>(encoded.keySet()));
+		}
+	}
+
+	@Test
+	public void testDecode_sameAsEncoded() throws Exception {
+		for (AttributeRecord record : createRecords()) {
+			BsonDocument encoded = new BsonDocument();
+			codec.encode(new BsonDocumentWriter(encoded), record, EncoderContext.builder().build());
+			AttributeRecord decoded = codec.decode(new BsonDocumentReader(encoded), DecoderContext.builder().build());
+			assertEquals(record.getAttributeName(), record.toDocument(), decoded.toDocument());
+		}
+	}
+
+	@Test
+	public void testEstimateSize() throws Exception {
+		CodecRegistry recordRegistry = CodecRegistries.fromRegistries(CodecRegistries.fromCodecs(codec), registry);
+		for (AttributeRecord record : createRecords()) {
+			RawBsonDocument raw = new RawBsonDocument(record, recordRegistry.get(AttributeRecord.class));
+			assertEquals(record.getAttributeName(), raw.getByteBuffer().remaining(), record.estimateSize());
+			assertTrue(record.getAttributeName(), record.estimateSize() > 0);
+		}
+	}
+}
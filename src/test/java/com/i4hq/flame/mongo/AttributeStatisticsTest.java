@@ -0,0 +1,50 @@
+package com.i4hq.flame.mongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class AttributeStatisticsTest {
+
+	@Test
+	public void countsPerNameValueAndType() {
+		AttributeStatistics statistics = new AttributeStatistics(null, 10);
+		assertTrue(statistics.isEmpty());
+		statistics.recordAttribute("color", "red");
+		statistics.recordAttribute("color", "red");
+		statistics.recordAttribute("color", "blue");
+		statistics.recordAttribute("count", 12.0);
+		statistics.recordEntity("t1");
+		assertFalse(statistics.isEmpty());
+
+		assertEquals(3, statistics.getAttributeCount("color"));
+		assertEquals(2, statistics.estimateValueCount("color", "red"));
+		assertEquals(1, statistics.estimateValueCount("count", "12.0"));
+		// All values of the attribute are counted, so a value not counted has no documents.
+		assertEquals(0, statistics.estimateValueCount("color", "green"));
+		assertEquals(0, statistics.getAttributeCount("unknown"));
+		assertEquals(1, statistics.getTypeCount("t1"));
+		assertEquals(0, statistics.persist());
+	}
+
+	@Test
+	public void tooManyValues_estimatedByName() {
+		AttributeStatistics statistics = new AttributeStatistics(null, 2);
+		statistics.recordAttribute("id", "a");
+		statistics.recordAttribute("id", "b");
+		statistics.recordAttribute("id", "c");
+		assertEquals(3, statistics.getAttributeCount("id"));
+		assertEquals(1, statistics.estimateValueCount("id", "a"));
+		assertEquals(3, statistics.estimateValueCount("id", "c"));
+	}
+
+	@Test
+	public void valuesNotCounted() {
+		AttributeStatistics statistics = new AttributeStatistics(null, 0);
+		statistics.recordAttribute("color", "red");
+		statistics.recordAttribute("color", "blue");
+		assertEquals(2, statistics.estimateValueCount("color", "red"));
+	}
+}
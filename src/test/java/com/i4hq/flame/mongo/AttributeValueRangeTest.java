@@ -0,0 +1,29 @@
+package com.i4hq.flame.mongo;
+
+import static org.junit.Assert.assertEquals;
+
+import org.bson.BsonDocument;
+import org.junit.Test;
+
+import com.i4hq.flame.core.AttributeType;
+import com.mongodb.MongoClient;
+
+public class AttributeValueRangeTest {
+
+	private static BsonDocument toBsonDocument(AttributeValueRange range) {
+		return range.toFilter().toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry());
+	}
+
+	@Test
+	public void between() {
+		AttributeValueRange range = new AttributeValueRange("name", AttributeType.STRING).between("a", "m");
+		assertEquals(BsonDocument.parse("{ attribute_name: 'name', value: { $gte: 'a', $lte: 'm' } }"), toBsonDocument(range));
+	}
+
+	@Test
+	public void inAndSavedSince() {
+		AttributeValueRange range = new AttributeValueRange("name", AttributeType.STRING).in("a", "b").savedSince(100).savedBefore(200);
+		assertEquals(BsonDocument.parse("{ attribute_name: 'name', value: { $in: ['a', 'b'] }, ts: { $gte: { $numberLong: '100' }, $lt: { $numberLong: '200' } } }"), 
+				toBsonDocument(range));
+	}
+}
@@ -0,0 +1,51 @@
+package com.i4hq.flame.mongo;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+public class BsonSizeEstimatorTest {
+
+	private static int encodedSize(Document doc) {
+		return new RawBsonDocument(doc, new DocumentCodec()).getByteBuffer().remaining();
+	}
+
+	@Test
+	public void estimate_sameAsEncodedSize() {
+		Document doc = new Document("_id", new ObjectId())
+				.append("name", "plain")
+				.append("unicode", "caf\u00e9 \u6771\u4eac \ud83d\ude00")
+				.append("int", 42)
+				.append("long", 42L)
+				.append("double", 4.2)
+				.append("bool", true)
+				.append("date", new Date())
+				.append("null", null)
+				.append("binary", new Binary(new byte[16]))
+				.append("nested", new Document("a", "b").append("n", 1))
+				.append("list", Arrays.asList("x", 1, 2.0, new Document("c", "d"), Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11)));
+		assertEquals(encodedSize(doc), BsonSizeEstimator.estimate(doc));
+	}
+
+	@Test
+	public void estimate_emptyDocument() {
+		assertEquals(encodedSize(new Document()), BsonSizeEstimator.estimate(new Document()));
+	}
+
+	@Test
+	public void utf8Length() {
+		String[] strings = {"", "abc", "caf\u00e9", "\u6771\u4eac", "\ud83d\ude00", "a\u0080\u07ff\u0800\uffff"};
+		for (String s : strings) {
+			assertEquals(s, s.getBytes(StandardCharsets.UTF_8).length, BsonSizeEstimator.utf8Length(s));
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package com.i4hq.flame.mongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.List;
+
+import org.bson.BsonDocument;
+import org.junit.Test;
+
+import com.i4hq.flame.core.AttributeType;
+import com.mongodb.MongoClient;
+
+public class CompositeExpressionTest {
+
+	@Test
+	public void operands() {
+		CompositeExpression nested = CompositeExpression.or().addAttributeValue("color", "blue");
+		CompositeExpression expr = CompositeExpression.and()
+				.addAttributeValue("color", "red")
+				.add(new AttributeValueRange("count", AttributeType.NUMBER).gt("10"))
+				.add(nested);
+		List<CompositeExpression.Operand> operands = expr.getOperands();
+		assertEquals(3, operands.size());
+
+		assertEquals("color", operands.get(0).getAttributeName());
+		assertEquals("red", operands.get(0).getValue());
+		assertEquals(BsonDocument.parse("{ attribute_name: 'color', value: 'red' }"), 
+				operands.get(0).getAttributeFilter().toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry()));
+
+		assertEquals("count", operands.get(1).getAttributeName());
+		assertNull(operands.get(1).getValue());
+
+		assertSame(nested, operands.get(2).getComposite());
+		assertNull(operands.get(2).getAttributeFilter());
+	}
+}
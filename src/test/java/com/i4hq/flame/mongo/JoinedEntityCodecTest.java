@@ -0,0 +1,153 @@
+package com.i4hq.flame.mongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.junit.Test;
+
+import com.i4hq.flame.core.AttributeValue;
+import com.i4hq.flame.core.FlameEntity;
+import com.i4hq.flame.core.MetadataItem;
+import com.mongodb.MongoClient;
+
+public class JoinedEntityCodecTest {
+
+	private final CodecRegistry registry = MongoClient.getDefaultCodecRegistry();
+	private final Map<String, FlameEntity> entities = new HashMap<>();
+	private final Function<String, FlameEntity> entityResolver = new Function<String, FlameEntity>() {
+		@Override
+		public FlameEntity apply(String entityId) {
+			FlameEntity entity = entities.get(entityId);
+			if (entity == null) {
+				entity = new MongoFlameEntity(entityId, null);
+				entities.put(entityId, entity);
+			}
+			return entity;
+		}
+	};
+
+	private static Document attribute(String entityId, String name, Object value, String type) {
+		return new Document(MongoFlameDAO.ID_FIELD, "2e221ea12073022a28c69444aaf52736").append(MongoFlameDAO.ENTITY_ID_FIELD, entityId)
+				.append(MongoFlameDAO.ATTRIBUTE_NAME_FIELD, name).append(MongoFlameDAO.VALUE_FIELD, value).append(MongoFlameDAO.TYPE_FIELD, type)
+				.append(MongoFlameDAO.TS_FIELD, 100L);
+	}
+
+	private FlameEntity decode(JoinedEntityCodec codec, Document doc) {
+		return codec.decode(new BsonDocumentReader(doc.toBsonDocument(BsonDocument.class, registry)), DecoderContext.builder().build());
+	}
+
+	@Test
+	public void decode_joinedDocument() {
+		JoinedEntityCodec codec = new JoinedEntityCodec(MongoFlameDAO.ID_FIELD, "attributes", null, entityResolver, registry);
+		Document doc = new Document(MongoFlameDAO.ID_FIELD, "e1").append(MongoFlameDAO.TYPE_FIELD, "typeHash")
+				.append("attributes", Arrays.asList(attribute("e1", "color", "red", "STRING").append("source", "test"), attribute("e1", "count", 13.5, "NUMBER")))
+				.append(MongoFlameDAO.LONGITUDE_FIELD, 1.5).append(MongoFlameDAO.LATITUDE_FIELD, -2.5);
+
+		FlameEntity entity = decode(codec, doc);
+		assertSame(entities.get("e1"), entity);
+		assertEquals("num of attributes", 2, entity.getAttributes().size());
+		AttributeValue color = entity.getAttribute("color");
+		assertEquals("red", color.getValue());
+		assertEquals("test", color.getMetadataValue("source"));
+		assertEquals("STRING", color.getMetadataValue(MongoFlameDAO.TYPE_FIELD));
+		assertEquals("100", color.getMetadataValue(MongoFlameDAO.TS_FIELD));
+		assertEquals("13.5", entity.getAttribute("count").getValue());
+		assertEquals(1.5, entity.getGeospatialPosition().getLongitude(), 0);
+		assertEquals(-2.5, entity.getGeospatialPosition().getLatitude(), 0);
+	}
+
+	@Test
+	public void decode_rawDocument() {
+		JoinedEntityCodec codec = new JoinedEntityCodec(MongoFlameDAO.ID_FIELD, "attributes", null, entityResolver, registry);
+		Document doc = new Document(MongoFlameDAO.ID_FIELD, "e1").append("attributes", Arrays.asList(attribute("e1", "color", "red", "STRING")));
+
+		FlameEntity entity = codec.decode(new RawBsonDocument(doc, registry.get(Document.class)));
+		assertSame(entities.get("e1"), entity);
+		assertEquals("red", entity.getAttribute("color").getValue());
+	}
+
+	@Test
+	public void decode_excludesReservedFieldsFromMetadata() {
+		JoinedEntityCodec codec = new JoinedEntityCodec(MongoFlameDAO.ID_FIELD, "attributes", null, entityResolver, registry);
+		Document doc = new Document(MongoFlameDAO.ID_FIELD, "e1").append("attributes", Arrays.asList(attribute("e1", "color", "red", "STRING")));
+
+		AttributeValue color = decode(codec, doc).getAttribute("color");
+		assertNull("metadata _id", color.getMetadataValue(MongoFlameDAO.ID_FIELD));
+		assertNull("metadata value", color.getMetadataValue(MongoFlameDAO.VALUE_FIELD));
+		assertNull("metadata attribute_name", color.getMetadataValue(MongoFlameDAO.ATTRIBUTE_NAME_FIELD));
+		assertNull("metadata entity_id", color.getMetadataValue(MongoFlameDAO.ENTITY_ID_FIELD));
+		assertEquals("only type and ts", 2, color.getMetadata().size());
+	}
+
+	@Test
+	public void decode_attributesBeforeEntityId() {
+		JoinedEntityCodec codec = new JoinedEntityCodec(MongoFlameDAO.ID_FIELD, "attributes", null, entityResolver, registry);
+		Document doc = new Document("attributes", Arrays.asList(attribute("e1", "color", "red", "STRING"))).append(MongoFlameDAO.ID_FIELD, "e1");
+
+		FlameEntity entity = decode(codec, doc);
+		assertEquals("red", entity.getAttribute("color").getValue());
+	}
+
+	@Test
+	public void decode_attributeDocuments() {
+		JoinedEntityCodec codec = new JoinedEntityCodec(MongoFlameDAO.ENTITY_ID_FIELD, null, null, entityResolver, registry);
+		FlameEntity first = decode(codec, attribute("e1", "color", "red", "STRING"));
+		FlameEntity second = decode(codec, attribute("e1", "size", "big", "STRING"));
+
+		assertSame("same entity", first, second);
+		assertEquals("num of attributes", 2, first.getAttributes().size());
+		assertEquals("big", first.getAttribute("size").getValue());
+	}
+
+	@Test
+	public void decode_unresolvedEntitySkipsAttributes() {
+		JoinedEntityCodec codec = new JoinedEntityCodec(MongoFlameDAO.ID_FIELD, "attributes", null, new Function<String, FlameEntity>() {
+			@Override
+			public FlameEntity apply(String entityId) {
+				return null;
+			}
+		}, registry);
+		Document doc = new Document(MongoFlameDAO.ID_FIELD, "e1").append("attributes", Arrays.asList(attribute("e1", "color", "red", "STRING")));
+
+		assertNull(decode(codec, doc));
+	}
+
+	@Test
+	public void decode_sameAsDocument() {
+		JoinedEntityCodec codec = new JoinedEntityCodec(MongoFlameDAO.ENTITY_ID_FIELD, null, null, entityResolver, registry);
+		List<Document> docs = Arrays.asList(attribute("e1", "color", "red", "STRING").append("source", "test"), attribute("e1", "count", 13.5, "NUMBER"),
+				attribute("e1", "flag", true, "BOOLEAN").append(MongoFlameDAO.LONG_STRING_FIELD, "a long value"));
+		FlameEntity expected = new MongoFlameEntity("e1", null);
+		for (Document doc : docs) {
+			MongoFlameDAO.addAttributeInJsonToEntity(expected, doc, null);
+			decode(codec, doc);
+		}
+
+		FlameEntity actual = entities.get("e1");
+		assertEquals("num of attributes", expected.getAttributes().size(), actual.getAttributes().size());
+		for (Document doc : docs) {
+			String name = doc.getString(MongoFlameDAO.ATTRIBUTE_NAME_FIELD);
+			AttributeValue expectedValue = expected.getAttribute(name);
+			AttributeValue actualValue = actual.getAttribute(name);
+			assertEquals(name, expectedValue.getValue(), actualValue.getValue());
+			assertEquals(name, expectedValue.getType(), actualValue.getType());
+			assertEquals(name, expectedValue.getMetadata().size(), actualValue.getMetadata().size());
+			for (MetadataItem item : expectedValue.getMetadata()) {
+				assertEquals(name + " " + item.getName(), item.getValue(), actualValue.getMetadataValue(item.getName()));
+			}
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package com.i4hq.flame.mongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bson.Document;
+import org.junit.Test;
+
+public class KnownTypesCacheTest {
+
+	private static Document typesDocument(String typeExpr, String typeHash) {
+		return new Document(MongoFlameDAO.ID_FIELD, typeHash).append(MongoFlameDAO.TYPE_EXPR_FIELD, typeExpr);
+	}
+
+	@Test
+	public void getHash_unknownType() {
+		KnownTypesCache cache = new KnownTypesCache(10);
+		assertNull(cache.getHash("t"));
+		cache.put("t", "h");
+		assertEquals("h", cache.getHash("t"));
+	}
+
+	@Test
+	public void put_evictsLeastRecentlyUsed() {
+		KnownTypesCache cache = new KnownTypesCache(10);
+		for (int i = 0; i < 10; i++) {
+			cache.put("t" + i, "h" + i);
+		}
+		for (int i = 0; i < 5; i++) {
+			cache.getHash("t" + i);
+		}
+		assertEquals(10, cache.size());
+
+		cache.put("new", "hNew");
+		// Down to nine tenths of the capacity, evicting the types used least recently.
+		assertEquals(9, cache.size());
+		assertNull(cache.getHash("t5"));
+		assertNull(cache.getHash("t6"));
+		for (String typeExpr : Arrays.asList("t0", "t1", "t2", "t3", "t4", "t7", "t8", "t9", "new")) {
+			assertNotNull(typeExpr, cache.getHash(typeExpr));
+		}
+	}
+
+	@Test
+	public void put_evictsOnlyATenthOfEquallyRecentTypes() {
+		KnownTypesCache cache = new KnownTypesCache(100);
+		for (int i = 0; i < 100; i++) {
+			cache.put("t" + i, "h" + i);
+		}
+		// All the types are read after the same put, so they are equally recent.
+		for (int i = 0; i < 100; i++) {
+			cache.getHash("t" + i);
+		}
+
+		cache.put("new", "hNew");
+		assertEquals(90, cache.size());
+		assertEquals("hNew", cache.getHash("new"));
+		int known = 0;
+		for (int i = 0; i < 100; i++) {
+			if (cache.getHash("t" + i) != null) {
+				known++;
+			}
+		}
+		assertEquals(89, known);
+	}
+
+	@Test
+	public void warm_loadsTypesDocuments() {
+		KnownTypesCache cache = new KnownTypesCache(10);
+		List<Document> docs = new ArrayList<>();
+		docs.add(typesDocument("t1", "h1"));
+		docs.add(typesDocument("t2", "h2"));
+		docs.add(new Document(MongoFlameDAO.ID_FIELD, "h3"));
+		assertEquals(2, cache.warm(docs));
+		assertEquals("h1", cache.getHash("t1"));
+		assertEquals("h2", cache.getHash("t2"));
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void typesListener_putsWrittenTypes() {
+		KnownTypesCache cache = new KnownTypesCache(10);
+		MongoFlameDAO.createTypesListener(cache, new EntityTypeResolver(null, null, null, 0)).accept(Arrays.asList(typesDocument("t1", "h1")));
+		assertEquals("h1", cache.getHash("t1"));
+		assertFalse(cache.put(new Document()));
+		assertTrue(cache.put(typesDocument("t2", "h2")));
+	}
+}
@@ -7,11 +7,14 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map.Entry;
 
 import org.bson.Document;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -25,6 +28,9 @@ import com.i4hq.flame.core.FlameEntityFactory;
 import com.i4hq.flame.core.GuidEntityIdFactory;
 import com.i4hq.flame.core.MetadataItem;
 import com.mongodb.MongoClient;
+import com.mongodb.ReadPreference;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
 
 public class MongoFlameDAOIT {
 
@@ -42,6 +48,14 @@ public class MongoFlameDAOIT {
 		dao = MongoFlameDAO.getInstance();
 
 	}
+
+	/**
+	 * Close the DAO, so that the next test, which drops the database, does not share its caches.
+	 */
+	@After
+	public void tearDown() {
+		dao.close();
+	}
 	
 	/**
 	 * Test we can use any additional column as metadata.
@@ -139,6 +153,131 @@ public class MongoFlameDAOIT {
 
 	}
 
+	@Test
+	public void getEntitiesByIds_inRequestedOrder() throws Throwable {
+		dao.setBufferWriteThreshold(0);
+		FlameEntity entity1 = readEntityFromFile("src/test/resources/entity1.json");
+		FlameEntity entity2 = readEntityFromFile("src/test/resources/entity2.json");
+		assertEquals("saved", true, dao.save(entity1));
+		assertEquals("saved", true, dao.save(entity2));
+
+		List<FlameEntity> retrievedEntities = dao.getEntitiesByIds(Arrays.asList(entity2.getId(), "unknown", entity1.getId()));
+		assertEquals("num of entities", 3, retrievedEntities.size());
+		assertEquals("first", entity2.getId(), retrievedEntities.get(0).getId());
+		assertEquals("unknown", 0, retrievedEntities.get(1).getAttributes().size());
+		assertEquals("last", entity1.getId(), retrievedEntities.get(2).getId());
+		assertEquals("num of attributes", 9, retrievedEntities.get(0).getAttributes().size());
+		for (Entry<String, List<AttributeValue>> expectedEntry : entity1.getAttributes()) {
+			String expectedAttributeName = expectedEntry.getKey();
+			assertEquals(expectedAttributeName, expectedEntry.getValue().get(0), retrievedEntities.get(2).getAttribute(expectedAttributeName));
+		}
+	}
+
+	@Test
+	public void clientJoinQueryMode_sameResultsAsLookup() throws Throwable {
+		dao.setBufferWriteThreshold(0);
+		FlameEntity entity1 = readEntityFromFile("src/test/resources/entity1.json");
+		assertEquals("saved", true, dao.save(entity1));
+
+		FlameEntity lookupEntity = dao.getEntitiesById(entity1.getId());
+		Collection<FlameEntity> lookupResult = dao.getEntitiesByAttributeExpression(AttributeExpression.fromType(new EntityType(0)));
+		dao.setQueryMode(QueryMode.CLIENT_JOIN);
+		FlameEntity clientJoinEntity = dao.getEntitiesById(entity1.getId());
+		Collection<FlameEntity> clientJoinResult = dao.getEntitiesByAttributeExpression(AttributeExpression.fromType(new EntityType(0)));
+
+		assertEquals("num of attributes", 9, clientJoinEntity.getAttributes().size());
+		for (Entry<String, List<AttributeValue>> expectedEntry : lookupEntity.getAttributes()) {
+			String expectedAttributeName = expectedEntry.getKey();
+			assertEquals(expectedAttributeName, expectedEntry.getValue().get(0), clientJoinEntity.getAttribute(expectedAttributeName));
+		}
+		assertEquals("num of entities", lookupResult.size(), clientJoinResult.size());
+		assertEquals(entity1.getId(), clientJoinResult.toArray(new FlameEntity[0])[0].getId());
+	}
+
+	@Test
+	public void streamEntitiesByAttributeExpression_resumeFromContinuationToken() throws Throwable {
+		dao.setBufferWriteThreshold(0);
+		FlameEntity entity1 = readEntityFromFile("src/test/resources/entity1.json");
+		FlameEntity entity2 = readEntityFromFile("src/test/resources/entity2.json");
+		assertEquals("saved", true, dao.save(entity1));
+		assertEquals("saved", true, dao.save(entity2));
+		String firstId = entity1.getId().compareTo(entity2.getId()) < 0 ? entity1.getId() : entity2.getId();
+		String lastId = firstId.equals(entity1.getId()) ? entity2.getId() : entity1.getId();
+
+		AttributeExpression expr = AttributeExpression.fromType(new EntityType(0));
+		String continuationToken;
+		try (EntityCursor cursor = dao.streamEntitiesByAttributeExpression(expr, 1, null)) {
+			assertTrue("has first", cursor.hasNext());
+			FlameEntity first = cursor.next();
+			assertEquals("first", firstId, first.getId());
+			assertEquals("num of attributes", 9, first.getAttributes().size());
+			continuationToken = cursor.getContinuationToken();
+		}
+		assertEquals("token", firstId, continuationToken);
+
+		try (EntityCursor cursor = dao.streamEntitiesByAttributeExpression(expr, 1, continuationToken)) {
+			assertTrue("has last", cursor.hasNext());
+			assertEquals("last", lastId, cursor.next().getId());
+			assertFalse("no more", cursor.hasNext());
+		}
+	}
+
+	@Test
+	public void streamEntitiesByAttributeExpression_eachEntityOnce() throws Throwable {
+		dao.setBufferWriteThreshold(0);
+		for (int i = 1; i <= 5; i++) {
+			FlameEntity entity = new MongoFlameEntity("e" + i, dao);
+			entity.addAttribute("color", "red", AttributeType.STRING);
+			entity.addAttribute("size", "big", AttributeType.STRING);
+			assertEquals("saved", true, dao.save(entity));
+		}
+		AttributeExpression fromType = AttributeExpression.fromType(new EntityType(0, new AttributeDecl("color", AttributeType.STRING),
+				new AttributeDecl("size", AttributeType.STRING)));
+		for (String typeDriven : Arrays.asList("true", "false")) {
+			System.setProperty("MONGO_FLAME_TYPE_DRIVEN_FROM", typeDriven);
+			MongoFlameDAO streaming = MongoFlameDAO.getInstance();
+			try (EntityCursor cursor = streaming.streamEntitiesByAttributeExpression(fromType, 2, null)) {
+				List<String> entityIds = new ArrayList<>();
+				while (cursor.hasNext()) {
+					entityIds.add(cursor.next().getId());
+				}
+				assertEquals(typeDriven, Arrays.asList("e1", "e2", "e3", "e4", "e5"), entityIds);
+			} finally {
+				streaming.close();
+				System.clearProperty("MONGO_FLAME_TYPE_DRIVEN_FROM");
+			}
+		}
+		try (EntityCursor cursor = dao.streamEntitiesByAttributeExpression(fromType, 2, "e1")) {
+			List<String> entityIds = new ArrayList<>();
+			while (cursor.hasNext()) {
+				entityIds.add(cursor.next().getId());
+			}
+			assertEquals(Arrays.asList("e2", "e3", "e4", "e5"), entityIds);
+		}
+		try (EntityCursor cursor = dao.streamEntitiesWithAttributeValue("color", "red", 10, "e3")) {
+			assertEquals("e4", cursor.next().getId());
+			assertEquals("e5", cursor.next().getId());
+			assertFalse("no more", cursor.hasNext());
+		}
+	}
+
+	@Test
+	public void getEntitiesById_onlyRequestedAttributes() throws Throwable {
+		dao.setBufferWriteThreshold(0);
+		FlameEntity entity1 = readEntityFromFile("src/test/resources/entity1.json");
+		assertEquals("saved", true, dao.save(entity1));
+		Entry<String, List<AttributeValue>> expectedEntry = entity1.getAttributes().iterator().next();
+		List<String> attributeNames = Arrays.asList(expectedEntry.getKey());
+
+		for (QueryMode queryMode : QueryMode.values()) {
+			dao.setQueryMode(queryMode);
+			FlameEntity retrievedEntity = dao.getEntitiesById(entity1.getId(), attributeNames);
+			assertEquals(queryMode + " num of attributes", 1, retrievedEntity.getAttributes().size());
+			assertEquals(queryMode + " " + expectedEntry.getKey(), expectedEntry.getValue().get(0).getValue(), 
+					retrievedEntity.getAttribute(expectedEntry.getKey()).getValue());
+		}
+	}
+
 	@Test
 	public void addAttributeInJsonToEntity_nullTimeStamp() throws Throwable{
 		FlameEntity entity = FlameEntityFactory.createEntity("blah");
@@ -197,6 +336,352 @@ public class MongoFlameDAOIT {
 		assertEquals(entity1.getId(), result.toArray(new FlameEntity[0])[0].getId());		
 	}
 	
+	@Test
+	public void retrieveEntityByTypeWithDeclaredAttributes() throws Exception {
+		dao.setBufferWriteThreshold(0);
+		FlameEntity entity1 = readEntityFromFile("src/test/resources/entity1.json");
+		FlameEntity entity2 = readEntityFromFile("src/test/resources/entity2.json");
+		assertEquals("saved", true, dao.save(entity1));
+		assertEquals("saved", true, dao.save(entity2));
+
+		EntityType withReport = new EntityType(0, new AttributeDecl("properties:report", AttributeType.BOOLEAN));
+		Collection<FlameEntity> result = dao.getEntitiesByAttributeExpression(AttributeExpression.fromType(withReport));
+		assertEquals(2, result.size());
+
+		EntityType withUnknown = new EntityType(0, new AttributeDecl("properties:unknown", AttributeType.STRING));
+		assertEquals(0, dao.getEntitiesByAttributeExpression(AttributeExpression.fromType(withUnknown)).size());
+	}
+	
+	@Test
+	public void retrieveEntityByType_typeSavedAfterFirstQuery() throws Exception {
+		dao.setBufferWriteThreshold(0);
+		EntityType withReport = new EntityType(0, new AttributeDecl("properties:report", AttributeType.BOOLEAN));
+		assertEquals(0, dao.getEntitiesByAttributeExpression(AttributeExpression.fromType(withReport)).size());
+
+		FlameEntity entity1 = readEntityFromFile("src/test/resources/entity1.json");
+		assertEquals("saved", true, dao.save(entity1));
+		assertEquals(1, dao.getEntitiesByAttributeExpression(AttributeExpression.fromType(withReport)).size());
+
+		// A type written after the types were loaded is seen through the types writer.
+		FlameEntity entity2 = readEntityFromFile("src/test/resources/entity2.json");
+		assertEquals("saved", true, dao.save(entity2));
+		assertEquals(2, dao.getEntitiesByAttributeExpression(AttributeExpression.fromType(withReport)).size());
+	}
+	
+	@Test
+	public void retrieveEntityByType_typeReadBeforeItsEntityIsSaved() throws Exception {
+		EntityType withColor = new EntityType(0, new AttributeDecl("color", AttributeType.STRING));
+		MongoClient mongoClient = new MongoClient("localhost");
+		try {
+			// Another process saves a type, then its entity, while this DAO queries.
+			MongoDatabase database = mongoClient.getDatabase(System.getProperty("mongo.db"));
+			database.getCollection("types").insertOne(new Document(MongoFlameDAO.ID_FIELD, "otherType").append(MongoFlameDAO.TYPE_EXPR_FIELD, "color"));
+			assertEquals(0, dao.getEntitiesByAttributeExpression(AttributeExpression.fromType(withColor)).size());
+
+			database.getCollection("entities").insertOne(new Document(MongoFlameDAO.ID_FIELD, "other1").append(MongoFlameDAO.TYPE_FIELD, "otherType"));
+			database.getCollection("attributes").insertOne(new Document(MongoFlameDAO.ID_FIELD, "otherAttribute").append(MongoFlameDAO.ENTITY_ID_FIELD, "other1")
+					.append(MongoFlameDAO.ATTRIBUTE_NAME_FIELD, "color").append(MongoFlameDAO.VALUE_FIELD, "red").append(MongoFlameDAO.TYPE_FIELD, "STRING")
+					.append(MongoFlameDAO.TS_FIELD, 1L));
+			Collection<FlameEntity> result = dao.getEntitiesByAttributeExpression(AttributeExpression.fromType(withColor));
+			assertEquals(1, result.size());
+			assertEquals("other1", result.iterator().next().getId());
+		} finally {
+			mongoClient.close();
+		}
+	}
+
+	@Test
+	public void indexesCreatedAtStartup() throws Exception {
+		MongoClient mongoClient = new MongoClient("localhost");
+		try {
+			IndexManager indexManager = new IndexManager(mongoClient.getDatabase(System.getProperty("mongo.db")));
+			assertEquals("missing indexes", 0, indexManager.findMissingIndexes().size());
+			assertEquals("collection scans", 0, indexManager.findCollectionScans().size());
+		} finally {
+			mongoClient.close();
+		}
+	}
+	
+	@Test
+	public void searchText_rankedByScore() throws Exception {
+		dao.setBufferWriteThreshold(0);
+		FlameEntity once = new MongoFlameEntity("once", dao);
+		once.addAttribute("description", "a quick brown fox", AttributeType.STRING);
+		FlameEntity twice = new MongoFlameEntity("twice", dao);
+		twice.addAttribute("description", "brown fox and brown dog", AttributeType.STRING);
+		twice.addAttribute("title", "the brown one", AttributeType.STRING);
+		assertEquals("saved", true, dao.save(once));
+		assertEquals("saved", true, dao.save(twice));
+
+		List<FlameEntity> result = dao.searchText("brown", null, 10);
+		assertEquals(2, result.size());
+		assertEquals("twice", result.get(0).getId());
+		assertEquals("num of attributes", 2, result.get(0).getAttributes().size());
+
+		assertEquals(0, dao.searchText("brown", Arrays.asList("name"), 10).size());
+		assertEquals(0, dao.searchText("cat", null, 10).size());
+	}
+	
+	@Test
+	public void getEntitiesWithAttributeValueInRange_numeric() throws Exception {
+		dao.setBufferWriteThreshold(0);
+		for (int i = 1; i <= 20; i++) {
+			FlameEntity entity = new MongoFlameEntity("e" + i, dao);
+			entity.addAttribute("count", Integer.toString(i), AttributeType.NUMBER);
+			assertEquals("saved", true, dao.save(entity));
+		}
+
+		// Compared as numbers, not as strings.
+		assertEquals(11, dao.getEntitiesWithAttributeValueInRange(new AttributeValueRange("count", AttributeType.NUMBER).gte("10"), 100).size());
+		assertEquals(3, dao.getEntitiesWithAttributeValueInRange(new AttributeValueRange("count", AttributeType.NUMBER).between("2", "4"), 100).size());
+		assertEquals(2, dao.getEntitiesWithAttributeValueInRange(new AttributeValueRange("count", AttributeType.NUMBER).in("2", "19"), 100).size());
+		assertEquals(0, dao.getEntitiesWithAttributeValueInRange(new AttributeValueRange("count", AttributeType.NUMBER).savedBefore(0), 100).size());
+	}
+	
+	@Test
+	public void getEntitiesByCompositeExpression_andOr() throws Exception {
+		dao.setBufferWriteThreshold(0);
+		for (int i = 1; i <= 20; i++) {
+			FlameEntity entity = new MongoFlameEntity("e" + i, dao);
+			entity.addAttribute("count", Integer.toString(i), AttributeType.NUMBER);
+			entity.addAttribute("color", i % 2 == 0 ? "red" : "blue", AttributeType.STRING);
+			assertEquals("saved", true, dao.save(entity));
+		}
+		EntityType counted = new EntityType(0, new AttributeDecl("count", AttributeType.NUMBER));
+
+		CompositeExpression redAbove10 = CompositeExpression.and()
+				.add(AttributeExpression.fromType(counted))
+				.add(new AttributeValueRange("count", AttributeType.NUMBER).gt("10"))
+				.addAttributeValue("color", "red");
+		Collection<FlameEntity> result = dao.getEntitiesByCompositeExpression(redAbove10);
+		assertEquals(5, result.size());
+		for (FlameEntity entity : result) {
+			assertEquals("num of attributes", 2, entity.getAttributes().size());
+		}
+
+		CompositeExpression redAbove10OrBelow3 = CompositeExpression.or()
+				.add(redAbove10)
+				.add(new AttributeValueRange("count", AttributeType.NUMBER).lt("3"));
+		assertEquals(7, dao.getEntitiesByCompositeExpression(redAbove10OrBelow3).size());
+		assertEquals(3, dao.getEntitiesByCompositeExpression(redAbove10OrBelow3.limit(3)).size());
+
+		assertEquals(0, dao.getEntitiesByCompositeExpression(CompositeExpression.and().addAttributeValue("color", "red").addAttributeValue("color", "blue")).size());
+	}
+	
+	@Test
+	public void getEntitiesByCompositeExpression_driverUnderestimated() throws Exception {
+		dao.setBufferWriteThreshold(0);
+		for (int i = 1; i <= 10; i++) {
+			FlameEntity entity = new MongoFlameEntity("e" + i, dao);
+			entity.addAttribute("color", "blue", AttributeType.STRING);
+			entity.addAttribute("size", i <= 4 ? "big" : "small", AttributeType.STRING);
+			assertEquals("saved", true, dao.save(entity));
+		}
+		dao.flush();
+		dao.close();
+		MongoClient mongoClient = new MongoClient("localhost");
+		mongoClient.getDatabase(System.getProperty("mongo.db")).getCollection("statistics").drop();
+		mongoClient.close();
+
+		String maxDriverEntities = System.getProperty("MONGO_FLAME_PLANNER_MAX_DRIVER_ENTITIES");
+		System.setProperty("MONGO_FLAME_PLANNER_MAX_DRIVER_ENTITIES", "2");
+		MongoFlameDAO planned = MongoFlameDAO.getInstance();
+		try {
+			// Wrong statistics: no blue color is counted, so the blue color drives the query, yet it matches more entities than a driver may.
+			planned.getAttributeStatistics().recordAttribute("color", "red");
+			assertEquals(0, planned.getAttributeStatistics().estimateValueCount("color", "blue"));
+
+			CompositeExpression blueAndBig = CompositeExpression.and().addAttributeValue("color", "blue").addAttributeValue("size", "big");
+			Collection<FlameEntity> result = planned.getEntitiesByCompositeExpression(blueAndBig);
+			assertEquals(4, result.size());
+			for (FlameEntity entity : result) {
+				assertEquals("big", entity.getAttribute("size").getValue());
+			}
+			assertEquals(10, planned.getEntitiesByCompositeExpression(CompositeExpression.and().addAttributeValue("color", "blue")).size());
+		} finally {
+			planned.close();
+			if (maxDriverEntities == null) {
+				System.clearProperty("MONGO_FLAME_PLANNER_MAX_DRIVER_ENTITIES");
+			} else {
+				System.setProperty("MONGO_FLAME_PLANNER_MAX_DRIVER_ENTITIES", maxDriverEntities);
+			}
+		}
+	}
+
+	@Test
+	public void attributeStatistics_persistedAndWarmed() throws Exception {
+		dao.setBufferWriteThreshold(0);
+		for (int i = 1; i <= 10; i++) {
+			FlameEntity entity = new MongoFlameEntity("e" + i, dao);
+			entity.addAttribute("color", i <= 3 ? "red" : "blue", AttributeType.STRING);
+			assertEquals("saved", true, dao.save(entity));
+		}
+		// Saving an attribute again does not insert a document.
+		FlameEntity again = new MongoFlameEntity("e1", dao);
+		again.addAttribute("color", "red", AttributeType.STRING);
+		assertEquals("saved", true, dao.save(again));
+		dao.flush();
+		assertEquals(10, dao.getAttributeStatistics().getAttributeCount("color"));
+		assertEquals(3, dao.getAttributeStatistics().estimateValueCount("color", "red"));
+		// The statistics are shared by the open DAOs of the database, so close the only one to load them again.
+		dao.close();
+
+		MongoFlameDAO restarted = MongoFlameDAO.getInstance(System.getProperty("mongo.host"), System.getProperty("mongo.db"));
+		try {
+			assertEquals(10, restarted.getAttributeStatistics().getAttributeCount("color"));
+			assertEquals(7, restarted.getAttributeStatistics().estimateValueCount("color", "blue"));
+			restarted.rebuildStatistics();
+			assertEquals(10, restarted.getAttributeStatistics().getAttributeCount("color"));
+			assertEquals(7, restarted.getAttributeStatistics().estimateValueCount("color", "blue"));
+			assertEquals(3, restarted.getAttributeStatistics().estimateValueCount("color", "red"));
+			assertEquals(0, restarted.getAttributeStatistics().estimateValueCount("color", "green"));
+		} finally {
+			restarted.close();
+		}
+	}
+	
+	@Test
+	public void rebuildStatistics_valuesWithSameStringFormCountedTogether() throws Exception {
+		dao.close();
+		String maxValues = System.getProperty("MONGO_FLAME_STATS_MAX_VALUES");
+		System.setProperty("MONGO_FLAME_STATS_MAX_VALUES", "1");
+		MongoFlameDAO rebuilt = MongoFlameDAO.getInstance();
+		MongoClient mongoClient = new MongoClient("localhost");
+		try {
+			MongoCollection<Document> attributes = mongoClient.getDatabase(System.getProperty("mongo.db")).getCollection("attributes");
+			attributes.insertOne(new Document(MongoFlameDAO.ID_FIELD, "a1").append(MongoFlameDAO.ENTITY_ID_FIELD, "e1")
+					.append(MongoFlameDAO.ATTRIBUTE_NAME_FIELD, "size").append(MongoFlameDAO.VALUE_FIELD, 5));
+			attributes.insertOne(new Document(MongoFlameDAO.ID_FIELD, "a2").append(MongoFlameDAO.ENTITY_ID_FIELD, "e2")
+					.append(MongoFlameDAO.ATTRIBUTE_NAME_FIELD, "size").append(MongoFlameDAO.VALUE_FIELD, "5"));
+
+			rebuilt.rebuildStatistics();
+			assertEquals(2, rebuilt.getAttributeStatistics().estimateValueCount("size", "5"));
+			// The values are complete, so a value not counted has no documents.
+			assertEquals(0, rebuilt.getAttributeStatistics().estimateValueCount("size", "6"));
+		} finally {
+			mongoClient.close();
+			rebuilt.close();
+			if (maxValues == null) {
+				System.clearProperty("MONGO_FLAME_STATS_MAX_VALUES");
+			} else {
+				System.setProperty("MONGO_FLAME_STATS_MAX_VALUES", maxValues);
+			}
+		}
+	}
+
+	@Test
+	public void attributeIds_legacyAndHexFormatsMixed() throws Exception {
+		String idFormat = System.getProperty("MONGO_FLAME_ID_FORMAT");
+		System.setProperty("MONGO_FLAME_ID_FORMAT", "LEGACY_HEX");
+		MongoFlameDAO legacyDao = MongoFlameDAO.getInstance();
+		System.setProperty("MONGO_FLAME_ID_FORMAT", "HEX");
+		MongoFlameDAO hexDao = MongoFlameDAO.getInstance();
+		MongoClient mongoClient = new MongoClient("localhost");
+		try {
+			FlameEntity entity = new MongoFlameEntity("mixed", legacyDao);
+			entity.addAttribute("color", "red", AttributeType.STRING);
+			entity.addAttribute("size", "big", AttributeType.STRING);
+			assertEquals("saved", true, legacyDao.save(entity));
+			legacyDao.flush();
+
+			FlameEntity savedAgain = new MongoFlameEntity("mixed", hexDao);
+			savedAgain.addAttribute("color", "red", AttributeType.STRING);
+			savedAgain.addAttribute("shape", "round", AttributeType.STRING);
+			assertEquals("saved", true, hexDao.save(savedAgain));
+			hexDao.flush();
+
+			// Reads do not depend on the format of the IDs.
+			for (MongoFlameDAO reader : Arrays.asList(legacyDao, hexDao)) {
+				FlameEntity retrieved = reader.getEntitiesById("mixed");
+				assertEquals("color", "red", retrieved.getAttribute("color").getValue());
+				assertEquals("size", "big", retrieved.getAttribute("size").getValue());
+				assertEquals("shape", "round", retrieved.getAttribute("shape").getValue());
+			}
+
+			hexDao.migrateAttributeIds();
+			int count = 0;
+			for (Document doc : mongoClient.getDatabase(System.getProperty("mongo.db")).getCollection("attributes")
+					.find(new Document(MongoFlameDAO.ENTITY_ID_FIELD, "mixed"))) {
+				assertEquals("hex ID", 32, doc.getString(MongoFlameDAO.ID_FIELD).length());
+				count++;
+			}
+			assertEquals("the color saved in both formats is stored once", 3, count);
+			FlameEntity retrieved = hexDao.getEntitiesById("mixed");
+			assertEquals("num of attributes", 3, retrieved.getAttributes().size());
+		} finally {
+			mongoClient.close();
+			legacyDao.close();
+			hexDao.close();
+			if (idFormat == null) {
+				System.clearProperty("MONGO_FLAME_ID_FORMAT");
+			} else {
+				System.setProperty("MONGO_FLAME_ID_FORMAT", idFormat);
+			}
+		}
+	}
+	
+	@Test
+	public void databaseStateSharedByDaosOfDatabase() throws Exception {
+		MongoFlameDAO sameDb = MongoFlameDAO.getInstance("localhost", System.getProperty("mongo.db"));
+		MongoFlameDAO otherDb = MongoFlameDAO.getInstance("localhost", "test&flame2");
+		try {
+			assertSame(dao.getAttributeStatistics(), sameDb.getAttributeStatistics());
+			assertNotSame(dao.getAttributeStatistics(), otherDb.getAttributeStatistics());
+		} finally {
+			sameDb.close();
+			otherDb.close();
+		}
+		AttributeStatistics statistics = dao.getAttributeStatistics();
+		dao.close();
+		MongoFlameDAO reopened = MongoFlameDAO.getInstance("localhost", System.getProperty("mongo.db"));
+		try {
+			assertNotSame("set up again once every DAO was closed", statistics, reopened.getAttributeStatistics());
+		} finally {
+			reopened.close();
+		}
+	}
+	
+	@Test
+	public void clientSharedAcrossDatabases() throws Exception {
+		MongoFlameDAO otherDao = MongoFlameDAO.getInstance("localhost", "test&flame2");
+		MongoClient client = MongoClientRegistry.acquire("localhost");
+		try {
+			assertSame(client, MongoClientRegistry.acquire("localhost"));
+			MongoClientRegistry.release("localhost");
+			otherDao.close();
+			// Still used by the DAO of the test.
+			assertNotNull(client.getDatabase("admin").runCommand(new Document("ping", 1)));
+		} finally {
+			MongoClientRegistry.release("localhost");
+		}
+	}
+	
+	/**
+	 * Against a single-host replica set, started with scripts/start-replica-set.sh, secondaryPreferred reads fall back to the primary.
+	 */
+	@Test
+	public void withReadPreference_readsThroughView() throws Throwable {
+		dao.setBufferWriteThreshold(0);
+		FlameEntity entity1 = readEntityFromFile("src/test/resources/entity1.json");
+		assertEquals("saved", true, dao.save(entity1));
+
+		MongoFlameDAO secondaryDao = dao.withReadPreference(ReadPreference.secondaryPreferred());
+		assertEquals(ReadPreference.secondaryPreferred(), secondaryDao.getReadPreference());
+		assertEquals(ReadPreference.primary(), dao.getReadPreference());
+		assertEquals("num of attributes", 9, secondaryDao.getEntitiesById(entity1.getId()).getAttributes().size());
+		// FROM queries of the view resolve the stored types through the view.
+		EntityType withReport = new EntityType(0, new AttributeDecl("properties:report", AttributeType.BOOLEAN));
+		assertEquals(1, secondaryDao.getEntitiesByAttributeExpression(AttributeExpression.fromType(withReport)).size());
+		try {
+			secondaryDao.setBufferWriteThreshold(10);
+			fail("the write settings belong to the DAO");
+		} catch (UnsupportedOperationException expected) {
+		}
+		secondaryDao.close();
+		// Closing the view leaves the DAO open.
+		assertEquals("num of attributes", 9, dao.getEntitiesById(entity1.getId()).getAttributes().size());
+	}
+	
 	private StringBuilder readJsonFromFile(String filePath) throws FileNotFoundException, IOException {
 		BufferedReader reader = new BufferedReader (new FileReader (filePath));
 		StringBuilder jsonText = new StringBuilder();
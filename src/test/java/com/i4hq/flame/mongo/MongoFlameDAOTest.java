@@ -0,0 +1,33 @@
+package com.i4hq.flame.mongo;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.mongodb.ReadPreference;
+import com.mongodb.Tag;
+import com.mongodb.TagSet;
+
+public class MongoFlameDAOTest {
+
+	@Test
+	public void createReadPreference_primary() {
+		assertEquals(ReadPreference.primary(), MongoFlameDAO.createReadPreference("primary", null, -1));
+	}
+
+	@Test
+	public void createReadPreference_withTagsAndMaxStaleness() {
+		ReadPreference expected = ReadPreference.secondaryPreferred(Arrays.asList(new TagSet(Arrays.asList(new Tag("dc", "east"), new Tag("rack", "1"))), 
+				new TagSet(Collections.singletonList(new Tag("dc", "west")))), 120, TimeUnit.SECONDS);
+		assertEquals(expected, MongoFlameDAO.createReadPreference("secondaryPreferred", "dc:east, rack:1;dc:west", 120));
+	}
+
+	@Test
+	public void createReadPreference_nearest() {
+		assertEquals(ReadPreference.nearest(), MongoFlameDAO.createReadPreference("nearest", "", -1));
+	}
+}
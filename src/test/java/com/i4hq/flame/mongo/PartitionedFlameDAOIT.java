@@ -0,0 +1,115 @@
+package com.i4hq.flame.mongo;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.i4hq.flame.core.AttributeType;
+import com.i4hq.flame.core.FlameEntity;
+import com.mongodb.MongoClient;
+
+public class PartitionedFlameDAOIT {
+
+	private static final String[] TEST_DBS = {"test&flame_p0", "test&flame_p1"};
+
+	private PartitionedFlameDAO dao;
+	private List<MongoFlameDAO> partitions;
+
+	@Before
+	public void setUp() throws Exception {
+		String[] hosts = System.getProperty("mongo.partition.hosts", "localhost,localhost").split(",");
+		partitions = new ArrayList<>();
+		for (int i = 0; i < TEST_DBS.length; i++) {
+			MongoClient mongoClient = new MongoClient(hosts[i]);
+			mongoClient.dropDatabase(TEST_DBS[i]);
+			mongoClient.close();
+			MongoFlameDAO partition = MongoFlameDAO.getInstance(hosts[i], TEST_DBS[i]);
+			partition.setBufferWriteThreshold(0);
+			partitions.add(partition);
+		}
+		dao = new PartitionedFlameDAO(partitions);
+	}
+
+	@After
+	public void tearDown() {
+		dao.close();
+	}
+
+	private List<String> saveEntities(int count) {
+		List<FlameEntity> entities = new ArrayList<>();
+		List<String> ids = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			FlameEntity entity = new MongoFlameEntity("entity" + i, partitions.get(0));
+			entity.addAttribute("group", i % 2 == 0 ? "even" : "odd", AttributeType.STRING);
+			entity.addAttribute("index", Integer.toString(i), AttributeType.NUMBER);
+			entities.add(entity);
+			ids.add(entity.getId());
+		}
+		dao.save(entities);
+		dao.flush();
+		return ids;
+	}
+
+	/**
+	 * Test each entity is stored only in the partition it hashes to, and the entities are spread over all partitions.
+	 */
+	@Test
+	public void save_routedByEntityId() {
+		List<String> ids = saveEntities(40);
+		Set<MongoFlameDAO> usedPartitions = new HashSet<>();
+		for (String id : ids) {
+			MongoFlameDAO owner = dao.getPartition(id);
+			usedPartitions.add(owner);
+			for (MongoFlameDAO partition : partitions) {
+				FlameEntity entity = partition.getEntitiesById(id);
+				if (partition == owner) {
+					assertNotNull(id, entity);
+				} else {
+					assertTrue(id, entity == null || entity.getAttributes().size() == 0);
+				}
+			}
+		}
+		assertEquals(partitions.size(), usedPartitions.size());
+	}
+
+	/**
+	 * Test a query on an attribute value returns the entities of all partitions.
+	 */
+	@Test
+	public void getEntitiesWithAttributeValue_gathersAllPartitions() {
+		saveEntities(40);
+		Collection<FlameEntity> results = dao.getEntitiesWithAttributeValue("group", "even");
+		assertEquals(20, results.size());
+		Set<String> ids = new HashSet<>();
+		for (FlameEntity entity : results) {
+			assertEquals("even", entity.getAttribute("group").getValue());
+			ids.add(entity.getId());
+		}
+		assertEquals(20, ids.size());
+	}
+
+	/**
+	 * Test the entities are returned in the requested order even though they are read from different partitions.
+	 */
+	@Test
+	public void getEntitiesByIds_inRequestedOrder() {
+		saveEntities(10);
+		List<String> ids = Arrays.asList("entity7", "entity2", "missing", "entity9", "entity0");
+		List<FlameEntity> results = dao.getEntitiesByIds(ids);
+		assertEquals(ids.size(), results.size());
+		for (int i = 0; i < ids.size(); i++) {
+			assertEquals(ids.get(i), results.get(i).getId());
+		}
+		assertEquals("missing", 0, results.get(2).getAttributes().size());
+		assertEquals("num of attributes", 2, results.get(0).getAttributes().size());
+	}
+}
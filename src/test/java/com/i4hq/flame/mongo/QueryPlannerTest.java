@@ -0,0 +1,40 @@
+package com.i4hq.flame.mongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import com.i4hq.flame.core.AttributeType;
+
+public class QueryPlannerTest {
+
+	@Test
+	public void selectDriver_mostSelectiveOperand() {
+		AttributeStatistics statistics = new AttributeStatistics(null, 10);
+		for (int i = 0; i < 100; i++) {
+			statistics.recordAttribute("color", i < 90 ? "red" : "blue");
+			statistics.recordAttribute("count", i);
+		}
+		QueryPlanner planner = new QueryPlanner(statistics, null, 50);
+		CompositeExpression expr = CompositeExpression.and()
+				.addAttributeValue("color", "red")
+				.add(new AttributeValueRange("count", AttributeType.NUMBER).gt("10"))
+				.addAttributeValue("color", "blue");
+		assertEquals(90, planner.estimate(expr.getOperands().get(0)));
+		assertEquals(100, planner.estimate(expr.getOperands().get(1)));
+		assertSame(expr.getOperands().get(2), planner.selectDriver(expr.getOperands()));
+
+		// Too many entities to drive the query.
+		assertNull(planner.selectDriver(CompositeExpression.and().addAttributeValue("color", "red").add(expr).getOperands()));
+	}
+
+	@Test
+	public void selectDriver_noStatistics() {
+		QueryPlanner planner = new QueryPlanner(new AttributeStatistics(null, 10), null, 50);
+		CompositeExpression expr = CompositeExpression.and().addAttributeValue("color", "red").addAttributeValue("color", "blue");
+		assertEquals(QueryPlanner.UNKNOWN, planner.estimate(expr.getOperands().get(0)));
+		assertNull(planner.selectDriver(expr.getOperands()));
+	}
+}